@@ -0,0 +1,47 @@
+/*
+Benchmark.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+/**
+ * Single measured operation. The result of run() is consumed by the runner,
+ * so the JIT can't remove the work as dead code.
+ */
+public abstract class Benchmark {
+	String name;
+	String info;	//printed after the results, e.g. the compression ratio
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Prepares the inputs, called once before the warm-up.
+	 */
+	protected void setUp() throws Exception {
+	}
+
+	protected void tearDown() throws Exception {
+	}
+
+	/**
+	 * Runs the operation once.
+	 * @return any value derived from the result
+	 */
+	protected abstract int run() throws Exception;
+}
@@ -0,0 +1,198 @@
+/*
+BenchmarkRunner.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Runs the benchmarks in the JMH style: warm-up iterations followed by the
+ * measured iterations of a fixed time. Besides the time per operation the
+ * allocated bytes per operation and the GC count and time are reported.
+ * Parameters:
+ * -wi=N : number of warm-up iterations (default 5)
+ * -i=N : number of measured iterations (default 5)
+ * -t=ms : time of one iteration (default 1000)
+ * any other argument selects the benchmarks whose name contains it
+ */
+public class BenchmarkRunner {
+	private int warmupIterations = 5;
+	private int iterations = 5;
+	private long iterationTime = 1000;
+
+	private ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private List gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+
+	private int sink;	//results of the operations
+
+	public static void main(String[] args) {
+		BenchmarkRunner runner = new BenchmarkRunner();
+		Vector filters = new Vector();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("-wi=")) {
+				runner.warmupIterations = Integer.parseInt(arg.substring(4));
+			} else
+			if (arg.startsWith("-i=")) {
+				runner.iterations = Integer.parseInt(arg.substring(3));
+			} else
+			if (arg.startsWith("-t=")) {
+				runner.iterationTime = Long.parseLong(arg.substring(3));
+			} else {
+				filters.add(arg);
+			}
+		}
+
+		Vector benchmarks = CompilerBenchmarks.getBenchmarks();
+		System.out.println(format("Benchmark", 28) + format("ns/op", 14) + format("error", 12)
+				+ format("B/op", 12) + format("gc.count", 10) + format("gc.time", 10));
+		for (int i = 0; i < benchmarks.size(); i++) {
+			Benchmark b = (Benchmark) benchmarks.elementAt(i);
+			if (!filters.isEmpty() && !matches(b.name, filters)) {
+				continue;
+			}
+			try {
+				runner.measure(b);
+			} catch (Exception e) {
+				System.out.println(b.name + " failed: " + e);
+			}
+		}
+		//print the sink so the results are used
+		if (runner.sink == 42) {
+			System.out.println();
+		}
+	}
+
+	private static boolean matches(String name, Vector filters) {
+		for (int i = 0; i < filters.size(); i++) {
+			if (name.indexOf((String) filters.elementAt(i)) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void measure(Benchmark b) throws Exception {
+		b.setUp();
+		try {
+			for (int i = 0; i < warmupIterations; i++) {
+				iteration(b);
+			}
+			System.gc();
+			double[] times = new double[iterations];
+			long ops = 0;
+			long allocated = 0;
+			long gcCount = getGcCount();
+			long gcTime = getGcTime();
+			for (int i = 0; i < iterations; i++) {
+				long allocatedStart = getAllocatedBytes();
+				long[] result = iteration(b);
+				allocated += getAllocatedBytes() - allocatedStart;
+				ops += result[0];
+				times[i] = (double) result[1] / result[0];
+			}
+			gcCount = getGcCount() - gcCount;
+			gcTime = getGcTime() - gcTime;
+
+			double mean = 0;
+			for (int i = 0; i < times.length; i++) {
+				mean += times[i];
+			}
+			mean /= times.length;
+			double variance = 0;
+			for (int i = 0; i < times.length; i++) {
+				variance += (times[i] - mean) * (times[i] - mean);
+			}
+			double error = times.length > 1 ? Math.sqrt(variance / (times.length - 1)) : 0;
+			String bytesPerOp = getAllocatedBytes() < 0 ? "n/a" : String.valueOf(allocated / ops);
+			System.out.println(format(b.name, 28) + format(round(mean), 14) + format("+-" + round(error), 12)
+					+ format(bytesPerOp, 12) + format(String.valueOf(gcCount), 10) + format(gcTime + "ms", 10)
+					+ (b.info == null ? "" : b.info));
+		} finally {
+			b.tearDown();
+		}
+	}
+
+	/*
+	 * Runs the operation in growing batches until the iteration time passes.
+	 * @return {number of operations, elapsed nanoseconds}
+	 */
+	private long[] iteration(Benchmark b) throws Exception {
+		long end = System.nanoTime() + iterationTime * 1000000L;
+		long start = System.nanoTime();
+		long ops = 0;
+		int batch = 1;
+		long now;
+		do {
+			for (int i = 0; i < batch; i++) {
+				sink += b.run();
+			}
+			ops += batch;
+			if (batch < 1024 * 1024) {
+				batch <<= 1;
+			}
+			now = System.nanoTime();
+		} while (now < end);
+		return new long[] {ops, now - start};
+	}
+
+	/*
+	 * @return bytes allocated by this thread or -1 when the JVM doesn't support the measurement
+	 */
+	private long getAllocatedBytes() {
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+			if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+				return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	private long getGcCount() {
+		long count = 0;
+		for (int i = 0; i < gcBeans.size(); i++) {
+			count += Math.max(0, ((GarbageCollectorMXBean) gcBeans.get(i)).getCollectionCount());
+		}
+		return count;
+	}
+
+	private long getGcTime() {
+		long time = 0;
+		for (int i = 0; i < gcBeans.size(); i++) {
+			time += Math.max(0, ((GarbageCollectorMXBean) gcBeans.get(i)).getCollectionTime());
+		}
+		return time;
+	}
+
+	private static String round(double v) {
+		return String.valueOf(Math.round(v * 100) / 100.0);
+	}
+
+	private static String format(String s, int width) {
+		StringBuilder sb = new StringBuilder(s);
+		while (sb.length() < width) {
+			sb.append(' ');
+		}
+		return sb.append(' ').toString();
+	}
+}
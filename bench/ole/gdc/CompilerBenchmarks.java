@@ -0,0 +1,288 @@
+/*
+CompilerBenchmarks.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Vector;
+
+/**
+ * Benchmarks of the encoding hot paths. The inputs are similar to the values
+ * found in the example scripts.
+ */
+public class CompilerBenchmarks {
+
+	//discards the written data
+	private static class NullOutputStream extends OutputStream {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+
+	/*
+	 * DataElement.store() of one value including the parsing of the value text.
+	 */
+	private static class StoreBenchmark extends Benchmark {
+		private int type;
+		private String[] values;
+		private DataElement element;
+		private DataEmitter emitter;
+		private CompileContext context;
+		private LineItem li;
+		private int index;
+
+		StoreBenchmark(String name, int type, String[] values) {
+			super("store." + name);
+			this.type = type;
+			this.values = values;
+		}
+
+		protected void setUp() throws Exception {
+			context = new CompileContext();
+			context.littleEndian = true;
+			context.createElements();
+			li = new LineItem("benchmark", 1, "benchmark");
+			element = new DataElement("value", type, li);
+			emitter = new DataEmitter(new NullOutputStream(), true);
+		}
+
+		protected int run() throws Exception {
+			String value = values[index];
+			index = (index + 1) % values.length;
+			element.store(emitter, value, context, ".", li);
+			return (int) emitter.getPosition();
+		}
+	}
+
+	/*
+	 * Writes of 1024 values by one of the DataEmitter methods in little endian.
+	 */
+	private static abstract class EmitterBenchmark extends Benchmark {
+		protected DataEmitter emitter;
+
+		EmitterBenchmark(String name) {
+			super("emitter." + name);
+		}
+
+		protected void setUp() throws Exception {
+			emitter = new DataEmitter(new NullOutputStream(), true);
+		}
+	}
+
+	/*
+	 * LZ compression of a 64 KB block of records: an id, a name padded to 32 bytes,
+	 * a flag and a short array. The ratio is printed after the results.
+	 */
+	private static abstract class LzBenchmark extends Benchmark {
+		protected byte[] data = new byte[64 * 1024];
+		protected byte[] compressed = new byte[LzCodec.maxCompressedLength(data.length)];
+		protected int compressedSize;
+		protected LzCodec codec = new LzCodec();
+
+		LzBenchmark(String name) {
+			super("lz." + name);
+		}
+
+		protected void setUp() throws Exception {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataEmitter emitter = new DataEmitter(bos, true);
+			for (int i = 0; emitter.getPosition() < data.length; i++) {
+				emitter.writeInt(i);
+				byte[] name = ("item_" + (i % 500)).getBytes("UTF8");
+				emitter.write(name);
+				emitter.writeZeros(32 - name.length);
+				emitter.writeByte(i % 3 == 0 ? 1 : 0);
+				emitter.writeShort((short) 3);
+				emitter.putShorts(new short[] {1, 2, (short) (i % 7)}, 0, 3);
+			}
+			emitter.close();
+			System.arraycopy(bos.toByteArray(), 0, data, 0, data.length);
+			compressedSize = codec.compress(data, 0, data.length, compressed, 0);
+			info = "ratio " + Math.round(data.length * 100.0 / compressedSize) / 100.0;
+		}
+	}
+
+	public static Vector getBenchmarks() {
+		Vector v = new Vector();
+		v.add(new StoreBenchmark("byte", DataElement.TYPE_BYTE, new String[] {"1", "-5", "0x7F", "100"}));
+		v.add(new StoreBenchmark("short", DataElement.TYPE_SHORT, new String[] {"1000", "-32000", "0x1234", "7"}));
+		v.add(new StoreBenchmark("int", DataElement.TYPE_INT, new String[] {"100000", "-1", "0x12345678", "65536"}));
+		v.add(new StoreBenchmark("long", DataElement.TYPE_LONG, new String[] {"1234567890123", "-1", "0x7FFFFFFFFFFF"}));
+		v.add(new StoreBenchmark("float", DataElement.TYPE_FLOAT, new String[] {"1.5", "-0.25", "3.14159"}));
+		v.add(new StoreBenchmark("double", DataElement.TYPE_DOUBLE, new String[] {"1.5", "-0.000001", "2.718281828459045"}));
+		v.add(new StoreBenchmark("string", DataElement.TYPE_STRING, new String[] {"\"Hello world!\"", "\"Text 2\"", "\"The End.\""}));
+		v.add(new StoreBenchmark("escapedString", DataElement.TYPE_STRING, new String[] {
+			"\"\\u041f\\u0440\\u0438\\u0432\\u0435\\u0442 \\u043c\\u0438\\u0440! \\u3053\\u3093\\u306b\\u3061\\u306f\\u4e16\\u754c\""}));
+		v.add(new StoreBenchmark("byteArray", DataElement.TYPE_BYTE_ARRAY, new String[] {"1 2 3 4 5 6 7 8 9 10 11 12 13 14 15 16"}));
+		v.add(new StoreBenchmark("shortArray", DataElement.TYPE_SHORT_ARRAY, new String[] {"100 200 300 400 500 600 700 800 900 1000"}));
+		v.add(new StoreBenchmark("intArray", DataElement.TYPE_INT_ARRAY, new String[] {"100000 200000 300000 400000 500000 600000 700000 800000"}));
+		v.add(new StoreBenchmark("longArray", DataElement.TYPE_LONG_ARRAY, new String[] {"1 10000000000 3 40000000000"}));
+		v.add(new StoreBenchmark("floatArray", DataElement.TYPE_FLOAT_ARRAY, new String[] {"0.5 1.5 2.5 3.5 4.5 5.5 6.5 7.5"}));
+		v.add(new StoreBenchmark("doubleArray", DataElement.TYPE_DOUBLE_ARRAY, new String[] {"0.5 1.5 2.5 3.5 4.5 5.5 6.5 7.5"}));
+		v.add(new StoreBenchmark("file", DataElement.TYPE_FILE, new String[] {"\"bench.tmp\""}) {
+			private File file = new File("bench.tmp");
+
+			protected void setUp() throws Exception {
+				super.setUp();
+				//a small texture-like file
+				FileOutputStream fos = new FileOutputStream(file);
+				try {
+					fos.write(new byte[16 * 1024]);
+				} finally {
+					fos.close();
+				}
+			}
+
+			protected void tearDown() {
+				file.delete();
+			}
+		});
+
+		v.add(new EmitterBenchmark("writeShort") {
+			protected int run() throws Exception {
+				for (int i = 0; i < 1024; i++) {
+					emitter.writeShort((short) i);
+				}
+				return (int) emitter.getPosition();
+			}
+		});
+		v.add(new EmitterBenchmark("writeInt") {
+			protected int run() throws Exception {
+				for (int i = 0; i < 1024; i++) {
+					emitter.writeInt(i);
+				}
+				return (int) emitter.getPosition();
+			}
+		});
+		v.add(new EmitterBenchmark("writeFloat") {
+			protected int run() throws Exception {
+				for (int i = 0; i < 1024; i++) {
+					emitter.writeFloat(i);
+				}
+				return (int) emitter.getPosition();
+			}
+		});
+		v.add(new EmitterBenchmark("writeDouble") {
+			protected int run() throws Exception {
+				for (int i = 0; i < 1024; i++) {
+					emitter.writeDouble(i);
+				}
+				return (int) emitter.getPosition();
+			}
+		});
+		v.add(new EmitterBenchmark("putInts") {
+			private int[] values = new int[1024];
+
+			protected int run() throws Exception {
+				emitter.putInts(values, 0, values.length);
+				return (int) emitter.getPosition();
+			}
+		});
+
+		v.add(new LzBenchmark("compress") {
+			protected int run() {
+				return codec.compress(data, 0, data.length, compressed, 0);
+			}
+		});
+		v.add(new LzBenchmark("decompress") {
+			private byte[] block = new byte[data.length];
+
+			protected int run() {
+				return LzCodec.decompress(compressed, 0, compressedSize, block, 0, block.length);
+			}
+		});
+
+		v.add(new Benchmark("guessType") {
+			private String[] values = {"1", "300", "70000", "5000000000", "1.5", "0x7F", "\"text\"", "NAME", "ID_APPLE"};
+			private DataElement element;
+			private CompileContext context;
+			private int index;
+
+			protected void setUp() {
+				context = new CompileContext();
+				context.createElements();
+				context.addConstant("ID_APPLE 1", new LineItem("#define ID_APPLE 1", 1, "benchmark"));
+				element = new DataElement("value", DataElement.TYPE_BYTE, null);
+			}
+
+			protected int run() {
+				String value = values[index];
+				index = (index + 1) % values.length;
+				return element.guessType(value, context);
+			}
+		});
+
+		v.add(new Benchmark("unescape") {
+			private String[] values = {
+				"Hello world!",
+				"as\\u0E15\\u0e32gh\\u0e21\\uu0e17\\ut0e35fg\\u0e48rt",
+				"\\u0048\\u0065\\u006c\\u006c\\u006f \\u0077\\u006f\\u0072\\u006c\\u0064"
+			};
+			private int index;
+
+			protected int run() {
+				String value = values[index];
+				index = (index + 1) % values.length;
+				return UnicodeEscapes.unescape(value).length();
+			}
+		});
+
+		v.add(new Benchmark("split") {
+			private String[] values = {
+				"1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16",
+				"\"Hello, world\", \"Text 2\", \"The End.\"",
+				"0x10 0x20 0x30 0x40 0x50 0x60 0x70 0x80"
+			};
+			private int index;
+
+			protected int run() {
+				String value = values[index];
+				index = (index + 1) % values.length;
+				return DataCompiler.split(value, ',', true).length;
+			}
+		});
+
+		v.add(new Benchmark("removeComments") {
+			private Vector lines = new Vector();
+
+			protected void setUp() {
+				//a script of 200 lines, every fourth line is a comment
+				for (int i = 0; i < 200; i++) {
+					String line;
+					switch (i % 4) {
+						case 0: line = "// comment line " + i; break;
+						case 1: line = "  value" + i + " = " + i + " // trailing comment"; break;
+						case 2: line = "  text" + i + " = \"Hello world!\""; break;
+						default: line = ""; break;
+					}
+					lines.add(new LineItem(line, i + 1, "benchmark"));
+				}
+			}
+
+			protected int run() {
+				return Utils.removeComments(lines, "//").size();
+			}
+		});
+		return v;
+	}
+}
@@ -0,0 +1,436 @@
+/*
+ArrayEncoder.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.IOException;
+
+/**
+ * Stores the arrays of numbers. The array text is scanned only once, the values
+ * are collected in primitive buffers and put into the emitter in bulk. Plain numbers are
+ * decoded directly from the text, only the constants and expressions go through
+ * the DataElement resolution.
+ * The buffers are reused, each thread has its own encoder.
+ */
+public class ArrayEncoder {
+
+	//powers of ten that are exactly representable as a double
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+	};
+	//max number of decimal digits that fit into 53 bits of the double mantissa
+	private static final int MAX_EXACT_DIGITS = 15;
+
+	private static final ThreadLocal encoders = new ThreadLocal();
+
+	private long[] longs = new long[256];
+	private double[] doubles = new double[256];
+	private int[] types = new int[256]; //data type used to write the value, TYPE_AUX for no output
+	private int size;
+	//narrowed copies of the values for the bulk put
+	private byte[] bytes = new byte[256];
+	private short[] shorts = new short[256];
+	private int[] ints = new int[256];
+	private float[] floats = new float[256];
+
+	//result of the decodeLong / decodeDouble
+	private long decodedLong;
+	private double decodedDouble;
+
+	public static ArrayEncoder get() {
+		ArrayEncoder encoder = (ArrayEncoder) encoders.get();
+		if (encoder == null) {
+			encoder = new ArrayEncoder();
+			encoders.set(encoder);
+		}
+		return encoder;
+	}
+
+	/**
+	 * Writes the array size followed by the array elements.
+	 * @param element the array element (provides the source line and warnings)
+	 * @param data array text - numbers or constants separated by space or tab
+	 * @param dataType one of the DataElement.TYPE_xxx_ARRAY types
+	 * @param literal the text is imported data: only numbers, no constants or expressions
+	 */
+	public void store(DataEmitter emitter, DataElement element, String data, int dataType, boolean literal, CompileContext context) throws IOException {
+		final boolean decimal = dataType == DataElement.TYPE_FLOAT_ARRAY || dataType == DataElement.TYPE_DOUBLE_ARRAY;
+		final int elementType = getElementType(dataType);
+		final int len = data.length();
+		int count = 0;
+		int i = 0;
+		size = 0;
+		while (true) {
+			while (i < len && isDelimiter(data.charAt(i))) {
+				i++;
+			}
+			if (i >= len) {
+				break;
+			}
+			int start = i;
+			while (i < len && !isDelimiter(data.charAt(i))) {
+				i++;
+			}
+			if (decimal) {
+				count += addDecimal(element, data, start, i, elementType, literal, context);
+			} else {
+				count += addInteger(element, data, start, i, elementType, literal, context);
+			}
+		}
+
+		if (context.useIntegerArraySize) {
+			emitter.writeInt(count);
+		} else {
+			emitter.writeShort((short) count);
+		}
+		writeValues(emitter, elementType);
+	}
+
+	private static int getElementType(int dataType) {
+		switch (dataType) {
+			case DataElement.TYPE_BYTE_ARRAY: return DataElement.TYPE_BYTE;
+			case DataElement.TYPE_SHORT_ARRAY: return DataElement.TYPE_SHORT;
+			case DataElement.TYPE_INT_ARRAY: return DataElement.TYPE_INT;
+			case DataElement.TYPE_LONG_ARRAY: return DataElement.TYPE_LONG;
+			case DataElement.TYPE_FLOAT_ARRAY: return DataElement.TYPE_FLOAT;
+			case DataElement.TYPE_DOUBLE_ARRAY: return DataElement.TYPE_DOUBLE;
+		}
+		throw new IllegalArgumentException("not an array type: " + dataType);
+	}
+
+	private static boolean isDelimiter(char c) {
+		return c == ' ' || c == '\t';
+	}
+
+	/*
+	 * @return true if the token can only be a plain number:
+	 * it can't be a constant name and it doesn't contain an expression.
+	 */
+	private static boolean isPlainNumber(String data, int start, int end) {
+		char c = data.charAt(start);
+		if (!((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '#' || c == '.')) {
+			return false;
+		}
+		for (int i = start + 1; i < end; i++) {
+			c = data.charAt(i);
+			if (c == '?' || c == ':' || c == '|' || c == '&' || c == '*' || c == '<' || c == '>' || c == '(') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * @return the number of array elements the token represents
+	 */
+	private int addInteger(DataElement element, String data, int start, int end, int elementType, boolean literal, CompileContext context) {
+		if ((literal || isPlainNumber(data, start, end)) && decodeLong(data, start, end)) {
+			long l = decodedLong;
+			add(l, getWriteType(context, element, elementType, elementType, l, data, start, end));
+			return 1;
+		}
+		String token = data.substring(start, end);
+		if (literal) {
+			//imported data is not resolved, Long.decode() gives the exact result or the error
+			long l = Long.decode(token).longValue();
+			add(l, getWriteType(context, element, elementType, elementType, l, data, start, end));
+			return 1;
+		}
+		//the type of a constant defined by an expression is known once it's resolved
+		DataElement de = element.resolveValue(token, elementType, context);
+		int count = 1;
+		if (elementType == DataElement.TYPE_BYTE || elementType == DataElement.TYPE_SHORT) {
+			count = element.getElementCount(token, elementType, context);
+		}
+		long l = de.getLongValue(context);
+		add(l, getWriteType(context, de, elementType, de.type, l, de.value, 0, de.value.length()));
+		return count;
+	}
+
+	private int addDecimal(DataElement element, String data, int start, int end, int elementType, boolean literal, CompileContext context) {
+		double d;
+		if ((literal || isPlainNumber(data, start, end)) && decodeDouble(data, start, end)) {
+			d = decodedDouble;
+		} else
+		if (literal) {
+			d = Double.parseDouble(data.substring(start, end));
+		} else {
+			String token = data.substring(start, end);
+			d = element.resolveValue(token, elementType, context).getDoubleValue(context);
+		}
+		if (size == doubles.length) {
+			grow();
+		}
+		doubles[size] = d;
+		types[size] = elementType;
+		size++;
+		return 1;
+	}
+
+	/*
+	 * Returns the type used to write the value. Values of the array type are range checked,
+	 * bigger constants are written with their own size.
+	 */
+	private int getWriteType(CompileContext context, DataElement element, int elementType, int valueType, long l, String text, int start, int end) {
+		switch (elementType) {
+			case DataElement.TYPE_BYTE: {
+				if (valueType == DataElement.TYPE_BYTE) {
+					if (context.warnInConversion) {
+						if (l > Byte.MAX_VALUE || l < Byte.MIN_VALUE) {
+							element.throwWarning(context, "byte", text.substring(start, end));
+						}
+					} else {
+						long lx = l - Byte.MIN_VALUE;
+						if (lx < 0 || lx > 0x17f) {
+							element.throwWarning(context, "byte", text.substring(start, end));
+						}
+					}
+					return DataElement.TYPE_BYTE;
+				}
+				if (valueType == DataElement.TYPE_SHORT || valueType == DataElement.TYPE_INT || valueType == DataElement.TYPE_LONG) {
+					return valueType;
+				}
+			} break;
+			case DataElement.TYPE_SHORT: {
+				if (valueType == DataElement.TYPE_BYTE || valueType == DataElement.TYPE_SHORT) {
+					if (l > Short.MAX_VALUE || l < Short.MIN_VALUE) {
+						element.throwWarning(context, "short", text.substring(start, end));
+					}
+					return DataElement.TYPE_SHORT;
+				}
+				if (valueType == DataElement.TYPE_INT || valueType == DataElement.TYPE_LONG) {
+					return valueType;
+				}
+			} break;
+			case DataElement.TYPE_INT: {
+				if (valueType == DataElement.TYPE_BYTE || valueType == DataElement.TYPE_SHORT || valueType == DataElement.TYPE_INT) {
+					if (l > Integer.MAX_VALUE || l < Integer.MIN_VALUE) {
+						element.throwWarning(context, "int", text.substring(start, end));
+					}
+					return DataElement.TYPE_INT;
+				}
+				if (valueType == DataElement.TYPE_LONG) {
+					return valueType;
+				}
+			} break;
+			case DataElement.TYPE_LONG: {
+				return DataElement.TYPE_LONG;
+			}
+		}
+		//values of the other types are not written
+		return DataElement.TYPE_AUX;
+	}
+
+	private void add(long l, int type) {
+		if (size == longs.length) {
+			grow();
+		}
+		longs[size] = l;
+		types[size] = type;
+		size++;
+	}
+
+	private void grow() {
+		int newSize = longs.length * 2;
+		long[] newLongs = new long[newSize];
+		double[] newDoubles = new double[newSize];
+		int[] newTypes = new int[newSize];
+		System.arraycopy(longs, 0, newLongs, 0, size);
+		System.arraycopy(doubles, 0, newDoubles, 0, size);
+		System.arraycopy(types, 0, newTypes, 0, size);
+		longs = newLongs;
+		doubles = newDoubles;
+		types = newTypes;
+	}
+
+	private void writeValues(DataEmitter emitter, int elementType) throws IOException {
+		boolean uniform = true;
+		for (int i = 0; i < size; i++) {
+			if (types[i] != elementType) {
+				uniform = false;
+				break;
+			}
+		}
+		//all values have the array type -> put them in bulk
+		if (uniform) {
+			if (bytes.length < size) {
+				int newSize = Math.max(size, bytes.length * 2);
+				bytes = new byte[newSize];
+				shorts = new short[newSize];
+				ints = new int[newSize];
+				floats = new float[newSize];
+			}
+			switch (elementType) {
+				case DataElement.TYPE_BYTE: {
+					for (int i = 0; i < size; i++) {
+						bytes[i] = (byte) longs[i];
+					}
+					emitter.write(bytes, 0, size);
+				} break;
+				case DataElement.TYPE_SHORT: {
+					for (int i = 0; i < size; i++) {
+						shorts[i] = (short) longs[i];
+					}
+					emitter.putShorts(shorts, 0, size);
+				} break;
+				case DataElement.TYPE_INT: {
+					for (int i = 0; i < size; i++) {
+						ints[i] = (int) longs[i];
+					}
+					emitter.putInts(ints, 0, size);
+				} break;
+				case DataElement.TYPE_LONG: {
+					emitter.putLongs(longs, 0, size);
+				} break;
+				case DataElement.TYPE_FLOAT: {
+					for (int i = 0; i < size; i++) {
+						floats[i] = (float) doubles[i];
+					}
+					emitter.putFloats(floats, 0, size);
+				} break;
+				case DataElement.TYPE_DOUBLE: {
+					emitter.putDoubles(doubles, 0, size);
+				} break;
+			}
+			return;
+		}
+		//some constants are written with their own size
+		for (int i = 0; i < size; i++) {
+			switch (types[i]) {
+				case DataElement.TYPE_BYTE:
+					emitter.writeByte((int) longs[i]);
+					break;
+				case DataElement.TYPE_SHORT:
+					emitter.writeShort((short) longs[i]);
+					break;
+				case DataElement.TYPE_INT:
+					emitter.writeInt((int) longs[i]);
+					break;
+				case DataElement.TYPE_LONG:
+					emitter.writeLong(longs[i]);
+					break;
+			}
+		}
+	}
+
+	/*
+	 * Decodes the integer the same way as Long.decode() does. Returns false if the
+	 * text is not a simple number, Long.decode() is then used to get the exact result or error.
+	 */
+	private boolean decodeLong(String s, int start, int end) {
+		int index = start;
+		boolean negative = false;
+		char c = s.charAt(index);
+		if (c == '-') {
+			negative = true;
+			index++;
+		} else
+		if (c == '+') {
+			index++;
+		}
+		int radix = 10;
+		if (s.startsWith("0x", index) || s.startsWith("0X", index)) {
+			index += 2;
+			radix = 16;
+		} else
+		if (s.startsWith("#", index)) {
+			index++;
+			radix = 16;
+		} else
+		if (s.startsWith("0", index) && end > index + 1) {
+			index++;
+			radix = 8;
+		}
+		if (index >= end) {
+			return false;
+		}
+		long result = 0;
+		final long limit = Long.MAX_VALUE / radix;
+		for (int i = index; i < end; i++) {
+			c = s.charAt(i);
+			int digit;
+			if (c >= '0' && c <= '9') {
+				digit = c - '0';
+			} else
+			if (c >= 'a' && c <= 'f') {
+				digit = c - 'a' + 10;
+			} else
+			if (c >= 'A' && c <= 'F') {
+				digit = c - 'A' + 10;
+			} else {
+				return false;
+			}
+			if (digit >= radix || result > limit) {
+				return false;
+			}
+			result = result * radix + digit;
+			if (result < 0) {
+				return false;
+			}
+		}
+		decodedLong = negative ? -result : result;
+		return true;
+	}
+
+	/*
+	 * Decodes simple decimal numbers (up to 15 digits, no exponent). Such numbers and
+	 * their power of ten divisor are exact doubles, so the division gives the same
+	 * correctly rounded result as Double.parseDouble(). Returns false for other numbers.
+	 */
+	private boolean decodeDouble(String s, int start, int end) {
+		int index = start;
+		boolean negative = false;
+		char c = s.charAt(index);
+		if (c == '-') {
+			negative = true;
+			index++;
+		} else
+		if (c == '+') {
+			index++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = -1;
+		for (int i = index; i < end; i++) {
+			c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				if (++digits > MAX_EXACT_DIGITS) {
+					return false;
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				if (fractionDigits >= 0) {
+					fractionDigits++;
+				}
+			} else
+			if (c == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+			} else {
+				return false;
+			}
+		}
+		if (digits == 0) {
+			return false;
+		}
+		double d = mantissa;
+		if (fractionDigits > 0) {
+			d = d / POW10[fractionDigits];
+		}
+		decodedDouble = negative ? -d : d;
+		return true;
+	}
+}
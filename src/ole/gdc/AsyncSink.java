@@ -0,0 +1,239 @@
+/*
+AsyncSink.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands the filled buffers to a writer thread (-sink=async), so the encoding
+ * and the writes of the target sink overlap. Two buffers are used: one is
+ * filled while the other one is written. The patches are written in order
+ * after the data written before them.
+ */
+public class AsyncSink implements OutputSink {
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final int BUFFERS = 2;
+
+	//work for the writer thread
+	private static class Task {
+		ByteBuffer data;
+		long patchPosition = -1;	//the data are a patch at this position
+		boolean close;
+	}
+
+	private OutputSink target;
+	private BlockingQueue free = new ArrayBlockingQueue(BUFFERS);		//empty buffers
+	private BlockingQueue tasks = new ArrayBlockingQueue(BUFFERS + 2);
+	private ByteBuffer current;
+	private long submitted;		//bytes handed to the writer thread
+	private Thread writer;
+	private volatile IOException error;	//failure of the writer thread
+	private boolean closed;
+
+	public AsyncSink(OutputSink target) {
+		this.target = target;
+		for (int i = 0; i < BUFFERS; i++) {
+			free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+		}
+		writer = new Thread("gdc output writer") {
+			public void run() {
+				writeTasks();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void writeTasks() {
+		while (true) {
+			Task task;
+			try {
+				task = (Task) tasks.take();
+			} catch (InterruptedException e) {
+				error = new InterruptedIOException("output writer interrupted");
+				return;
+			}
+			//the thread ends after the close task even when the close fails, so close() doesn't wait forever
+			if (task.close) {
+				boolean closedTarget = false;
+				try {
+					target.close();
+					closedTarget = true;
+				} catch (IOException e) {
+					error = error == null ? e : error;
+				} catch (RuntimeException e) {
+					error = error == null ? new IOException(e.toString()) : error;
+				} finally {
+					if (!closedTarget && error == null) {
+						error = new IOException("output not closed");
+					}
+				}
+				return;
+			}
+			try {
+				if (error == null) {
+					if (task.patchPosition >= 0) {
+						target.patch(task.patchPosition, task.data);
+					} else {
+						target.write(task.data);
+					}
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				error = new IOException(e.toString());
+			}
+			//the buffers go back even after a failure, so the encoder doesn't wait forever
+			if (task.patchPosition < 0 && task.data != null) {
+				task.data.clear();
+				free.add(task.data);
+			}
+		}
+	}
+
+	private void checkError() throws IOException {
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private void submit(Task task) throws IOException {
+		try {
+			tasks.put(task);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted while writing the output");
+		}
+	}
+
+	/*
+	 * @return the buffer being filled, waits for a free one if needed
+	 */
+	private ByteBuffer getBuffer() throws IOException {
+		if (current == null) {
+			checkError();
+			try {
+				current = (ByteBuffer) free.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted while writing the output");
+			}
+		}
+		return current;
+	}
+
+	private void submitBuffer() throws IOException {
+		if (current == null) {
+			return;
+		}
+		checkError();
+		Task task = new Task();
+		submitted += current.position();
+		current.flip();
+		task.data = current;
+		current = null;
+		submit(task);
+	}
+
+	public void write(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			ByteBuffer buffer = getBuffer();
+			int n = Math.min(buffer.remaining(), data.remaining());
+			int limit = data.limit();
+			data.limit(data.position() + n);
+			buffer.put(data);
+			data.limit(limit);
+			if (!buffer.hasRemaining()) {
+				submitBuffer();
+			}
+		}
+	}
+
+	public void transferFrom(FileChannel source, long size) throws IOException {
+		long pos = 0;
+		while (pos < size) {
+			ByteBuffer buffer = getBuffer();
+			int limit = buffer.limit();
+			buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), size - pos));
+			int n = source.read(buffer, pos);
+			buffer.limit(limit);
+			if (n <= 0) {
+				throw new EOFException("file truncated at " + pos + " bytes, expected " + size);
+			}
+			pos += n;
+			if (!buffer.hasRemaining()) {
+				submitBuffer();
+			}
+		}
+	}
+
+	public boolean canPatch() {
+		return target.canPatch();
+	}
+
+	public void patch(long position, ByteBuffer data) throws IOException {
+		//the patched data still wait in the current buffer
+		if (current != null && position >= submitted) {
+			int index = (int) (position - submitted);
+			while (data.hasRemaining()) {
+				current.put(index++, data.get());
+			}
+			return;
+		}
+		//the patch starts in the data handed to the writer thread and ends in the current buffer
+		if (current != null && position + data.remaining() > submitted) {
+			submitBuffer();
+		}
+		Task task = new Task();
+		task.patchPosition = position;
+		task.data = ByteBuffer.allocate(data.remaining());
+		task.data.put(data);
+		task.data.flip();
+		submit(task);
+	}
+
+	/**
+	 * Writes the rest of the data, closes the target and waits for the writer thread.
+	 */
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (error == null) {
+				submitBuffer();
+			}
+		} finally {
+			Task task = new Task();
+			task.close = true;
+			submit(task);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted while closing the output");
+			}
+		}
+		checkError();
+	}
+}
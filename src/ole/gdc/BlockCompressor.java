@@ -0,0 +1,145 @@
+/*
+BlockCompressor.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses the output in independent blocks (-compress), each of them can be
+ * decoded on its own, so the reader keeps the random access. The layout is:
+ * <pre>
+ * header: 'G' 'D' 'C' 'Z', version (1), flags (bit 0: little endian), 2 zero bytes, int block size
+ * compressed blocks
+ * index: int compressed size of each block, the highest bit is set when the block is stored uncompressed
+ * footer: long uncompressed size, int number of blocks, 'G' 'D' 'C' 'Z'
+ * </pre>
+ * The numbers are in the byte order of the data. The blocks are in the LZ4 block
+ * format (see LzCodec), all blocks except the last one have the block size when decompressed.
+ */
+public class BlockCompressor extends OutputStream {
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+	static final byte[] MAGIC = {'G', 'D', 'C', 'Z'};
+	static final int VERSION = 1;
+	static final int FLAG_LITTLE_ENDIAN = 1;
+	static final int STORED = 0x80000000;
+	static final int HEADER_SIZE = 12;
+	static final int FOOTER_SIZE = 16;
+
+	private OutputStream out;
+	private boolean littleEndian;
+	private byte[] block;
+	private int count;
+	private byte[] compressed;
+	private LzCodec codec = new LzCodec();
+	private int[] sizes = new int[64];	//index of the blocks
+	private int blocks;
+	private long total;
+	private byte[] number = new byte[8];
+	private boolean closed;
+
+	public BlockCompressor(OutputStream out, int blockSize, boolean littleEndian) throws IOException {
+		this.out = out;
+		this.littleEndian = littleEndian;
+		block = new byte[blockSize];
+		compressed = new byte[LzCodec.maxCompressedLength(blockSize)];
+		out.write(MAGIC);
+		out.write(VERSION);
+		out.write(littleEndian ? FLAG_LITTLE_ENDIAN : 0);
+		out.write(0);
+		out.write(0);
+		writeInt(blockSize);
+	}
+
+	public void write(int b) throws IOException {
+		block[count++] = (byte) b;
+		if (count == block.length) {
+			writeBlock();
+		}
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, block.length - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == block.length) {
+				writeBlock();
+			}
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		int size = codec.compress(block, 0, count, compressed, 0);
+		if (size < count) {
+			out.write(compressed, 0, size);
+		} else {
+			//the data don't compress
+			out.write(block, 0, count);
+			size = count | STORED;
+		}
+		if (blocks == sizes.length) {
+			int[] newSizes = new int[blocks * 2];
+			System.arraycopy(sizes, 0, newSizes, 0, blocks);
+			sizes = newSizes;
+		}
+		sizes[blocks++] = size;
+		total += count;
+		count = 0;
+	}
+
+	/**
+	 * Writes the last block, the index and the footer.
+	 */
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (count > 0) {
+				writeBlock();
+			}
+			for (int i = 0; i < blocks; i++) {
+				writeInt(sizes[i]);
+			}
+			writeLong(total);
+			writeInt(blocks);
+			out.write(MAGIC);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeInt(int v) throws IOException {
+		for (int i = 0; i < 4; i++) {
+			number[littleEndian ? i : 3 - i] = (byte) (v >>> (i * 8));
+		}
+		out.write(number, 0, 4);
+	}
+
+	private void writeLong(long v) throws IOException {
+		for (int i = 0; i < 8; i++) {
+			number[littleEndian ? i : 7 - i] = (byte) (v >>> (i * 8));
+		}
+		out.write(number, 0, 8);
+	}
+}
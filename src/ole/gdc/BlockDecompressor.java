@@ -0,0 +1,197 @@
+/*
+BlockDecompressor.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reference decoder of the compressed output (see BlockCompressor). Reads any
+ * part of the data by decompressing only the blocks containing it.
+ * Usage as a tool: java ole.gdc.BlockDecompressor compressedFile outputFile
+ */
+public class BlockDecompressor {
+	private RandomAccessFile file;
+	private boolean littleEndian;
+	private int blockSize;
+	private long length;
+	private int blocks;
+	private long[] offsets;		//file position of each block and the end of the last one
+	private boolean[] stored;	//the block is not compressed
+
+	private byte[] compressed;
+	private byte[] block;		//the last decompressed block
+	private int blockIndex = -1;
+
+	public BlockDecompressor(RandomAccessFile file) throws IOException {
+		this.file = file;
+		byte[] header = new byte[BlockCompressor.HEADER_SIZE];
+		file.seek(0);
+		file.readFully(header);
+		checkMagic(header, 0);
+		if (header[4] != BlockCompressor.VERSION) {
+			throw new IOException("unsupported version " + header[4]);
+		}
+		littleEndian = (header[5] & BlockCompressor.FLAG_LITTLE_ENDIAN) != 0;
+		blockSize = (int) getNumber(header, 8, 4);
+
+		byte[] footer = new byte[BlockCompressor.FOOTER_SIZE];
+		long footerPosition = file.length() - footer.length;
+		if (footerPosition < header.length) {
+			throw new IOException("file is truncated");
+		}
+		file.seek(footerPosition);
+		file.readFully(footer);
+		checkMagic(footer, 12);
+		length = getNumber(footer, 0, 8);
+		blocks = (int) getNumber(footer, 8, 4);
+		if (blocks < 0 || footerPosition - (long) blocks * 4 < header.length) {
+			throw new IOException("corrupted index");
+		}
+
+		byte[] index = new byte[blocks * 4];
+		file.seek(footerPosition - index.length);
+		file.readFully(index);
+		offsets = new long[blocks + 1];
+		stored = new boolean[blocks];
+		offsets[0] = header.length;
+		int maxSize = 0;
+		for (int i = 0; i < blocks; i++) {
+			int size = (int) getNumber(index, i * 4, 4);
+			stored[i] = (size & BlockCompressor.STORED) != 0;
+			size &= ~BlockCompressor.STORED;
+			offsets[i + 1] = offsets[i] + size;
+			maxSize = Math.max(maxSize, size);
+		}
+		if (offsets[blocks] != footerPosition - index.length) {
+			throw new IOException("corrupted index");
+		}
+		compressed = new byte[maxSize];
+		block = new byte[blockSize];
+	}
+
+	private static void checkMagic(byte[] b, int offset) throws IOException {
+		for (int i = 0; i < BlockCompressor.MAGIC.length; i++) {
+			if (b[offset + i] != BlockCompressor.MAGIC[i]) {
+				throw new IOException("not a compressed data file");
+			}
+		}
+	}
+
+	private long getNumber(byte[] b, int offset, int size) {
+		long v = 0;
+		for (int i = 0; i < size; i++) {
+			int shift = (littleEndian ? i : size - 1 - i) * 8;
+			v |= (long) (b[offset + i] & 0xFF) << shift;
+		}
+		return v;
+	}
+
+	/**
+	 * @return size of the uncompressed data
+	 */
+	public long length() {
+		return length;
+	}
+
+	public int getBlockCount() {
+		return blocks;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Decompresses the block into the internal buffer.
+	 * @return the uncompressed size of the block
+	 */
+	private int loadBlock(int index) throws IOException {
+		int size = (int) Math.min(blockSize, length - (long) index * blockSize);
+		if (index == blockIndex) {
+			return size;
+		}
+		blockIndex = -1;
+		int compressedSize = (int) (offsets[index + 1] - offsets[index]);
+		file.seek(offsets[index]);
+		if (stored[index]) {
+			if (compressedSize != size) {
+				throw new IOException("block " + index + " has " + compressedSize + " bytes, expected " + size);
+			}
+			file.readFully(block, 0, size);
+		} else {
+			file.readFully(compressed, 0, compressedSize);
+			int n = LzCodec.decompress(compressed, 0, compressedSize, block, 0, size);
+			if (n != size) {
+				throw new IOException("block " + index + " has " + n + " bytes, expected " + size);
+			}
+		}
+		blockIndex = index;
+		return size;
+	}
+
+	/**
+	 * Reads up to 'len' bytes of the uncompressed data starting at 'position'.
+	 * @return number of bytes read, -1 at the end of the data
+	 */
+	public int read(long position, byte[] b, int off, int len) throws IOException {
+		if (position >= length) {
+			return -1;
+		}
+		len = (int) Math.min(len, length - position);
+		int read = 0;
+		while (read < len) {
+			int index = (int) (position / blockSize);
+			int size = loadBlock(index);
+			int blockOffset = (int) (position - (long) index * blockSize);
+			int n = Math.min(len - read, size - blockOffset);
+			System.arraycopy(block, blockOffset, b, off + read, n);
+			read += n;
+			position += n;
+		}
+		return read;
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.out.println("usage: java ole.gdc.BlockDecompressor compressedFile outputFile");
+			System.exit(1);
+		}
+		BlockDecompressor in = new BlockDecompressor(new RandomAccessFile(new File(args[0]), "r"));
+		FileOutputStream out = new FileOutputStream(args[1]);
+		try {
+			byte[] buffer = new byte[in.getBlockSize()];
+			long position = 0;
+			int n;
+			while ((n = in.read(position, buffer, 0, buffer.length)) > 0) {
+				out.write(buffer, 0, n);
+				position += n;
+			}
+		} finally {
+			out.close();
+			in.close();
+		}
+	}
+}
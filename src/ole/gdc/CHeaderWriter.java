@@ -0,0 +1,269 @@
+/*
+CHeaderWriter.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Writes a C header describing the compiled data (-h=file.h): the constants,
+ * the offsets and sizes of the struct elements and packed typedefs of the
+ * fixed size structs, so the device can read the records in place.
+ */
+public class CHeaderWriter {
+	private CompileContext context;
+	private StringBuilder sb = new StringBuilder();
+	private HashSet written = new HashSet();	//structs already written
+
+	public CHeaderWriter(CompileContext context) {
+		this.context = context;
+	}
+
+	/**
+	 * Writes the header, the file is not touched when its contents don't change.
+	 */
+	public void write(String fileName, String inFileName) throws IOException {
+		String guard = getGuard(new File(fileName).getName());
+		sb.append("/* generated by DataCompiler from ").append(inFileName).append(", do not edit */\n");
+		sb.append("#ifndef ").append(guard).append('\n');
+		sb.append("#define ").append(guard).append("\n\n");
+		sb.append("#include <stdint.h>\n\n");
+
+		sb.append("/* byte order of the data, the values must be swapped when it differs from the device */\n");
+		sb.append("#define GDC_LITTLE_ENDIAN ").append(context.littleEndian ? 1 : 0).append('\n');
+		sb.append("/* number of elements of the arrays and the '{#}' counters */\n");
+		sb.append("typedef ").append(context.useIntegerArraySize ? "uint32_t" : "uint16_t").append(" gdc_count_t;\n");
+		sb.append("/* size of the embedded files */\n");
+		sb.append("typedef ").append(context.useLongFileSize ? "int64_t" : "int32_t").append(" gdc_file_size_t;\n");
+		sb.append("/* maximum alignment of the values (-align), 0 when they are packed */\n");
+		sb.append("#define GDC_ALIGNMENT ").append(context.alignment).append('\n');
+		sb.append("/* the strings are 32 bit offsets into the string pool (-strpool) */\n");
+		sb.append("#define GDC_STRING_POOL ").append(context.useStringPool ? 1 : 0).append('\n');
+		sb.append("/* encoding of the strings (-strenc): 0 utf8, 1 latin1, 2 utf16le, 3 utf16be, 4 smallest (tagged) */\n");
+		sb.append("#define GDC_STRING_ENCODING ").append(context.stringEncoding).append("\n\n");
+
+		writeConstants();
+		writeElements();
+
+		Object[] names = context.structs.keySet().toArray();
+		Arrays.sort(names);
+		if (names.length > 0) {
+			sb.append("#pragma pack(push, 1)\n\n");
+			for (int i = 0; i < names.length; i++) {
+				writeStruct((DataStruct) context.structs.get(names[i]));
+			}
+			sb.append("#pragma pack(pop)\n\n");
+		}
+		sb.append("#endif /* ").append(guard).append(" */\n");
+		Dependencies.writeIfChanged(new File(fileName), sb.toString());
+	}
+
+	private void writeConstants() {
+		Object[] names = context.constants.keySet().toArray();
+		Arrays.sort(names);
+		if (names.length == 0) {
+			return;
+		}
+		sb.append("/* constants */\n");
+		for (int i = 0; i < names.length; i++) {
+			DataElement de = (DataElement) context.constants.get(names[i]);
+			String value;
+			try {
+				value = getValue(de);
+			} catch (RuntimeException e) {
+				value = null;
+			}
+			if (value != null) {
+				sb.append("#define ").append(de.name).append(' ').append(value).append('\n');
+			}
+		}
+		sb.append('\n');
+	}
+
+	/*
+	 * @return the constant as a C literal or null when it has no C representation (arrays, files)
+	 */
+	private String getValue(DataElement de) {
+		DataElement value = de.getResolvedValue(context);
+		switch (de.type) {
+			case DataElement.TYPE_BYTE:
+			case DataElement.TYPE_SHORT:
+			case DataElement.TYPE_INT:
+				return String.valueOf(value.getLongValue(context));
+			case DataElement.TYPE_LONG:
+				return value.getLongValue(context) + "LL";
+			case DataElement.TYPE_FLOAT:
+				return value.getDoubleValue(context) + "f";
+			case DataElement.TYPE_DOUBLE:
+				return String.valueOf(value.getDoubleValue(context));
+			case DataElement.TYPE_STRING:
+				return quote(value.getStringValue());
+		}
+		return null;
+	}
+
+	private void writeElements() {
+		Object[] names = context.elements.keySet().toArray();
+		Arrays.sort(names);
+		if (names.length == 0) {
+			return;
+		}
+		sb.append("/* sizes of the data elements, variable size elements are not listed */\n");
+		for (int i = 0; i < names.length; i++) {
+			DataElement de = (DataElement) context.elements.get(names[i]);
+			int size = DataStruct.getSize(de, context);
+			if (size >= 0) {
+				sb.append("#define ").append(getMacroName(de.name)).append("_SIZE ").append(size).append('\n');
+			}
+		}
+		sb.append('\n');
+	}
+
+	private void writeStruct(DataStruct struct) {
+		if (!written.add(struct)) {
+			return;
+		}
+		//the inner structs must be declared first
+		for (int i = 0; i < struct.fields.length; i++) {
+			if (struct.fields[i].struct != null) {
+				writeStruct(struct.fields[i].struct);
+			}
+		}
+		String prefix = getMacroName(struct.name);
+		sb.append("/* struct ").append(struct.name).append(" (").append(struct.sourceLine.getSource()).append(") */\n");
+		int offset = 0;
+		for (int i = 0; i < struct.fields.length && offset >= 0; i++) {
+			DataElement de = struct.fields[i];
+			offset = DataStruct.align(offset, DataStruct.getAlignment(de, context));
+			sb.append("#define ").append(prefix).append('_').append(getMacroName(de.name)).append("_OFFSET ").append(offset).append('\n');
+			int size = DataStruct.getSize(de, context);
+			offset = size < 0 ? -1 : offset + size;
+		}
+		int structSize = struct.getSize(context);
+		if (structSize < 0) {
+			sb.append("/* the struct contains variable size elements, the offsets after the first one are not known:\n");
+			for (int i = 0; i < struct.fields.length; i++) {
+				sb.append("   ").append(getTypeName(struct.fields[i])).append(' ').append(struct.fields[i].name).append('\n');
+			}
+			sb.append("*/\n\n");
+			return;
+		}
+		sb.append("#define ").append(prefix).append("_SIZE ").append(structSize).append('\n');
+		sb.append("typedef struct {\n");
+		//the padding is explicit, the struct is packed
+		offset = 0;
+		int paddings = 0;
+		for (int i = 0; i < struct.fields.length; i++) {
+			DataElement de = struct.fields[i];
+			int aligned = DataStruct.align(offset, DataStruct.getAlignment(de, context));
+			if (aligned > offset) {
+				sb.append("\tuint8_t _padding").append(paddings++).append('[').append(aligned - offset).append("];\n");
+			}
+			sb.append('\t').append(getCType(de)).append(' ').append(de.name);
+			if (de.type == DataElement.TYPE_STRING && de.arrayLen > 0) {
+				sb.append('[').append(de.arrayLen).append(']');
+			}
+			sb.append(";\n");
+			offset = aligned + DataStruct.getSize(de, context);
+		}
+		if (structSize > offset) {
+			sb.append("\tuint8_t _padding").append(paddings).append('[').append(structSize - offset).append("];\n");
+		}
+		sb.append("} ").append(struct.name).append(";\n\n");
+	}
+
+	private String getCType(DataElement de) {
+		if (de.type == DataElement.TYPE_STRING && de.arrayLen == 0 && context.useStringPool) {
+			return "uint32_t";
+		}
+		switch (de.type) {
+			case DataElement.TYPE_BYTE: return "int8_t";
+			case DataElement.TYPE_SHORT: return "int16_t";
+			case DataElement.TYPE_INT: return "int32_t";
+			case DataElement.TYPE_LONG: return "int64_t";
+			case DataElement.TYPE_FLOAT: return "float";
+			case DataElement.TYPE_DOUBLE: return "double";
+			case DataElement.TYPE_STRING: return "char";
+			case DataElement.TYPE_STRUCT: return de.value;
+		}
+		return null;
+	}
+
+	private String getTypeName(DataElement de) {
+		switch (de.type) {
+			case DataElement.TYPE_STRING: {
+				if (de.arrayLen > 0) {
+					return "char[" + de.arrayLen + "]";
+				}
+				return context.useStringPool ? "uint32_t (offset in the string pool)" : "string (big endian uint16_t length + bytes in GDC_STRING_ENCODING)";
+			}
+			case DataElement.TYPE_FILE: return "file (gdc_file_size_t size + bytes)";
+			case DataElement.TYPE_BYTE_ARRAY: return "int8_t[] (gdc_count_t count + values)";
+			case DataElement.TYPE_SHORT_ARRAY: return "int16_t[] (gdc_count_t count + values)";
+			case DataElement.TYPE_INT_ARRAY: return "int32_t[] (gdc_count_t count + values)";
+			case DataElement.TYPE_LONG_ARRAY: return "int64_t[] (gdc_count_t count + values)";
+			case DataElement.TYPE_FLOAT_ARRAY: return "float[] (gdc_count_t count + values)";
+			case DataElement.TYPE_DOUBLE_ARRAY: return "double[] (gdc_count_t count + values)";
+		}
+		return getCType(de);
+	}
+
+	private static String getMacroName(String name) {
+		StringBuilder sb = new StringBuilder(name.length() + 4);
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			//camelCase -> CAMEL_CASE
+			if (Character.isUpperCase(c) && i > 0 && Character.isLowerCase(name.charAt(i - 1))) {
+				sb.append('_');
+			}
+			sb.append(Character.isLetterOrDigit(c) ? Character.toUpperCase(c) : '_');
+		}
+		return sb.toString();
+	}
+
+	private static String getGuard(String fileName) {
+		return getMacroName(fileName).concat("_");
+	}
+
+	private static String quote(String s) {
+		byte[] data;
+		try {
+			data = s.getBytes("UTF8");
+		} catch (IOException e) {
+			throw new RuntimeException(e.toString());
+		}
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < data.length; i++) {
+			int c = data[i] & 0xFF;
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append((char) c);
+			} else
+			if (c < ' ' || c > '~') {
+				//non ASCII characters as octal escapes of the UTF-8 bytes
+				String octal = Integer.toOctalString(c);
+				sb.append('\\').append("000".substring(octal.length())).append(octal);
+			} else {
+				sb.append((char) c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ChannelSink.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes the data to the channel of the output stream. The file output can be
+ * patched in place and the embedded files are copied without a copy on the heap.
+ */
+public class ChannelSink implements OutputSink {
+	private WritableByteChannel channel;
+	private FileChannel fileChannel;	//null if the output can't be patched in place
+
+	public ChannelSink(OutputStream os) {
+		if (os instanceof FileOutputStream) {
+			fileChannel = ((FileOutputStream) os).getChannel();
+			channel = fileChannel;
+		} else {
+			channel = Channels.newChannel(os);
+		}
+	}
+
+	public void write(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			channel.write(data);
+		}
+	}
+
+	public void transferFrom(FileChannel source, long size) throws IOException {
+		long pos = 0;
+		while (pos < size) {
+			long n = source.transferTo(pos, size - pos, channel);
+			if (n <= 0) {
+				throw new EOFException("file truncated at " + pos + " bytes, expected " + size);
+			}
+			pos += n;
+		}
+	}
+
+	public boolean canPatch() {
+		return fileChannel != null;
+	}
+
+	public void patch(long position, ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			position += fileChannel.write(data, position);
+		}
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,139 @@
+/*
+CommentFilter.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.IOException;
+
+/**
+ * Pipeline stage that removes empty lines and comments and joins the lines
+ * continued by a backslash (including the multi-line strings).
+ */
+public class CommentFilter implements LineSource {
+	private LineSource source;
+	private String commentDef;
+	private CompileStats stats;
+
+	public CommentFilter(LineSource source, String commentDef) {
+		this.source = source;
+		this.commentDef = commentDef;
+	}
+
+	/**
+	 * @param stats the time spent in the filter is charged to it, can be null
+	 */
+	public CommentFilter(LineSource source, String commentDef, CompileStats stats) {
+		this(source, commentDef);
+		this.stats = stats;
+	}
+
+	public LineItem nextLine() throws IOException {
+		if (stats == null) {
+			return filterLine();
+		}
+		int phase = stats.enter(CompileStats.PHASE_COMMENTS);
+		try {
+			return filterLine();
+		} finally {
+			stats.leave(phase);
+		}
+	}
+
+	private LineItem filterLine() throws IOException {
+		LineItem li = source.nextLine();
+		while (li != null) {
+			if (li.header != null) {
+				return li;
+			}
+			String line  = li.line;
+			if (!Utils.isWhiteSpace(line) && !line.startsWith(commentDef)) {
+				return new LineItem(joinLines(li), li.number, li.source);
+			}
+			li = source.nextLine();
+		}
+		return null;
+	}
+
+	private String joinLines(LineItem li) throws IOException {
+		String line = Utils.removeComment(li.line, commentDef);
+		boolean multilineString = false;
+		if (line.endsWith("\\")) {
+			//check whether the '=' is present, and if so then handle string quotes
+			int indexEqualSign = line.indexOf('=');
+			int indexQuote = line.indexOf('"');
+			if (indexEqualSign > 0 && indexQuote > 0 && indexEqualSign < indexQuote) {
+				String line2 = line.substring(indexEqualSign + 1, line.length() - 1).trim();
+				// the string has both front and back quotes
+				if (Utils.hasQuotes(line2)) {
+					line2 = Utils.removeQuotes(line2);
+					//reassemble the original line without quotes but keep the backslash
+					String line3 = line.substring(0, indexEqualSign + 1);
+					line = line3.concat(line2).concat("\\");
+					multilineString = true;
+				}
+			}
+		}
+		while (line.endsWith("\\")) {
+			line = line.substring(0, line.length() - 1);
+			line = line.trim();
+			LineItem li2 = source.nextLine();
+			if (li2 == null) {
+				throw new IllegalArgumentException(" syntax error at line:" + li.number);
+			}
+			String line2 =  li2.line;
+			if (Utils.isWhiteSpace(line2) || line.startsWith(commentDef)) {
+				throw new IllegalArgumentException(" syntax error at line:" + li2.number);
+			}
+			int index2 = line2.indexOf(commentDef);
+			if (index2 > 0) {
+				line2 = line2.substring(0, index2);
+			}
+			line2 = line2.trim();
+			boolean hasBackslah = line.endsWith("\\");
+			if (hasBackslah) {
+				line2 = line2.substring(0, line.length() - 1);
+				line2 = line2.trim();
+				boolean quotesExist = Utils.hasQuotes(line2);
+				if (quotesExist) {
+					line2 = Utils.removeQuotes(line2);
+					line = line.concat(line2).concat("\\");
+				} else {
+					line = line.concat(" ").concat(line2).concat("\\");
+				}
+			} else {
+				boolean quotesExist = Utils.hasQuotes(line2);
+				if (quotesExist) {
+					line2 = Utils.removeQuotes(line2);
+					line = line.concat(line2);
+				} else  {
+					line = line.concat(" ").concat(line2);
+				}
+			}
+		}
+
+		if (multilineString) {
+			// wrap the text string in quotes
+			int indexEqualSign = line.indexOf('=');
+			String line2 = line.substring(0, indexEqualSign + 1).concat("\"");
+			String line3 = line.substring(indexEqualSign + 1).concat("\"");
+
+			line = line2.concat(line3);
+		}
+		return line;
+	}
+}
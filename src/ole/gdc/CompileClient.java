@@ -0,0 +1,112 @@
+/*
+CompileClient.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Vector;
+
+/**
+ * Sends the compile request to the CompileServer. Takes the same arguments as
+ * the DataCompiler, the files are compiled locally when the daemon is not running.
+ * The request carries the token from the token file of the daemon in the home directory.
+ * Extra arguments:
+ * -port=N : port of the daemon
+ * -stop : stop the daemon
+ */
+public class CompileClient {
+
+	public static void main(String[] args) {
+		args = Utils.getArguments(args);
+		int port = CompileServer.DEFAULT_PORT;
+		String command = CompileServer.COMMAND_COMPILE;
+		Vector compilerArgs = new Vector();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("-port=")) {
+				port = Integer.parseInt(arg.substring(6));
+			} else
+			if (arg.equals("-stop")) {
+				command = CompileServer.COMMAND_STOP;
+			} else {
+				compilerArgs.add(arg);
+			}
+		}
+		args = new String[compilerArgs.size()];
+		compilerArgs.toArray(args);
+
+		int result;
+		try {
+			String token = CompileServer.readToken();
+			//the daemon creates the token file, there is no daemon of this user without it
+			if (token == null) {
+				throw new ConnectException("no token file " + CompileServer.getTokenFile().getPath());
+			}
+			result = send(port, token, command, System.getProperty("user.dir"), args);
+		} catch (ConnectException e) {
+			if (command.equals(CompileServer.COMMAND_STOP)) {
+				return;
+			}
+			//no daemon -> compile in this process
+			result = DataCompiler.compile(args, null, new CompileContext());
+		} catch (IOException e) {
+			System.out.println(e);
+			result = -1;
+		}
+		if (result != 0) {
+			System.exit(result);
+		}
+	}
+
+	/**
+	 * Sends the request and prints the messages of the compiler.
+	 * @param token the token of the daemon, see CompileServer.readToken()
+	 * @return exit code of the compiler
+	 */
+	public static int send(int port, String token, String command, String workDir, String[] args) throws IOException {
+		Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeUTF(token);
+			out.writeUTF(command);
+			out.writeUTF(workDir);
+			out.writeInt(args.length);
+			for (int i = 0; i < args.length; i++) {
+				out.writeUTF(args[i]);
+			}
+			out.flush();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			int result = in.readInt();
+			byte[] log = new byte[in.readInt()];
+			in.readFully(log);
+			System.out.write(log);
+			System.out.flush();
+			return result;
+		} finally {
+			socket.close();
+		}
+	}
+}
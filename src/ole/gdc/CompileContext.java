@@ -0,0 +1,225 @@
+/*
+CompileContext.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Options and state of a single compilation. Each compilation has its own
+ * context, so more compilations can run in one JVM at the same time.
+ */
+public class CompileContext {
+	public static final String SINK_MAPPED = "mapped";
+	public static final String SINK_ASYNC = "async";
+
+	//options
+	public boolean useIntegerArraySize;
+	public boolean useLongFileSize;	//size of the embedded file is stored as long
+	public boolean useWarningsAsErrors;
+	public boolean warnInConversion;	//unsigned values stored in signed types
+	public boolean verbose;
+	public boolean streaming;	//compile while reading the input, don't load the whole script
+	public boolean littleEndian;
+	public int alignment;		//maximum alignment of the values (1, 2, 4 or 8), 0 to pack them
+	public int compressBlockSize;	//compress the output in blocks of this size, 0 to not compress it
+	public boolean useStringPool;	//store the offset of the string in the string pool instead of the string
+	public int stringEncoding;	//StringEncoder.UTF8, LATIN1, UTF16LE, UTF16BE or SMALLEST
+	public String outputSink;	//SINK_MAPPED or SINK_ASYNC, null to write the output stream directly
+	public String commentDef = "//";
+	public String encoding;
+	public String symbols;		//preprocessor symbols separated by comma
+	public Vector includeDirs = new Vector();
+	public PrintStream out = System.out;	//warnings and errors
+	public IncludeCache includeCache;	//lines of the included files shared by more compilations, can be null
+	public String depFile;			//name of the dependency file, null to use the writeDepFiles option
+	public boolean writeDepFiles;		//write the dependencies of each output into output.dep
+	public boolean phonyDeps;		//add an empty rule for each dependency
+	public boolean skipUnchanged;		//don't rewrite the output when its contents would not change
+	public String pchDir;			//directory of the precompiled headers, null to read the included files each time
+	public String headerFile;		//C header with the constants and struct layouts, null to not write it
+	public boolean writeStats;		//print the statistics and write them into output.stats.json
+	public int blockThreads = 1;		//threads encoding the top-level blocks (see ParallelEncoder)
+	public int prefetchThreads;		//threads reading the included files ahead, 0 to read them when included
+
+	//compilation state
+	HashMap elements = new HashMap();
+	HashMap constants = new HashMap();
+	HashMap structs = new HashMap();
+	int lineNumber;
+	LineItem li;
+	Dependencies dependencies = new Dependencies();
+	CompileStats stats;	//null unless writeStats is set
+	StringPool stringPool;	//null unless useStringPool is set
+
+	public CompileContext() {
+	}
+
+	/**
+	 * Creates a new context with the same options as the 'options' context.
+	 */
+	public CompileContext(CompileContext options) {
+		useIntegerArraySize = options.useIntegerArraySize;
+		useLongFileSize = options.useLongFileSize;
+		useWarningsAsErrors = options.useWarningsAsErrors;
+		warnInConversion = options.warnInConversion;
+		verbose = options.verbose;
+		streaming = options.streaming;
+		littleEndian = options.littleEndian;
+		alignment = options.alignment;
+		compressBlockSize = options.compressBlockSize;
+		useStringPool = options.useStringPool;
+		stringEncoding = options.stringEncoding;
+		outputSink = options.outputSink;
+		commentDef = options.commentDef;
+		encoding = options.encoding;
+		symbols = options.symbols;
+		includeDirs = new Vector(options.includeDirs);
+		out = options.out;
+		includeCache = options.includeCache;
+		depFile = options.depFile;
+		writeDepFiles = options.writeDepFiles;
+		phonyDeps = options.phonyDeps;
+		skipUnchanged = options.skipUnchanged;
+		pchDir = options.pchDir;
+		writeStats = options.writeStats;
+		headerFile = options.headerFile;
+		blockThreads = options.blockThreads;
+		prefetchThreads = options.prefetchThreads;
+	}
+
+	/**
+	 * Clears the data elements, constants and structs and stores the preprocessor symbols as constants.
+	 */
+	void createElements() {
+		elements = new HashMap();
+		constants = new HashMap();
+		structs = new HashMap();
+		lineNumber = 0;
+		li = null;
+		dependencies = new Dependencies();
+		stats = null;
+		stringPool = useStringPool ? new StringPool(stringEncoding, littleEndian) : null;
+		if (writeStats) {
+			final CompileStats s = new CompileStats();
+			stats = s;
+			//count the constant lookups
+			constants = new HashMap() {
+				public Object get(Object key) {
+					//the lookups of the parallel blocks are counted too
+					synchronized (s) {
+						s.constantLookups++;
+					}
+					return super.get(key);
+				}
+			};
+		}
+
+		//parse preprocessor symbols and store them as constants
+		if (symbols != null) {
+			LineItem item = new LineItem(symbols, 0, "preprocessor symbols");
+			String[] symParts = DataCompiler.split(symbols, ',', false);
+			for (int i = 0; i < symParts.length; i++) {
+				addConstant(symParts[i], item);
+			}
+		}
+	}
+
+	/**
+	 * @return the options that change the output; the output must be rebuilt when they change
+	 */
+	String getOutputOptions() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("symbols=").append(symbols == null ? "" : symbols).append('\n');
+		sb.append("includeDirs=").append(includeDirs).append('\n');
+		sb.append("commentDef=").append(commentDef).append('\n');
+		sb.append("encoding=").append(encoding == null ? "" : encoding).append('\n');
+		sb.append("flags=");
+		if (littleEndian) {
+			sb.append(" -le");
+		}
+		if (useIntegerArraySize) {
+			sb.append(" -ias");
+		}
+		if (useLongFileSize) {
+			sb.append(" -lfs");
+		}
+		if (useWarningsAsErrors) {
+			sb.append(" -Werror");
+		}
+		if (warnInConversion) {
+			sb.append(" -Wconversion");
+		}
+		if (alignment != 0) {
+			sb.append(" -align=").append(alignment);
+		}
+		if (useStringPool) {
+			sb.append(" -strpool");
+		}
+		if (stringEncoding != StringEncoder.UTF8) {
+			sb.append(" -strenc=").append(StringEncoder.NAMES[stringEncoding]);
+		}
+		if (compressBlockSize != 0) {
+			sb.append(" -compress=").append(compressBlockSize);
+		}
+		//the #defines are ordered differently when streaming
+		if (streaming) {
+			sb.append(" -stream");
+		}
+		sb.append('\n');
+		return sb.toString();
+	}
+
+	void addConstant(String line, LineItem item) {
+		String[] bits = Utils.split(line, "= \t");
+		//Symbols without a value are boolean data elements set to true
+		if (bits.length == 1) {
+			DataElement de = new DataElement(bits[0], DataElement.TYPE_BYTE, item);
+			de.value = "1";	//means true
+			constants.put(de.name, de);
+			//note: we don't do element check here as boolean duplicates of the elements in pp symbols are ok ;
+		} else
+		{
+			if (bits[1].startsWith("\"")) {
+				int index = line.indexOf('=');
+				if (index > 0) {
+					bits[1] = line.substring(index + 1).trim();
+				}
+			}
+			DataElement de = new DataElement(bits[0], bits[1], item, this);
+			//By default preprocessor symbols are treated as resolved - cannot contain expression
+			de.checkedForExpression = true;
+			DataElement old = (DataElement) constants.put(de.name, de);
+			checkElements(de, old);
+		}
+	}
+
+	void checkElements(DataElement newElement, DataElement oldElement) {
+		if (oldElement == null) {
+			return;
+		}
+		String msg = "data element '" + newElement.name + "'  redefined in " + li.getSource() + " previous definition is in " + oldElement.sourceLine.getSource();
+		if (useWarningsAsErrors) {
+			throw new IllegalArgumentException(msg);
+		} else {
+			out.println( "Warning: " + msg );
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+CompileServer.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compile daemon. Listens on a localhost port and compiles the files sent by
+ * the CompileClient, so the JVM start and the JIT warm-up is paid only once.
+ * The requests are handled concurrently, the included files are cached between them.
+ * Any local user can connect to the port, so the requests must carry the token
+ * stored in the TOKEN_FILE in the home directory, which only its owner can read.
+ *
+ * Request: token (UTF), command (UTF), working directory (UTF), number of arguments (int), arguments (UTF)
+ * Response: exit code (int), length of the messages (int), messages (bytes)
+ */
+public class CompileServer {
+	public static final int DEFAULT_PORT = 7823;
+
+	static final String COMMAND_COMPILE = "compile";
+	static final String COMMAND_STOP = "stop";
+	static final String TOKEN_FILE = ".gdc-daemon-token";
+
+	private ServerSocket serverSocket;
+	private byte[] token;
+	private ExecutorService pool;
+	private IncludeCache includeCache = new IncludeCache();
+
+	public CompileServer(int port) throws IOException {
+		token = createToken().getBytes("UTF-8");
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		pool = Executors.newCachedThreadPool();
+	}
+
+	static File getTokenFile() {
+		return new File(System.getProperty("user.home"), TOKEN_FILE);
+	}
+
+	/**
+	 * @return the token of the user's daemons, null if there is no token file
+	 */
+	static String readToken() throws IOException {
+		File f = getTokenFile();
+		if (!f.isFile()) {
+			return null;
+		}
+		byte[] b = new byte[(int) f.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			in.readFully(b);
+		} finally {
+			in.close();
+		}
+		return new String(b, "UTF-8").trim();
+	}
+
+	/*
+	 * Reads the token or creates the token file readable only by its owner.
+	 * The daemons of the user listening on other ports share the token.
+	 */
+	private static String createToken() throws IOException {
+		File f = getTokenFile();
+		String t = readToken();
+		if (t != null && t.length() > 0) {
+			if (!setOwnerOnly(f)) {
+				throw new IOException("can't restrict the access to the token file " + f.getPath());
+			}
+			return t;
+		}
+		f.delete();
+		//the permissions are set before the token is written
+		if (!f.createNewFile() || !setOwnerOnly(f)) {
+			throw new IOException("can't create the token file " + f.getPath());
+		}
+		byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < random.length; i++) {
+			sb.append(Integer.toHexString((random[i] & 0xFF) | 0x100).substring(1));
+		}
+		t = sb.toString();
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			fos.write(t.getBytes("UTF-8"));
+		} finally {
+			fos.close();
+		}
+		return t;
+	}
+
+	private static boolean setOwnerOnly(File f) {
+		return f.setReadable(false, false) && f.setWritable(false, false) && f.setExecutable(false, false)
+				&& f.setReadable(true, true) && f.setWritable(true, true);
+	}
+
+	public static void main(String[] args) {
+		args = Utils.getArguments(args);
+		int port = DEFAULT_PORT;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].startsWith("-daemon=")) {
+				port = Integer.parseInt(args[i].substring(8));
+			}
+		}
+		try {
+			CompileServer server = new CompileServer(port);
+			System.out.println("DataCompiler daemon listening on port " + port);
+			server.run();
+		} catch (IOException e) {
+			System.out.println(e);
+			System.exit(-1);
+		}
+	}
+
+	public void run() {
+		try {
+			while (!serverSocket.isClosed()) {
+				final Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (IOException e) {
+					//the socket was closed by the stop request
+					if (serverSocket.isClosed()) {
+						break;
+					}
+					System.out.println(e);
+					continue;
+				}
+				pool.execute(new Runnable() {
+					public void run() {
+						handle(socket);
+					}
+				});
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public void stop() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private void handle(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			byte[] requestToken = in.readUTF().getBytes("UTF-8");
+			String command = in.readUTF();
+			String workDir = in.readUTF();
+			String[] args = new String[in.readInt()];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = in.readUTF();
+			}
+
+			ByteArrayOutputStream log = new ByteArrayOutputStream();
+			int result = 0;
+			if (!MessageDigest.isEqual(token, requestToken)) {
+				new PrintStream(log, true).println("invalid token, the request is ignored");
+				result = -1;
+			} else
+			if (command.equals(COMMAND_STOP)) {
+				stop();
+			} else
+			if (command.equals(COMMAND_COMPILE)) {
+				CompileContext options = new CompileContext();
+				options.out = new PrintStream(log, true);
+				options.includeCache = includeCache;
+				try {
+					result = DataCompiler.compile(args, new File(workDir), options);
+				} catch (Exception e) {
+					options.out.println(e);
+					result = -1;
+				}
+			} else {
+				new PrintStream(log, true).println("unknown command: " + command);
+				result = -1;
+			}
+			out.writeInt(result);
+			out.writeInt(log.size());
+			log.writeTo(out);
+			out.flush();
+		} catch (IOException e) {
+			System.out.println(e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/*
+CompileStats.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Statistics of a single compilation (-stats). The phases interleave when the
+ * lines are read on demand, so each phase is charged only the time spent in its
+ * own code: the time of the preprocessor called from the comment filter goes to
+ * the preprocessor, the embedded files are not part of the encoding time etc.
+ */
+public class CompileStats {
+	public static final int PHASE_OTHER = 0;	//options, output file handling
+	public static final int PHASE_PREPROCESS = 1;	//reading the files, directives, includes
+	public static final int PHASE_COMMENTS = 2;	//comment removal, line joining
+	public static final int PHASE_PARSE = 3;
+	public static final int PHASE_ENCODE = 4;
+	public static final int PHASE_EMBED = 5;	//embedded files
+
+	private static final String[] PHASE_NAMES = {"other", "preprocess", "comments", "parse", "encode", "embed"};
+
+	//bytes of the element counters '{#}' are reported as this type
+	static final int TYPE_COUNTER = 255;
+	//padding of the aligned structs and offset tables
+	static final int TYPE_PADDING = 254;
+	//the string pool (-strpool)
+	static final int TYPE_POOL = 253;
+
+	//the heap use is sampled at the phase changes, at most once in this time
+	private static final long HEAP_SAMPLE_INTERVAL = 1000000L;
+
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private static final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+
+	private long[] wallTime = new long[PHASE_NAMES.length];
+	private long[] cpuTime = new long[PHASE_NAMES.length];
+	private int phase = PHASE_OTHER;
+	private long phaseWallStart;
+	private long phaseCpuStart;
+	private long startTime;
+	private long endTime;
+	private long heapSampleTime;
+	private long peakHeap;		//highest heap use seen during the compilation
+
+	long lines;		//lines read by the preprocessor
+	long includes;		//included files, including the precompiled ones
+	long constantLookups;
+	private long[] typeBytes = new long[256];
+
+	public void start() {
+		startTime = System.nanoTime();
+		phaseWallStart = startTime;
+		phaseCpuStart = getCpuTime();
+		sampleHeap(startTime);
+	}
+
+	public void finish() {
+		enter(PHASE_OTHER);
+		endTime = System.nanoTime();
+		sampleHeap(endTime);
+	}
+
+	/**
+	 * Charges the time since the last change to the current phase and switches to the new phase.
+	 * @return the previous phase, pass it to leave()
+	 */
+	public int enter(int newPhase) {
+		long wall = System.nanoTime();
+		long cpu = getCpuTime();
+		wallTime[phase] += wall - phaseWallStart;
+		cpuTime[phase] += cpu - phaseCpuStart;
+		phaseWallStart = wall;
+		phaseCpuStart = cpu;
+		if (wall - heapSampleTime >= HEAP_SAMPLE_INTERVAL) {
+			sampleHeap(wall);
+		}
+		int previous = phase;
+		phase = newPhase;
+		return previous;
+	}
+
+	public void leave(int previousPhase) {
+		enter(previousPhase);
+	}
+
+	void addBytes(int type, long bytes) {
+		typeBytes[type & 0xFF] += bytes;
+	}
+
+	/**
+	 * Adds the times and the bytes of the block encoded by another thread (-bj),
+	 * so the phase times are the sum over all threads.
+	 */
+	void add(CompileStats other) {
+		for (int i = 0; i < PHASE_NAMES.length; i++) {
+			wallTime[i] += other.wallTime[i];
+			cpuTime[i] += other.cpuTime[i];
+		}
+		for (int i = 0; i < typeBytes.length; i++) {
+			typeBytes[i] += other.typeBytes[i];
+		}
+		peakHeap = Math.max(peakHeap, other.peakHeap);
+	}
+
+	private static long getCpuTime() {
+		if (threadBean.isCurrentThreadCpuTimeSupported()) {
+			return threadBean.getCurrentThreadCpuTime();
+		}
+		return 0;
+	}
+
+	/**
+	 * Records the current heap use. The heap is shared by the compilations
+	 * running at the same time, so their data is part of the peak too.
+	 */
+	private void sampleHeap(long now) {
+		heapSampleTime = now;
+		peakHeap = Math.max(peakHeap, memoryBean.getHeapMemoryUsage().getUsed());
+	}
+
+	private static String getTypeName(int type) {
+		switch (type) {
+			case DataElement.TYPE_BYTE: return "byte";
+			case DataElement.TYPE_SHORT: return "short";
+			case DataElement.TYPE_INT: return "int";
+			case DataElement.TYPE_LONG: return "long";
+			case DataElement.TYPE_FILE: return "file";
+			case DataElement.TYPE_FLOAT: return "float";
+			case DataElement.TYPE_DOUBLE: return "double";
+			case DataElement.TYPE_BYTE_ARRAY: return "byte[]";
+			case DataElement.TYPE_SHORT_ARRAY: return "short[]";
+			case DataElement.TYPE_INT_ARRAY: return "int[]";
+			case DataElement.TYPE_LONG_ARRAY: return "long[]";
+			case DataElement.TYPE_FLOAT_ARRAY: return "float[]";
+			case DataElement.TYPE_DOUBLE_ARRAY: return "double[]";
+			case DataElement.TYPE_STRING: return "string";
+			case DataElement.TYPE_STRUCT: return "struct";
+			case TYPE_COUNTER: return "counter";
+			case TYPE_PADDING: return "padding";
+			case TYPE_POOL: return "pool";
+		}
+		return "type" + type;
+	}
+
+	private static String ms(long nanos) {
+		return String.valueOf(nanos / 100000 / 10.0);
+	}
+
+	/**
+	 * Prints the human readable summary.
+	 */
+	public void print(PrintStream out, String inFileName) {
+		long wall = endTime - startTime;
+		long cpu = 0;
+		for (int i = 0; i < cpuTime.length; i++) {
+			cpu += cpuTime[i];
+		}
+		out.println("stats: " + inFileName + " : " + ms(wall) + " ms wall, " + ms(cpu) + " ms cpu");
+		for (int i = 0; i < PHASE_NAMES.length; i++) {
+			out.println("  " + pad(PHASE_NAMES[i], 12) + pad(ms(wallTime[i]), 10) + " ms wall " + pad(ms(cpuTime[i]), 10) + " ms cpu");
+		}
+		out.println("  lines: " + lines + ", includes: " + includes + ", constant lookups: " + constantLookups);
+		StringBuilder sb = new StringBuilder("  bytes:");
+		long total = 0;
+		for (int i = 0; i < typeBytes.length; i++) {
+			if (typeBytes[i] > 0) {
+				sb.append(' ').append(getTypeName(i)).append('=').append(typeBytes[i]);
+				total += typeBytes[i];
+			}
+		}
+		out.println(sb.append(" total=").append(total));
+		out.println("  peak heap: " + peakHeap / 1024 + " KB");
+	}
+
+	private static String pad(String s, int width) {
+		StringBuilder sb = new StringBuilder(s);
+		while (sb.length() < width) {
+			sb.append(' ');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the statistics as a JSON object. Times are in milliseconds.
+	 */
+	public void writeJson(File f, String inFileName, String outFileName, boolean success) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"input\": ").append(quote(inFileName)).append(",\n");
+		sb.append("  \"output\": ").append(quote(outFileName)).append(",\n");
+		sb.append("  \"success\": ").append(success).append(",\n");
+		long cpu = 0;
+		for (int i = 0; i < cpuTime.length; i++) {
+			cpu += cpuTime[i];
+		}
+		sb.append("  \"wallTimeMs\": ").append(ms(endTime - startTime)).append(",\n");
+		sb.append("  \"cpuTimeMs\": ").append(ms(cpu)).append(",\n");
+		sb.append("  \"phases\": {");
+		for (int i = 0; i < PHASE_NAMES.length; i++) {
+			sb.append(i == 0 ? "\n" : ",\n");
+			sb.append("    ").append(quote(PHASE_NAMES[i])).append(": {\"wallTimeMs\": ").append(ms(wallTime[i]));
+			sb.append(", \"cpuTimeMs\": ").append(ms(cpuTime[i])).append('}');
+		}
+		sb.append("\n  },\n");
+		sb.append("  \"lines\": ").append(lines).append(",\n");
+		sb.append("  \"includes\": ").append(includes).append(",\n");
+		sb.append("  \"constantLookups\": ").append(constantLookups).append(",\n");
+		sb.append("  \"bytes\": {");
+		boolean first = true;
+		for (int i = 0; i < typeBytes.length; i++) {
+			if (typeBytes[i] > 0) {
+				sb.append(first ? "\n" : ",\n");
+				sb.append("    ").append(quote(getTypeName(i))).append(": ").append(typeBytes[i]);
+				first = false;
+			}
+		}
+		sb.append(first ? "},\n" : "\n  },\n");
+		sb.append("  \"peakHeapBytes\": ").append(peakHeap).append('\n');
+		sb.append("}\n");
+		Dependencies.writeIfChanged(f, sb.toString());
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else
+			if (c < ' ') {
+				String hex = Integer.toHexString(c);
+				sb.append("\\u").append("0000".substring(hex.length())).append(hex);
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -18,134 +18,385 @@ General Public License for more details.
 
 package ole.gdc;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.StringTokenizer;
+import java.io.PrintStream;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class DataCompiler {
 	
 	private static final String VERSION = "1.0";
 	
-	public static boolean useIntegerArraySize;
-	public static boolean useWarningsAsErrors;
-	public static boolean warnInConversion ;	//unsigned values stored in signed types 
-	public static boolean verbose;
-	public static String commentDef = "//";
+	private CompileContext context;
 	
-	public static boolean littleEndian = false;
-	
-	public static int lineNumber;
-	public static LineItem li;
+	public DataCompiler(CompileContext context) {
+		this.context = context;
+	}
 	
-	private static HashMap elements;
-	private static HashMap constants;
-	private static Vector includeDirs;
-	private static HashMap structs;
+	public CompileContext getContext() {
+		return context;
+	}
 	
 	public static void main(String[] args) {
 		args = Utils.getArguments(args);
-		
-		String inFile = null;
-		String outFile = null;
-		String encoding = null;
-		String symbols = null;
-		includeDirs = new Vector();
+		for (int i = 0; i < args.length; i++) {
+			//run as a daemon
+			if (args[i].equals("-daemon") || args[i].startsWith("-daemon=")) {
+				CompileServer.main(args);
+				return;
+			}
+		}
+		int result = compile(args, null, new CompileContext());
+		if (result != 0) {
+			System.exit(result);
+		}
+	}
+	
+	/**
+	 * Compiles the files given by the command line arguments.
+	 * @param workDir directory the relative file names are resolved against, null for the current directory
+	 * @param options initial options, the messages are printed into its output stream
+	 * @return exit code - 0 on success, -1 on error
+	 */
+	public static int compile(String[] args, File workDir, CompileContext options) {
+		PrintStream out = options.out;
+		Vector inFiles = new Vector();
+		Vector outFiles = new Vector();
+		String manifest = null;
+		int threads = Runtime.getRuntime().availableProcessors();
 		for (int i = 0; i < args.length; i++) {
 			String arg = args[i]; 
 			if (arg.startsWith("-i=")) {
-				inFile = arg.substring(3);
+				inFiles.add(resolvePath(workDir, arg.substring(3)));
 			} else
 			if (arg.startsWith("-o=")) {
-				outFile = arg.substring(3);
+				outFiles.add(resolvePath(workDir, arg.substring(3)));
+			} else
+			if (arg.startsWith("-manifest=")) {
+				manifest = resolvePath(workDir, arg.substring(10));
+			} else
+			if (arg.startsWith("-MF=")) {
+				options.depFile = resolvePath(workDir, arg.substring(4));
+			} else
+			if (arg.equals("-MD")) {
+				options.writeDepFiles = true;
+			} else
+			if (arg.equals("-MP")) {
+				options.phonyDeps = true;
+			} else
+			if (arg.equals("-skip-unchanged")) {
+				options.skipUnchanged = true;
+			} else
+			if (arg.startsWith("-pch=")) {
+				options.pchDir = resolvePath(workDir, arg.substring(5));
+			} else
+			if (arg.startsWith("-h=")) {
+				options.headerFile = resolvePath(workDir, arg.substring(3));
+			} else
+			if (arg.equals("-stats")) {
+				options.writeStats = true;
+			} else
+			if (arg.startsWith("-j=")) {
+				threads = Integer.parseInt(arg.substring(3));
+			} else
+			if (arg.startsWith("-bj=")) {
+				options.blockThreads = Integer.parseInt(arg.substring(4));
+			} else
+			//read the included files ahead
+			if (arg.equals("-prefetch")) {
+				options.prefetchThreads = Runtime.getRuntime().availableProcessors();
+			} else
+			if (arg.startsWith("-prefetch=")) {
+				options.prefetchThreads = Integer.parseInt(arg.substring(10));
 			} else
 			if (arg.startsWith("-cd=")) {
-				commentDef = arg.substring(4);
+				options.commentDef = arg.substring(4);
 			} else
 			if (arg.startsWith("-enc=")) {
-				encoding = fixEncoding(arg.substring(5));
+				options.encoding = fixEncoding(arg.substring(5));
 			} else
 			if (arg.startsWith("-charset=")) {
-				encoding = fixEncoding(arg.substring(9));
+				options.encoding = fixEncoding(arg.substring(9));
 			} else
 			//preprocessor symbols - treat them as constants
 			if (arg.startsWith("-pp=")) {
 				String s = arg.substring(4);
-				if (symbols == null) {
-					symbols = s;
+				if (options.symbols == null) {
+					options.symbols = s;
 				}
 				//append symbols
 				else {
-					symbols += "," + s;
+					options.symbols += "," + s;
 				}
 			} else
 			if (arg.startsWith("-D")) {
 				String s = arg.substring(2);
-				if (symbols == null) {
-					symbols = s;
+				if (options.symbols == null) {
+					options.symbols = s;
 				}
 				//append symbols
 				else {
-					symbols += "," + s;
+					options.symbols += "," + s;
 				}
 			} else
 			//integer array size
 			if (arg.equals("-ias")) {
-				useIntegerArraySize = true;
+				options.useIntegerArraySize = true;
+			} else
+			//long file size
+			if (arg.equals("-lfs")) {
+				options.useLongFileSize = true;
 			} else
 			//little endian
 			if (arg.equals("-le")) {
-				littleEndian = true;
+				options.littleEndian = true;
+			} else
+			//natural alignment of the values
+			if (arg.equals("-align")) {
+				options.alignment = 8;
+			} else
+			if (arg.startsWith("-align=")) {
+				int alignment = Integer.parseInt(arg.substring(7));
+				if (alignment != 1 && alignment != 2 && alignment != 4 && alignment != 8) {
+					out.println("-align must be 1, 2, 4 or 8");
+					return -1;
+				}
+				options.alignment = alignment;
+			} else
+			//output sink
+			if (arg.startsWith("-sink=")) {
+				String sink = arg.substring(6);
+				if (sink.equals("direct")) {
+					options.outputSink = null;
+				} else
+				if (sink.equals(CompileContext.SINK_MAPPED) || sink.equals(CompileContext.SINK_ASYNC)) {
+					options.outputSink = sink;
+				} else {
+					out.println("unknown sink: " + sink + ", use direct, mapped or async");
+					return -1;
+				}
+			} else
+			//strings in the string pool
+			if (arg.equals("-strpool")) {
+				options.useStringPool = true;
+			} else
+			//encoding of the strings
+			if (arg.startsWith("-strenc=")) {
+				options.stringEncoding = StringEncoder.getEncoding(arg.substring(8));
+				if (options.stringEncoding < 0) {
+					out.println("unknown string encoding: " + arg.substring(8) + ", use utf8, latin1, utf16le, utf16be or smallest");
+					return -1;
+				}
+			} else
+			//compressed output
+			if (arg.equals("-compress")) {
+				options.compressBlockSize = BlockCompressor.DEFAULT_BLOCK_SIZE;
+			} else
+			if (arg.startsWith("-compress=")) {
+				int blockSize = Integer.parseInt(arg.substring(10));
+				if (blockSize < 1024 || blockSize > 64 * 1024 * 1024) {
+					out.println("-compress block size must be between 1024 and 67108864 bytes");
+					return -1;
+				}
+				options.compressBlockSize = blockSize;
+			} else
+			//streaming mode
+			if (arg.equals("-stream")) {
+				options.streaming = true;
 			} else			//verbose mode 
 			if (arg.equals("-v")) {
-				verbose = true;
+				options.verbose = true;
 			} else
 			//Make all warnings into errors. 
 			if (arg.equals("-Werror")) {
-				useWarningsAsErrors = true;
+				options.useWarningsAsErrors = true;
 			} else			
 			//warn if unsigned values are stored in the signed data types  
 			if (arg.equals("-Wconversion")) {
-				warnInConversion = true;
+				options.warnInConversion = true;
 			} else			
 			//add include directory. 
 			if (arg.startsWith("-I")) {
-				includeDirs.add(arg.substring(2));
+				options.includeDirs.add(resolvePath(workDir, arg.substring(2)));
 			}			
 		}
-		if (encoding != null && verbose) {
-			System.out.println("encoding=" + encoding);
+		if (options.encoding != null && options.verbose) {
+			out.println("encoding=" + options.encoding);
+		}
+		if (manifest != null) {
+			try {
+				readManifest(manifest, workDir, inFiles, outFiles);
+			} catch (IOException e) {
+				out.println(e);
+				return -1;
+			}
+		}
+		if (inFiles.size() < 1 || inFiles.size() != outFiles.size() || threads < 1 || options.blockThreads < 1 || options.prefetchThreads < 0) {
+			printHelp(out);
+			return -1;
+		}
+		if (options.depFile != null && inFiles.size() > 1) {
+			out.println("-MF can be used with a single input file only, use -MD instead");
+			return -1;
 		}
-		if (inFile == null || outFile == null) {
-			printHelp();
-			System.exit(-1);
+		if (options.headerFile != null && inFiles.size() > 1) {
+			out.println("-h can be used with a single input file only");
+			return -1;
 		}
-		if (verbose) {
-			Utils.printInfo("DataCompiler:", args);
+		if (CompileContext.SINK_MAPPED.equals(options.outputSink) && options.compressBlockSize > 0) {
+			out.println("-sink=mapped can't be used with -compress, use -sink=async instead");
+			return -1;
+		}
+		if (options.verbose) {
+			Utils.printInfo(out, "DataCompiler:", args);
+		}
+		boolean result;
+		if (inFiles.size() == 1) {
+			result = new DataCompiler(options).run((String) inFiles.elementAt(0), (String) outFiles.elementAt(0));
+		} else {
+			result = runAll(options, inFiles, outFiles, threads);
+		}
+		return result ? 0 : -1;
+	}
+	
+	/*
+	 * Reads the input and output file pairs from the manifest. Each line contains
+	 * the input file name and the output file name separated by a space or tab.
+	 */
+	private static void readManifest(String fileName, File workDir, Vector inFiles, Vector outFiles) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = Utils.removeComment(line, "//");
+				if (line.length() < 1) {
+					continue;
+				}
+				String[] parts = Utils.split(line, " \t");
+				if (parts.length != 2) {
+					throw new IOException("expected 'inputFile outputFile' in manifest: " + fileName + " (" + lineNumber + ")");
+				}
+				inFiles.add(resolvePath(workDir, parts[0]));
+				outFiles.add(resolvePath(workDir, parts[1]));
+			}
+		} finally {
+			reader.close();
 		}
-		run(inFile, outFile, encoding, symbols);
 	}
 	
-	private static void printHelp() {
-		System.out.println("DataCompiler - generic data compiler; version " + VERSION);
-		System.out.println("parameters: ");
-		System.out.println("-i=inputFile  : specify input file " );
-		System.out.println("-o=outputFile : specify output file");
-		System.out.println("-enc=encoding (or -charset=encoding): specify input file encoding");
-		System.out.println("     default is utf-8, other values are us-ascii or iso-8859-1");
-		System.out.println("-pp=preprocessorSymbols : symbols are separated by comma");
-		System.out.println("-DpreprocessorSymbol");
-		System.out.println("-ias : use integer type as a size of the array (by default it's a  short type)");
-		System.out.println("-Werror : treat all warnings as errors. ");
-		System.out.println("-Wconversion : warn if unsigned values are stored in the signed data types.");  		
-		System.out.println("-IincludeDirectory : add path to your includes.");
-		System.out.println("-le : write data as little endian (default is big endian)");
-		System.out.println("-cd=comment : used 'comment' as the comment marker (default is // )");	
+	/**
+	 * Compiles the input files concurrently. Each compilation has its own copy of the options.
+	 * The messages of each compilation are printed together in the order of the input files.
+	 * @return false if any of the compilations failed
+	 */
+	public static boolean runAll(CompileContext options, Vector inFiles, Vector outFiles, int threads) {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, inFiles.size()));
+		try {
+			final int max = inFiles.size();
+			CompileJob[] jobs = new CompileJob[max];
+			Future[] results = new Future[max];
+			for (int i = 0; i < max; i++) {
+				jobs[i] = new CompileJob(options, (String) inFiles.elementAt(i), (String) outFiles.elementAt(i));
+				results[i] = pool.submit(jobs[i]);
+			}
+			boolean result = true;
+			for (int i = 0; i < max; i++) {
+				try {
+					if (!((Boolean) results[i].get()).booleanValue()) {
+						result = false;
+					}
+				} catch (ExecutionException e) {
+					jobs[i].context.out.println(e.getCause());
+					result = false;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				options.out.print(jobs[i].log.toString());
+			}
+			return result;
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private static class CompileJob implements Callable {
+		final CompileContext context;
+		final ByteArrayOutputStream log = new ByteArrayOutputStream();
+		final String inFileName;
+		final String outFileName;
+		
+		CompileJob(CompileContext options, String inFileName, String outFileName) {
+			context = new CompileContext(options);
+			context.out = new PrintStream(log, true);
+			this.inFileName = inFileName;
+			this.outFileName = outFileName;
+		}
+		
+		public Object call() {
+			return Boolean.valueOf(new DataCompiler(context).run(inFileName, outFileName));
+		}
+	}
+	
+	private static void printHelp(PrintStream out) {
+		out.println("DataCompiler - generic data compiler; version " + VERSION);
+		out.println("parameters: ");
+		out.println("-i=inputFile  : specify input file " );
+		out.println("-o=outputFile : specify output file");
+		out.println("     more -i and -o pairs can be specified, the files are compiled concurrently");
+		out.println("-manifest=file : compile the files listed in the manifest, each line contains: inputFile outputFile");
+		out.println("-j=threads : number of files compiled at the same time (default is the number of CPUs)");
+		out.println("-bj=threads : number of threads encoding the top-level data blocks of each file (default is 1)");
+		out.println("     not used with -stream, -align and -strpool");
+		out.println("-prefetch[=threads] : read the included files ahead by more threads (default is the number of CPUs)");
+		out.println("     the files are kept in memory, not used with -pch");
+		out.println("-enc=encoding (or -charset=encoding): specify input file encoding");
+		out.println("     default is utf-8, other values are us-ascii or iso-8859-1");
+		out.println("-pp=preprocessorSymbols : symbols are separated by comma");
+		out.println("-DpreprocessorSymbol");
+		out.println("-ias : use integer type as a size of the array (by default it's a  short type)");
+		out.println("-lfs : use long type as a size of the embedded file (by default it's an integer type)");
+		out.println("-Werror : treat all warnings as errors. ");
+		out.println("-Wconversion : warn if unsigned values are stored in the signed data types.");  		
+		out.println("-IincludeDirectory : add path to your includes.");
+		out.println("-le : write data as little endian (default is big endian)");
+		out.println("-align[=N] : align the values to their size (at most N bytes: 1, 2, 4 or 8), pad the structs");
+		out.println("     to the alignment of their largest element. Strings and embedded files are not aligned");
+		out.println("-cd=comment : used 'comment' as the comment marker (default is // )");	
+		out.println("-strpool : store each string once in the string pool at the end of the output, the data contain");
+		out.println("     the 32 bit offsets of the strings in the pool");
+		out.println("-strenc=utf8|latin1|utf16le|utf16be|smallest : encoding of the strings (default is utf8), smallest");
+		out.println("     chooses latin1, utf8 or utf16 (in the byte order of the data) for each string and writes");
+		out.println("     its tag (0: utf8, 1: latin1, 2: utf16) before the length, the fixed size strings are utf8");
+		out.println("-sink=direct|mapped|async : write the output file directly (default), through a memory mapping");
+		out.println("     or by a writer thread while the data are encoded");
+		out.println("-compress[=blockSize] : compress the output in independent blocks (default is 65536 bytes)");
+		out.println("     with an index of the blocks, see BlockDecompressor");
+		out.println("-stream : compile while reading the input (constant memory use). #define must precede its use.");
+		out.println("-MF=depFile : write the files the output depends on (input, includes, embedded files) as a make rule");
+		out.println("-MD : write the dependencies of each output file into outputFile.dep");
+		out.println("-MP : add an empty rule for each dependency, so make doesn't fail when a file is removed");
+		out.println("     the options are written to outputFile.flags, which is one of the dependencies");
+		out.println("-skip-unchanged : don't rewrite the output file when its contents would not change");
+		out.println("-h=header.h : write a C header with the constants, the offsets and sizes of the struct elements");
+		out.println("     and packed typedefs of the fixed size structs");
+		out.println("-stats : print the time of each compilation phase, the number of lines, bytes of each type etc.");
+		out.println("     the statistics are written into outputFile.stats.json too");
+		out.println("-pch=directory : store the preprocessed and parsed included files in the directory and reuse them");
+		out.println("-daemon[=port] : keep running and compile the files sent by the CompileClient (default port is " + CompileServer.DEFAULT_PORT + ")");
 	}
 
 	public static final String fixEncoding(String enc) {
@@ -161,98 +412,133 @@ public class DataCompiler {
 		throw new IllegalArgumentException ("unknown encoding:" + enc);
 	}
 
+	/**
+	 * Compiles the input file with the default options.
+	 */
 	public static void run(String inFileName, String outFileName, String encoding, String symbols) {
+		CompileContext context = new CompileContext();
+		context.encoding = encoding;
+		context.symbols = symbols;
+		new DataCompiler(context).run(inFileName, outFileName);
+	}
+	
+	/**
+	 * Compiles the input file. The output file is deleted when the compilation fails.
+	 * @return true if the file was compiled, false on error
+	 */
+	public boolean run(String inFileName, String outFileName) {
 		outFileName = resolveHomePath(outFileName);
 		inFileName =  resolveHomePath(inFileName);
 		
-		createElements(symbols);
-		Vector v = Utils.getLineList(inFileName, encoding, constants, includeDirs);
-		if (v == null) {
-			return;
+		context.createElements();
+		CompileStats stats = context.stats;
+		if (stats == null) {
+			return compileFile(inFileName, outFileName);
+		}
+		stats.start();
+		boolean result = compileFile(inFileName, outFileName);
+		stats.finish();
+		stats.print(context.out, inFileName);
+		try {
+			stats.writeJson(new File(outFileName + ".stats.json"), inFileName, outFileName, result);
+		} catch (IOException e) {
+			context.out.println(e);
 		}
-		v = Utils.removeComments(v, commentDef);
+		return result;
+	}
+
+	private boolean compileFile(String inFileName, String outFileName) {
+		String depFileName = context.depFile;
+		if (depFileName == null && context.writeDepFiles) {
+			depFileName = outFileName + ".dep";
+		}
+		String optionsFileName = null;
+		if (depFileName != null) {
+			//the output depends on the options too - written before the output, so the output is newer
+			optionsFileName = outFileName + ".flags";
+			try {
+				Dependencies.writeIfChanged(new File(optionsFileName), context.getOutputOptions());
+			} catch (IOException e) {
+				context.out.println(e);
+				return false;
+			}
+		}
+		LineSource source;
+		if (context.streaming) {
+			final String path = inFileName.startsWith("/") ? "" : ".";
+			try {
+				source = new Preprocessor(context, path, inFileName, null);
+			} catch (Exception e) {
+				context.out.println(e);
+				return false;
+			}
+		} else {
+			//note: the input encoding is not used, the system default encoding is used instead
+			final String path = inFileName.startsWith("/") ? "" : ".";
+			Vector v = Utils.getLineList(context, path, inFileName, null, null, null);
+			if (v == null) {
+				return false;
+			}
+			source = new VectorLineSource(v);
+		}
+		source = new CommentFilter(source, context.commentDef, context.stats);
 
 		File f = new File(inFileName);
-		OutputStream os = null;
+		File outFile = new File(outFileName);
+		//compile into a temporary file and compare it with the existing output
+		File tmpFile = context.skipUnchanged ? new File(outFileName + ".tmp") : outFile;
 		try {
-			os = new BufferedOutputStream(new FileOutputStream(outFileName));
 			File  parent = f.getParentFile();
 			if (parent == null) {
 				parent = new File(".");
 			}
-			binarize(os, v, parent.getAbsolutePath());
+			if (CompileContext.SINK_MAPPED.equals(context.outputSink)) {
+				binarize(new MappedSink(tmpFile), source, parent.getAbsolutePath());
+			} else {
+				binarize(new FileOutputStream(tmpFile), source, parent.getAbsolutePath());
+			}
+			if (tmpFile != outFile) {
+				if (Dependencies.isSameFile(tmpFile, outFile)) {
+					tmpFile.delete();
+					if (context.verbose) {
+						context.out.println("output not changed: " + outFileName);
+					}
+				} else {
+					outFile.delete();
+					if (!tmpFile.renameTo(outFile)) {
+						throw new IOException("can't rename " + tmpFile + " to " + outFile);
+					}
+				}
+			}
+			if (context.headerFile != null) {
+				new CHeaderWriter(context).write(context.headerFile, inFileName);
+			}
+			if (depFileName != null) {
+				context.dependencies.add(optionsFileName);
+				context.dependencies.write(depFileName, outFileName, context.phonyDeps);
+			}
 		} catch (Exception e) {
-			if (verbose) {
-				e.printStackTrace();
+			if (context.verbose) {
+				e.printStackTrace(context.out);
 			}
-			File outFile = new File(outFileName);
+			tmpFile.delete();
 			outFile.delete();
-			System.exit(-1);
-			//throw new IllegalArgumentException();
+			return false;
 		}
+		return true;
 	}
+
 	public static void run(byte[] inputData, OutputStream os, String path, String symbols) {
-		createElements(symbols);
-		Vector v = Utils.getLineList(inputData);
-		v = Utils.removeComments(v, ";");
-		binarize(os, v, path);
-	}
-	
-	private static void checkElements(DataElement newElement, DataElement oldElement) {
-		if (oldElement == null) {
-			return;
-		}
-		String msg = "data element '" + newElement.name + "'  redefined in " + li.getSource() + " previous definition is in " + oldElement.sourceLine.getSource();
-		if (DataCompiler.useWarningsAsErrors) {
-			throw new IllegalArgumentException(msg);
-		} else {
-			System.out.println( "Warning: " + msg );
-		}
-	}
-	
-	public static void setConstants(HashMap constants) {
-		DataCompiler.constants = constants;
+		CompileContext context = new CompileContext();
+		context.symbols = symbols;
+		new DataCompiler(context).run(inputData, os, path);
 	}
 
-	public static void addConstant(String line, LineItem item) {
-		
-		String[] bits = Utils.split(line, "= \t");
-		//Symbols without a value are boolean data elements set to true 
-		if (bits.length == 1) {
-			DataElement de = new DataElement(bits[0], DataElement.TYPE_BYTE, item);
-			de.value = "1";	//means true
-			constants.put(de.name, de);
-			//note: we don't do element check here as boolean duplicates of the elements in pp symbols are ok ;
-		} else
-		{
-			if (bits[1].startsWith("\"")) {
-				int index = line.indexOf('=');
-				if (index > 0) {
-					bits[1] = line.substring(index + 1).trim();
-				}
-			}
-			DataElement de = new DataElement(bits[0], bits[1], item, constants);
-			//By default preprocessor symbols are treated as resolved - cannot contain expression
-			de.checkedForExpression = true;
-			DataElement old = (DataElement) constants.put(de.name, de);
-			checkElements(de, old);
-		}
-		
-	}
-	private static void createElements(String symbols) {
-		elements = new HashMap();
-		constants = new HashMap();
-		structs = new HashMap();
-		DataStruct.structs = structs; 
-		
-		//parse preprocessor symbols and store them as constants
-		if (symbols != null) {
-			LineItem item = new LineItem(symbols, 0, "preprocessor symbols");
-			String[] symParts = split(symbols, ',', false);
-			for (int i = 0; i < symParts.length; i++) {
-				addConstant(symParts[i], item);
-			}
-		}
+	public void run(byte[] inputData, OutputStream os, String path) {
+		context.createElements();
+		Vector v = Utils.getLineList(context, inputData);
+		v = Utils.removeComments(v, ";");
+		binarize(os, v, path);
 	}
 	
 	private static boolean charIsWhiteSpace(char c) {
@@ -306,275 +592,127 @@ public class DataCompiler {
 		return result;
 	}
 	
-	public static void binarize(OutputStream os, Vector v, String path) {
-		final int MAX_STRUCT_LEVEL = 256;
-		int size = v.size();
-		
-		lineNumber = 0;
+	public void binarize(OutputStream os, Vector v, String path) {
+		binarize(os, new VectorLineSource(v), path);
+	}
+
+	public void binarize(OutputStream os, LineSource source, String path) {
+		if (context.compressBlockSize > 0) {
+			try {
+				os = new BlockCompressor(os, context.compressBlockSize, context.littleEndian);
+			} catch (IOException e) {
+				context.out.println(e);
+				throw new IllegalArgumentException();
+			}
+		}
+		binarize(new ChannelSink(os), source, path);
+	}
+
+	/**
+	 * Compiles the source into the sink. The sink is closed, also when the compilation fails.
+	 */
+	public void binarize(OutputSink sink, LineSource source, String path) {
+		context.lineNumber = 0;
+		context.li = null;
+		if (CompileContext.SINK_ASYNC.equals(context.outputSink)) {
+			sink = new AsyncSink(sink);
+		}
+		boolean closed = false;
+		ParallelEncoder parallel = null;
+		DataEncoder encoder = null;
 		try {
-			DataStruct struct = null;
-			DataStruct[] structStack = new DataStruct[MAX_STRUCT_LEVEL];
-			int[] structElementIndices = new int[MAX_STRUCT_LEVEL];
-			int structElementIndex = 0;
-			DataOutputStream dos = new DataOutputStream(os);
-			int level = 0;
-			for (int i = 0; i < size; i++) {
-				li = (LineItem) v.get(i);
-				String line  = li.line;
-				lineNumber = li.number;
-				//System.out.println(line);
-				
-				//parse data elements definition at the zero level
-				if (level == 0 && !line.startsWith("{")) {
-					//start of struct
-					if (line.startsWith("struct")&& (line.charAt(6) == ' ' ||  line.charAt(6) == '\t')) {
-						if (struct == null) {
-							int idx = line.indexOf("{");
-							if (idx < 0) {
-								throw new RuntimeException("syntax error: struct not opened with '<'");
-							}
-							String name = line.substring(7, idx).trim();
-							if (name == null || name.length() < 1) {
-								throw new RuntimeException("syntax error: struc name missing");
-							}
-							struct = new DataStruct(name, li);
-						} else {
-							throw new RuntimeException("struct within struct not supported");
-						}
-					} else
-					//end of struct
-					if (line.equals("}")) {
-						if (struct == null) {
-							throw new RuntimeException("end block marker '>' within data definition");
-						}
-						if (struct.getSize() < 1) {
-							throw new RuntimeException("empy struct definition");
-						}
-						structs.put(struct.name, struct);
-						struct = null;
-					} else 
-					//data element 
-					{
-						DataElement de = new DataElement(li, constants);
-						//add data element into the last defined (current) struct
-						if (struct != null) {
-							//check the struct name exists
-							if (de.type == DataElement.TYPE_STRUCT) {
-								DataStruct ds = (DataStruct) structs.get(de.value);
-								if (ds == null) {
-									throw new RuntimeException ("unknown struct name=" + de.value);
-								}
-							}
-							DataElement old = struct.addElement(de);
-							checkElements(de, old);
-						} 
-						//add data element into global variables
-						else {
-							//variable cannot be a structure in global definition
-							if (de.type == DataElement.TYPE_STRUCT) {
-								throw new RuntimeException("variable cannot be a structure");
-							}
-							if (de.isConstant()) {
-								DataElement old = (DataElement) constants.put(de.name, de);
-								checkElements(de, old);
-							} else {
-								DataElement old = (DataElement) elements.put(de.name, de);
-								checkElements(de, old);
-							}
-						}
-					}
+			DataParser parser = new DataParser(context);
+			DataEmitter emitter = new DataEmitter(sink, context.littleEndian);
+			emitter.setAlignment(context.alignment);
+			encoder = new DataEncoder(emitter, context, path);
+			//the aligned data and the string pool depend on the position and the order of the values
+			if (context.blockThreads > 1 && !context.streaming && context.alignment == 0 && !context.useStringPool) {
+				parallel = new ParallelEncoder(encoder, context, path, context.blockThreads);
+			}
+			LineItem item;
+			while ((item = source.nextLine()) != null) {
+				context.li = item;
+				context.lineNumber = item.number;
+				if (parallel != null) {
+					parseLine(parser, parallel, item);
+					continue;
 				}
-				//binarize data
-				if (level > 0 || line.startsWith("{")) {
-					if (line.startsWith("{#}")) {
-						int count = getItemCount(i+1, v);
-						if (useIntegerArraySize) {
-							DataElement.writeInt(dos, count);
-						} else {
-							DataElement.writeShort(dos, (short) count);
-						}
-					} else
-					if (line.startsWith("{")) {
-						DataStruct parentStruct = struct;
-						int parentStructureElementIndex = structElementIndex;
-						structElementIndices[level] = structElementIndex + 1; //include this struct 
-						level++;
-						struct = null;
-						//check struct
-						if (line.length() > 1) {
-							String structName = line.substring(1).trim();
-							//search in anonymous structures
-							if (parentStruct == null) {
-								struct = (DataStruct) structs.get(structName);
-								if (struct == null) {
-									throw new RuntimeException("struct " + structName + " doesn't exist.");
-								}
-							} else
-							//search in named data element in the parent structure
-							{
-								DataElement de = parentStruct.getElement(structName);
-								if (de == null) {
-									throw new RuntimeException("struct name=" + structName + " not found ");
-								}
-								//search in anonymous structures
-								struct = (DataStruct) structs.get(de.value);
-								if (struct == null) {
-									throw new RuntimeException("struct " + structName + " doesn't exist.");
-								}
-								
-								//if not all data were saved from the parent structure
-								DataElement structElement = parentStruct.getElement(parentStructureElementIndex);
-								if (structElement == null) {
-									throw new RuntimeException("data in struct " + struct.name + " is undefined on element index " + structElementIndex);
-								}
-								if (!structElement.name.equals(structName)) {
-									int max = parentStruct.getSize();
-									while (!structElement.name.equals(structName)) {
-										//element doesn't have a default value
-										if (!structElement.isConstant()) {
-											throw new RuntimeException("data element mismatch in struct '" + struct.name + "', element index " + structElementIndex + " name=" + structName + " expected=" + structElement.name);
-										} 
-										//save default value
-										structElement.store(dos, structElement.value, constants, path, li);
-										parentStructureElementIndex++;
-										if (parentStructureElementIndex < max) {
-											structElement = parentStruct.getElement(parentStructureElementIndex);
-										} else {
-											throw new RuntimeException("unknown element in struct " + struct.name + ", element name=" + structName);
-										}
-									}
-									structElementIndices[level - 1] = parentStructureElementIndex + 1;
-								} 
-							}
-						} 
-						structStack[level] = struct;
-						structElementIndices[level] = 0;
-						structElementIndex = 0;
-					} else
-					if (line.startsWith("}")) {
-						//struct exists and not all element were saved yet -> save them
-						if (struct != null && structElementIndex < struct.getSize()) {
-							int max = struct.getSize();
-							while (structElementIndex < max) {
-								DataElement structElement = struct.getElement(structElementIndex);
-								//element doesn't have a default value
-								if (!structElement.isConstant()) {
-									throw new RuntimeException("data element doesn't have default value, struct=" + struct.name +  "  element name=" + structElement.name);
-								} 
-								//save default value
-								structElement.store(dos, structElement.value, constants, path, li);
-								structElementIndex++;								
-							}
-						}
-						
-						level--;
-						struct = structStack[level]; 
-						structElementIndex = structElementIndices[level]; 
-					} else {
-						boolean isConstant = false;
-						StringTokenizer st = new StringTokenizer(line, "=:");
-						int tokenSize = st.countTokens();
-						if (tokenSize < 1) {
-							throw new IllegalArgumentException("can't convert: " + line );
-						}
-						String name = st.nextToken().trim();
-						String value;
-						if (tokenSize < 2) {
-							// check whether we try to write a constant
-							DataElement de = (DataElement) constants.get(name);
-							if (de == null || de.value == null) {
-								throw new IllegalArgumentException("can't convert: " + line );
-							}
-							isConstant = true;
-							de.store(dos, de.value, constants, path, li);
-							value = de.value;
-						} else {
-							value = st.nextToken();
-						}
-						//append rest of the tokens
-						if (tokenSize > 2) {
-							int idx = line.indexOf(value);
-							value = line.substring(idx);
-						}
-						//no structure defined in this data block -> save as it is
-						if (struct == null) {
-							if  (!isConstant) {
-								DataElement de = (DataElement) elements.get(name);
-								if (de == null) {
-									throw new IllegalArgumentException("unknown data element: " + name );
-								}
-								de.store(dos, value, constants, path, li);
-							}
-						} else {
-							//System.out.println("struct element index=" + structElementIndex);
-							DataElement structElement = struct.getElement(structElementIndex);
-							if (structElement == null) {
-								throw new RuntimeException("data in struct " + struct.name + " is undefined on element index " + structElementIndex);
-							}
-							//System.out.println("sename=" + structElement.name + " name=" + name);
-							int max = struct.getSize();
-							if (!structElement.name.equals(name)) {
-								while (!structElement.name.equals(name)) {
-									//element doesn't have a default value
-									if (!structElement.isConstant()) {
-										throw new RuntimeException("data element mismatch in struct '" + struct.name + "', element index " + structElementIndex + " name=" + name + " expected=" + structElement.name);
-									} 
-									//save default value
-									structElement.store(dos, structElement.value, constants, path, li);
-									structElementIndex++;
-									if (structElementIndex < max) {
-										structElement = struct.getElement(structElementIndex);
-									} else {
-										throw new RuntimeException("unknown element in struct " + struct.name + ", element name=" + name);
-									}
-								}
-								//we have found the matching name -> save the value
-								structElement.store(dos, value, constants, path, li);
-								structElementIndex ++;
-							} else {
-								structElement.store(dos, value, constants, path, li);
-								structElementIndex ++;
-							}
-						}
-					}
+				DataNode node = parser.parse(item);
+				if (node != null) {
+					encoder.encode(node);
 				}
 			}
-			dos.close();		
+			if (parallel != null) {
+				parallel.drain();
+			}
+			closed = true;
+			encoder.close();
 		} catch (Exception e) {
-			System.out.println(e + " in source " + li.getSource());
-			if (verbose) {
-				e.printStackTrace();
+			//the blocks before the failed line are reported first, as when they are encoded in order
+			if (parallel != null) {
+				try {
+					parallel.drain();
+				} catch (Exception blockError) {
+					e = blockError;
+				}
+			}
+			LineItem li = context.li;
+			context.out.println(li == null ? e.toString() : e + " in source " + li.getSource());
+			if (context.verbose) {
+				e.printStackTrace(context.out);
 			}
 			throw new IllegalArgumentException();
-		}
-	}
-	
-	public static int getItemCount(int lineIndex, Vector v) {
-		int size = v.size();
-		int result = 0;
-		int level = 0;
-		for (int i = lineIndex; i < size; i++) {
-			LineItem li = (LineItem) v.get(i);
-			String line  = li.line;
-			if (line.startsWith("{#}")) {
-				if (level == 0) {
-					return result;
-				}
-			} else 
-			if (line.startsWith("{")) {
-				if (level == 0) {
-					result ++;
+		} finally {
+			if (parallel != null) {
+				parallel.shutdown();
+			}
+			//stop the writer thread and release the file
+			if (!closed) {
+				if (encoder != null) {
+					encoder.discard();
 				}
-				level++;
-			} else
-			if (line.startsWith("}")) {
-				level--;
-				if (level < 0) {
-					return result;
+				try {
+					sink.close();
+				} catch (IOException e) {
 				}
 			}
 		}
-		return result;
+	}
+
+	/*
+	 * Parses the line for the parallel encoder. The definitions outside of the blocks
+	 * change the constants and the structs shared by the blocks, so the blocks read so far
+	 * are written first. The output of the parser is kept in the order of the lines.
+	 */
+	private void parseLine(DataParser parser, ParallelEncoder parallel, LineItem item) throws Exception {
+		if (parser.isTopLevel() && !item.line.startsWith("{")) {
+			parallel.drain();
+		}
+		PrintStream out = context.out;
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		context.out = new PrintStream(log, true);
+		DataNode node;
+		try {
+			node = parser.parse(item);
+		} finally {
+			context.out.flush();
+			context.out = out;
+			if (log.size() > 0) {
+				parallel.add(null, log.toByteArray());
+			}
+		}
+		parallel.add(node, null);
+	}
+
+	/*
+	 * Resolves the relative file name against the working directory.
+	 */
+	private static String resolvePath(File workDir, String fileName) {
+		fileName = resolveHomePath(fileName);
+		if (workDir == null || new File(fileName).isAbsolute()) {
+			return fileName;
+		}
+		return new File(workDir, fileName).getPath();
 	}
 
 	private static String resolveHomePath(String fileName) {
@@ -18,17 +18,15 @@ General Public License for more details.
 
 package ole.gdc;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.Vector;
 
 
 public class DataElement {
@@ -54,7 +52,6 @@ public class DataElement {
 
 	private static final String MSG_INCOPATIBLE_TYPE = "incompatible type";
 	
-	private static final byte[] ZERO_ARRAY = new byte[1024];
 
 	String name;
 	int type;
@@ -62,12 +59,30 @@ public class DataElement {
 	String value;	//for constants
 	boolean checkedForExpression;	//true if value was checked for expression and that expression was resolved
 	LineItem sourceLine;
-
-	private static ByteArrayOutputStream leBos = new ByteArrayOutputStream(8);
-	private static DataOutputStream leDout = new DataOutputStream(leBos);
-
-
-	public DataElement(LineItem li, HashMap constants) {
+	DataStruct struct;	//TYPE_STRUCT: the struct type, set when the element is defined
+
+	private volatile boolean expressionResolved;	//set after the expression is resolved, readable without the lock
+	private boolean guessedType;	//the type was guessed from the value
+	boolean literal;	//imported data: the value is not a constant name nor an expression, the string has no quotes
+
+	//expression resolution, guarded by the DataElement.class lock
+	private boolean resolving;	//the element waits for its dependencies, used to find the cycles
+	private boolean parsed;
+	private Expression expression;	//parsed value, released when resolved
+	private Vector dependencies;	//names of the constants in the expression
+	private RuntimeException resolveError;
+
+	//decoded value, cached to avoid parsing the value text each time it's stored.
+	//The flags are volatile, the encoders of the parallel blocks share the constants.
+	private volatile boolean hasLongValue;
+	private long longValue;
+	private volatile boolean hasDoubleValue;
+	private double doubleValue;
+	private String stringValue;
+	private volatile DataElement resolvedValue;
+
+
+	public DataElement(LineItem li, CompileContext context) {
 		this.sourceLine = li;
 		String line = li.line;
 		StringTokenizer st = new StringTokenizer(line, " \t"); //space or tabulator
@@ -136,7 +151,8 @@ public class DataElement {
 			type = TYPE_FILE;
 		} else
 		if (data.equals("=") && value != null) {
-			type = guessType(value, constants);
+			type = guessType(value, context);
+			guessedType = true;
 		}
 		else {
 			throw new IllegalArgumentException("unknown element type=" + data);
@@ -169,14 +185,15 @@ public class DataElement {
 		this.value = value;
 	}
 
-	public DataElement(String name, String value, LineItem li, HashMap constants) {
+	public DataElement(String name, String value, LineItem li, CompileContext context) {
 		sourceLine = li;
 		this.name = name;
 		this.value = value;
-		type = guessType(value, constants);
+		type = guessType(value, context);
+		guessedType = true;
 	}
 	
-	public int guessType(String val, HashMap constants) {
+	public int guessType(String val, CompileContext context) {
 		if (val == null) {
 			return TYPE_AUX;
 		}
@@ -207,12 +224,10 @@ public class DataElement {
 			return TYPE_LONG;
 		}
 
-		if (constants != null) {
-			DataElement de = (DataElement) constants.get(val);
+		if (context != null) {
+			DataElement de = (DataElement) context.constants.get(val);
 			if (de != null) {
-				if (!de.checkedForExpression) {
-					de.resolveExpressions(constants);
-				}
+				de.checkExpressions(context);
 				return de.type;
 			}
 		}
@@ -259,13 +274,12 @@ public class DataElement {
 		return foundDecimalPoint;
 	}
 	
-	public void store(DataOutputStream dout, String data, HashMap constants, String parentPath, LineItem li) throws Exception {
-		store(dout, data, type, constants, parentPath, true, li);
+	public void store(DataEmitter emitter, String data, CompileContext context, String parentPath, LineItem li) throws Exception {
+		store(emitter, data, type, context, parentPath, true, li);
 	}
 
 	public boolean isConstant() {
 		if (type == TYPE_STRUCT) {
-			DataStruct struct = (DataStruct) DataStruct.structs.get(value);
 			if (struct == null) {
 				return false;
 			}
@@ -279,11 +293,11 @@ public class DataElement {
 		return value;
 	}
 
-	public int getElementCount(String data, int dataType, HashMap constants) {
+	public int getElementCount(String data, int dataType, CompileContext context) {
 		data = data.trim();
 		switch (dataType) {
 			case TYPE_BYTE: {
-				DataElement de = (DataElement)constants.get(data);
+				DataElement de = (DataElement)context.constants.get(data);
 				int elementType  = TYPE_BYTE; // by default treat each element as byte
 				if (de != null) {
 					data = de.value;
@@ -303,7 +317,7 @@ public class DataElement {
 				}
 			} break;
 			case TYPE_SHORT: {
-				DataElement de = (DataElement)constants.get(data);
+				DataElement de = (DataElement)context.constants.get(data);
 				int elementType  = TYPE_SHORT; // by default treat each element as short
 				if (de != null) {
 					data = de.value;
@@ -320,7 +334,7 @@ public class DataElement {
 				}
 			} break;
 			case TYPE_INT: {
-				DataElement de = (DataElement)constants.get(data);
+				DataElement de = (DataElement)context.constants.get(data);
 				int elementType  = TYPE_INT; // by default treat each element as int 
 				if (de != null) {
 					data = de.value;
@@ -337,520 +351,451 @@ public class DataElement {
 		return 1;
 	}
 
-	private void throwWarning(String dataType, String value) {
+	void throwWarning(CompileContext context, String dataType, String value) {
 		String msg = MSG_INCOPATIBLE_TYPE + "=" + dataType + " value=" + value;
-		if (DataCompiler.useWarningsAsErrors) {
+		if (context.useWarningsAsErrors) {
 			throw new IllegalArgumentException(msg);
 		} else {
-			System.out.println("warning: " + msg + ", line=" + DataCompiler.lineNumber);
+			//the records of the imported files are not in the script
+			String line = context.li != null && context.li.imported ? context.li.getSource() : String.valueOf(context.lineNumber);
+			context.out.println("warning: " + msg + ", line=" + line);
 		}
 	}
 
-	static final void writeShort(DataOutputStream dout, short i) throws IOException {
-		if (DataCompiler.littleEndian) {
-			int s = i & 0xFFFF;
-			dout.write(s & 0xFF);
-			dout.write(s >> 8);
-		} else {
-			dout.writeShort(i);
+	private final void writeString(DataEmitter emitter, StringEncoder encoder, int maxLen, CompileContext context, LineItem li) throws IOException {
+		int size = encoder.getFixedSize(context.stringEncoding);
+		if (size >= maxLen) {
+			String warning = "String size is too big: " + size + " (max: " + maxLen + ") ";
+						
+			if (context.useWarningsAsErrors) {
+				throw new IllegalArgumentException(warning);
+			} else {
+				context.out.println("Warning: " + warning + li.getSource());
+			}
 		}
+		encoder.writeFixed(emitter, maxLen, context.stringEncoding);
+	}
+	
+	public void store(DataEmitter emitter, String data, int dataType, CompileContext context, String parentPath, boolean strictTypes, LineItem li) throws Exception {
+		store(emitter, resolveValue(data, dataType, context), dataType, context, parentPath, strictTypes, li);
 	}
 
-	static final void writeInt(DataOutputStream dout, int i) throws IOException {
-		if (DataCompiler.littleEndian) {
-			long s = i & 0xFFFFFFFF;
-			dout.write((int)(s & 0xFF));
-			dout.write((int)((s >> 8) & 0xFF));
-			dout.write((int)((s >> 16) & 0xFF));
-			dout.write((int)((s >> 24) & 0xFF));
-		} else {
-			dout.writeInt(i);
+	/**
+	 * Finds the constant the value text refers to or creates an anonymous element
+	 * for the literal value. The expressions are resolved, so the returned element
+	 * can be stored any number of times without parsing the text again.
+	 */
+	public DataElement resolveValue(String data, int dataType, CompileContext context) {
+		data = data.trim();
+		//try to find/resolve a variable
+		DataElement de = (DataElement)context.constants.get(data);
+		switch (dataType) {
+			case TYPE_BYTE_ARRAY :
+			case TYPE_SHORT_ARRAY :
+			case TYPE_INT_ARRAY :
+			case TYPE_LONG_ARRAY:
+			case TYPE_FLOAT_ARRAY:
+			case TYPE_DOUBLE_ARRAY:
+			case TYPE_STRUCT:
+				//arrays are always stored from the literal text
+				return new DataElement("<anonymous>", data, dataType, sourceLine);
 		}
+		if (de == null) {
+			de = new DataElement("<anonymous>", data, dataType, sourceLine);
+			if (dataType == TYPE_FILE) {
+				//the file name of a data element is used as written
+				de.setResolved(null);
+				return de;
+			}
+		}
+		de.checkExpressions(context);
+		return de;
 	}
 
-	private static final void writeLong(DataOutputStream dout, long i) throws IOException {
-		if (DataCompiler.littleEndian) {
-			dout.write((int)(i & 0xFF));
-			dout.write((int)((i >> 8) & 0xFF));
-			dout.write((int)((i >> 16) & 0xFF));
-			dout.write((int)((i >> 24) & 0xFF));
-			dout.write((int)((i >> 32) & 0xFF));
-			dout.write((int)((i >> 40) & 0xFF));
-			dout.write((int)((i >> 48) & 0xFF));
-			dout.write((int)((i >>> 56) & 0xFF));
-		} else {
-			dout.writeLong(i);
-		}
+	/**
+	 * Creates an element for a value of an imported record. The records are data,
+	 * so the text is stored as it is: it's not looked up as a constant and not evaluated.
+	 */
+	static DataElement literal(String data, int dataType, LineItem li) {
+		DataElement de = new DataElement("<anonymous>", dataType == TYPE_STRING ? data : data.trim(), dataType, li);
+		de.literal = true;
+		de.setResolved(null);
+		return de;
 	}
 
-	private static final void writeFloat(DataOutputStream dout, float i) throws IOException {
-		if (DataCompiler.littleEndian) {
-			leBos.reset();
-			leDout.writeFloat(i);
-			byte[] d = leBos.toByteArray();
-			
-			dout.write((int)(d[3] & 0xFF));
-			dout.write((int)(d[2] & 0xFF));
-			dout.write((int)(d[1] & 0xFF));
-			dout.write((int)(d[0] & 0xFF));
-		} else {
-			dout.writeFloat(i);
+	/**
+	 * @return the value of this element (constant or default value of a struct element) resolved by resolveValue()
+	 */
+	DataElement getResolvedValue(CompileContext context) {
+		if (resolvedValue == null) {
+			resolvedValue = resolveValue(value, type, context);
 		}
+		return resolvedValue;
 	}
 
-	private static final void writeDouble(DataOutputStream dout, double i) throws IOException {
-		if (DataCompiler.littleEndian) {
-			leBos.reset();
-			leDout.writeDouble(i);
-			byte[] d = leBos.toByteArray();
+	/**
+	 * @return the integer value, the text of the value is decoded only once
+	 */
+	long getLongValue(CompileContext context) {
+		if (!hasLongValue) {
+			try {
+				longValue = Long.decode(value);
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException(e.getMessage().concat(getMatchHint(context, value)));
+			}
+			hasLongValue = true;
+		}
+		return longValue;
+	}
 
-			dout.write((int)(d[7] & 0xFF));
-			dout.write((int)(d[6] & 0xFF));
-			dout.write((int)(d[5] & 0xFF));
-			dout.write((int)(d[4] & 0xFF));
-			dout.write((int)(d[3] & 0xFF));
-			dout.write((int)(d[2] & 0xFF));
-			dout.write((int)(d[1] & 0xFF));
-			dout.write((int)(d[0] & 0xFF));
-		} else {
-			dout.writeDouble(i);
+	/**
+	 * @return the decimal value, the text of the value is decoded only once
+	 */
+	double getDoubleValue(CompileContext context) {
+		if (!hasDoubleValue) {
+			try {
+				doubleValue = Double.parseDouble(value);
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException(e.getMessage().concat(getMatchHint(context, value)));
+			}
+			hasDoubleValue = true;
 		}
+		return doubleValue;
 	}
-	
-	private final void writeString(DataOutputStream dout, String s, int maxLen, LineItem li) throws IOException {
-		byte[] data = s.getBytes("UTF8");
-		if (data.length >= maxLen) {
-			String warning = "String size is too big: " + data.length + " (max: " + maxLen + ") ";
-						
-			if (DataCompiler.useWarningsAsErrors) {
-				throw new IllegalArgumentException(warning);
-			} else {
-				System.out.println("Warning: " + warning + li.getSource());
+
+	/**
+	 * @return the unescaped text of the string value
+	 */
+	String getStringValue() {
+		if (stringValue == null) {
+			String data = value;
+			if (type == TYPE_STRING && !literal && data.startsWith("\"") && data.endsWith("\"")) {
+				data = data.substring(1, data.length() - 1);
 			}
-			dout.write(data, 0, maxLen);
+			stringValue = UnicodeEscapes.unescape(data);
+		}
+		return stringValue;
+	}
+
+	/**
+	 * Decodes the escapes of the string value straight into the encoder, no String is created.
+	 */
+	void decodeString(StringEncoder encoder) {
+		String data = value;
+		if (type == TYPE_STRING && !literal && data.length() > 1 && data.startsWith("\"") && data.endsWith("\"")) {
+			encoder.decode(data, 1, data.length() - 1);
 		} else {
-			dout.write(data);
-			// write the padding
-			int max = maxLen - data.length;
-			while (max > 0) {
-				int block = max > ZERO_ARRAY.length ? ZERO_ARRAY.length : max;
-				dout.write(ZERO_ARRAY, 0, block);
-				max -= block;
-			}
+			encoder.decode(data, 0, data.length());
 		}
-		
 	}
-	
-	public void store(DataOutputStream dout, String data, int dataType, HashMap constants, String parentPath, boolean strictTypes, LineItem li) throws Exception {
-		data = data.trim();
-		//try to find/resolve a variable
-		DataElement de = (DataElement)constants.get(data);
-		if (de == null) {
-			de = new DataElement("<anonymous>", data, dataType, sourceLine);
+
+	private String getMatchHint(CompileContext context, String data) {
+		String match = literal ? null : findBestMatch(context.constants, data);
+		if (match == null) {
+			return "";
 		}
-			
+		return " Did you mean ".concat(match).concat("?");
+	}
+
+	/**
+	 * Stores the value returned by resolveValue().
+	 */
+	public void store(DataEmitter emitter, DataElement de, int dataType, CompileContext context, String parentPath, boolean strictTypes, LineItem li) throws Exception {
+		CompileStats stats = context.stats;
+		//the struct elements are counted by their own types
+		if (stats == null || dataType == TYPE_STRUCT) {
+			storeValue(emitter, de, dataType, context, parentPath, strictTypes, li);
+			return;
+		}
+		long position = emitter.getPosition();
+		int phase = dataType == TYPE_FILE ? stats.enter(CompileStats.PHASE_EMBED) : -1;
+		try {
+			storeValue(emitter, de, dataType, context, parentPath, strictTypes, li);
+		} finally {
+			if (phase >= 0) {
+				stats.leave(phase);
+			}
+			stats.addBytes(dataType, emitter.getPosition() - position);
+		}
+	}
+
+	private void storeValue(DataEmitter emitter, DataElement de, int dataType, CompileContext context, String parentPath, boolean strictTypes, LineItem li) throws Exception {
 		switch (dataType) {
 			case TYPE_BYTE: {
-				int elementType  = TYPE_BYTE; // by default treat each element as byte
-				if (de != null) {
-					if (!de.checkedForExpression) {
-						de.resolveExpressions(constants);
-					}
-					data = de.value;
-					elementType = de.type;
-				}
-				long l = 0;
-				
-				try {
-					l = Long.decode(data);
-				} catch (NumberFormatException e) {
-					String match = findBestMatch(constants, data);
-					if (match == null) {
-						match = "";
-					} else {
-						match = " Did you mean ".concat(match).concat("?");
-					}
-					throw new NumberFormatException(e.getMessage().concat(match));
-				}
+				int elementType = de.type;
+				long l = de.getLongValue(context);
 				if (strictTypes || elementType ==  TYPE_BYTE) {
-					if (DataCompiler.warnInConversion) {
+					if (context.warnInConversion) {
 						if (l > Byte.MAX_VALUE || l < Byte.MIN_VALUE) {
-							throwWarning("byte", data);
+							throwWarning(context, "byte", de.value);
 						}
 					} else {
 						long lx = l - Byte.MIN_VALUE;
 						if (lx < 0 || lx > 0x17f) {
-							throwWarning("byte", data);
+							throwWarning(context, "byte", de.value);
 						}
 					}
-					dout.writeByte((int)l);
+					emitter.writeByte((int)l);
 				} else
 				if (elementType == TYPE_SHORT) {
-					writeShort(dout, (short)l);
+					emitter.writeShort((short)l);
 				} else
 				if (elementType == TYPE_INT) {
-					writeInt(dout, (int) l);
+					emitter.writeInt((int) l);
 				} else
 				if (elementType == TYPE_LONG) {
-					writeLong(dout, l);
+					emitter.writeLong(l);
 				}
 			} break;
 			case TYPE_SHORT: {
-				int elementType  = TYPE_SHORT; // by default treat each element as short
-				if (de != null) {
-					if (!de.checkedForExpression) {
-						de.resolveExpressions(constants);
-					}
-					data = de.value;
-					elementType = de.type;
-				}
-				long l = 0;
-				
-				try {
-					l = Long.decode(data);
-				} catch (NumberFormatException e) {
-					String match = findBestMatch(constants, data);
-					if (match == null) {
-						match = "";
-					} else {
-						match = " Did you mean ".concat(match).concat("?");
-					}
-					throw new NumberFormatException(e.getMessage().concat(match));
-				}
+				int elementType = de.type;
+				long l = de.getLongValue(context);
 				if (strictTypes || elementType == TYPE_BYTE || elementType == TYPE_SHORT) {
 					if (l > Short.MAX_VALUE || l < Short.MIN_VALUE) {
-						throwWarning("short", data);
+						throwWarning(context, "short", de.value);
 					}
-					writeShort(dout, (short)l);
+					emitter.writeShort((short)l);
 				} else
 				if (elementType == TYPE_INT){
-					writeInt(dout, (int)l);
+					emitter.writeInt((int)l);
 				} else
 				if (elementType == TYPE_LONG) {
-					writeLong(dout, l);
+					emitter.writeLong(l);
 				}
 			} break;
 			case TYPE_INT: {
-				int elementType = TYPE_INT;
-				if (de != null) {
-					if (!de.checkedForExpression) {
-						de.resolveExpressions(constants);
-					}
-					data = de.value;
-					elementType = de.type;
-				}
-				long l = 0;
-				
-				try {
-					l = Long.decode(data);
-				} catch (NumberFormatException e) {
-					String match = findBestMatch(constants, data);
-					if (match == null) {
-						match = "";
-					} else {
-						match = " Did you mean ".concat(match).concat("?");
-					}
-					throw new NumberFormatException(e.getMessage().concat(match));
-				}
+				int elementType = de.type;
+				long l = de.getLongValue(context);
 				if (strictTypes || elementType == TYPE_BYTE || elementType == TYPE_SHORT || elementType == TYPE_INT) {
 					if (l > Integer.MAX_VALUE || l < Integer.MIN_VALUE) {
-						throwWarning("int", data);
+						throwWarning(context, "int", de.value);
 					}
-					writeInt(dout, (int)l);
+					emitter.writeInt((int)l);
 				} else
 				if (elementType == TYPE_LONG) {
-					writeLong(dout, l);
+					emitter.writeLong(l);
 				}
 			} break;
 			case TYPE_LONG: {
-				if (de != null) {
-					if (!de.checkedForExpression) {
-						de.resolveExpressions(constants);
-					}
-					data = de.value;
-				}
-				long l = 0;
-				
-				try {
-					l = Long.decode(data);
-				} catch (NumberFormatException e) {
-					String match = findBestMatch(constants, data);
-					if (match == null) {
-						match = "";
-					} else {
-						match = " Did you mean ".concat(match).concat("?");
-					}
-					throw new NumberFormatException(e.getMessage().concat(match));
-				}
-				writeLong(dout, l);
+				emitter.writeLong(de.getLongValue(context));
 			} break;
 			case TYPE_FLOAT : {
-				if (de != null) {
-					if (!de.checkedForExpression) {
-						de.resolveExpressions(constants);
-					}
-					data = de.value;
-				}
-				double d = 0;
-				
-				try {
-					d = Double.parseDouble(data);
-				} catch (NumberFormatException e) {
-					String match = findBestMatch(constants, data);
-					if (match == null) {
-						match = "";
-					} else {
-						match = " Did you mean ".concat(match).concat("?");
-					}
-					throw new NumberFormatException(e.getMessage().concat(match));
-				}
-				
-				writeFloat(dout, (float) d);
+				emitter.writeFloat((float) de.getDoubleValue(context));
 			} break;
 			case TYPE_DOUBLE : {
-				if (de != null) {
-					if (!de.checkedForExpression) {
-						de.resolveExpressions(constants);
-					}
-					data = de.value;
-				}
-				double d = 0;
-				try {
-					d = Double.parseDouble(data);
-				} catch (NumberFormatException e) {
-					String match = findBestMatch(constants, data);
-					if (match == null) {
-						match = "";
-					} else {
-						match = " Did you mean ".concat(match).concat("?");
-					}
-					throw new NumberFormatException(e.getMessage().concat(match));
-				}
-				writeDouble(dout, d);
+				emitter.writeDouble(de.getDoubleValue(context));
 			} break;
 			case TYPE_STRING: {
-				int elementType = TYPE_STRING;
-				if (de != null) {
-					if (!de.checkedForExpression) {
-						de.resolveExpressions(constants);
-					}
-					data = de.value;
-					elementType = de.type;
-				} else
-				//data element was not found and the value doesn't have quotes -> it's a missing variable
-				if (!data.startsWith("\"") && !data.endsWith("\"")) {
-					throw new RuntimeException("element not found: " + data);
+				if (arrayLen == 0 && context.stringPool != null) {
+					emitter.writeInt(context.stringPool.add(de.getStringValue()));
+					break;
 				}
-
-				if (elementType == TYPE_STRING && data.startsWith("\"") && data.endsWith("\"")) {
-					data = data.substring(1, data.length() - 1);
-				}
-				data = UnicodeEscapes.unescape(data);
+				StringEncoder encoder = StringEncoder.get();
+				de.decodeString(encoder);
 				if (arrayLen == 0) {
-					dout.writeUTF(data);
+					encoder.write(emitter, context.stringEncoding);
 				} else {
-					writeString(dout, data, arrayLen, li);
+					writeString(emitter, encoder, arrayLen, context, li);
 				}
 			} break;
 			case TYPE_FILE: {
-				if (de != null) {
-					if (!de.checkedForExpression) {
-						de.resolveExpressions(constants);
-					}
-					data = de.value;
-				}
+				String data = de.value;
 				if (data.startsWith("\"") && data.endsWith("\"")) {
 					data = data.substring(1, data.length() - 1);
 				}
 				File f = new File(parentPath + "/" + data);
-				int fileSize = (int)f.length();
-				DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
-				byte[] buf = new byte[fileSize];
-				din.readFully(buf);
-				din.close();
-
-				writeInt(dout, fileSize);
-				dout.write(buf);
+				context.dependencies.add(f.getPath());
+				FileInputStream fis = new FileInputStream(f);
+				try {
+					FileChannel fc = fis.getChannel();
+					long fileSize = fc.size();
+					if (context.useLongFileSize) {
+						emitter.writeLong(fileSize);
+					} else {
+						if (fileSize > Integer.MAX_VALUE) {
+							throw new IllegalArgumentException("file " + f.getPath() + " is too big (" + fileSize + " bytes), use -lfs to store its size as long");
+						}
+						emitter.writeInt((int) fileSize);
+					}
+					emitter.transferFrom(fc, fileSize);
+				} finally {
+					fis.close();
+				}
 			}break;
 			case TYPE_BYTE_ARRAY :
 			case TYPE_SHORT_ARRAY :
 			case TYPE_INT_ARRAY :
 			case TYPE_LONG_ARRAY:
-			{
-				int elementType = TYPE_BYTE + (dataType - TYPE_BYTE_ARRAY);
-				StringTokenizer st = new StringTokenizer(data, " \t");
-				int size = st.countTokens();
-				int newSize = size;
-				//get total size of the array
-				if (elementType == TYPE_BYTE || elementType == TYPE_SHORT) {
-					for (int i = 0; i < size; i++) {
-						String value  = (String) st.nextElement();
-						value = value.trim();
-						int cnt = getElementCount(value, elementType, constants);
-						newSize += (cnt - 1);
-					}
-				}  else
-				if (elementType == 3) {
-					elementType = TYPE_INT;
-				} else
-				if (elementType == 4){
-					elementType = TYPE_LONG_ARRAY;
-				}
-
-				if (DataCompiler.useIntegerArraySize) {
-					writeInt(dout, newSize);
-				} else {
-					writeShort(dout, (short) newSize);
-				}
-				st = new StringTokenizer(data, " \t");
-				for (int i = 0; i < size; i++) {
-					String value  = (String) st.nextElement();
-					value = value.trim();
-					store(dout, value, elementType, constants, parentPath, false, li);
-				}
-			} break;
 			case TYPE_FLOAT_ARRAY:
 			case TYPE_DOUBLE_ARRAY:
 			{
-				int elementType = TYPE_FLOAT + (dataType - TYPE_FLOAT_ARRAY);
-				StringTokenizer st = new StringTokenizer(data, " \t");
-				int size = st.countTokens();
-				if (DataCompiler.useIntegerArraySize) {
-					writeInt(dout, size);
-				} else {
-					writeShort(dout, (short) size);
-				}
-				for (int i = 0; i < size; i++) {
-					String value  = (String) st.nextElement();
-					value = value.trim();
-					store(dout, value, elementType, constants, parentPath, false, li);
-				}
+				ArrayEncoder.get().store(emitter, this, de.value, dataType, de.literal, context);
 			} break;
 			case TYPE_STRUCT: {
-				DataStruct struct = (DataStruct) DataStruct.structs.get(value);
 				if (struct == null) {
 					throw new RuntimeException("struct name=" + value + " not found");
 				}
 
 				int size = struct.getSize();
+				struct.align(emitter, context);
 				for (int i = 0; i < size; i++) {
 					DataElement element = struct.getElement(i);
 					if (!element.isConstant()) {
 						throw new RuntimeException("struct name=" + value + " is not constant. Some element don't have known value.");
 					}
-					element.store(dout, element.value, element.type, constants, parentPath, true, li);
+					element.store(emitter, element.value, element.type, context, parentPath, true, li);
 				}
+				struct.align(emitter, context);
 			}
 		}
 	}
 
-	private void resolveExpressions(HashMap constants) {
-		checkedForExpression = true;
-		// check "condition?trueValue:falseValue"
-		if (resolveExpressionCondition(constants)) {
-			return;
-		}
-		//check VAR1|VAR2|TEST
-		if (resolveExpresionBinaryAddition(constants)) {
-			return;
+	/*
+	 * Resolves the expression of the value once. The constants are shared by the
+	 * encoders of the parallel blocks, so the resolution is done under a lock.
+	 * An expression that failed throws the same error each time it's used.
+	 */
+	void checkExpressions(CompileContext context) {
+		if (!expressionResolved) {
+			synchronized (DataElement.class) {
+				if (!checkedForExpression) {
+					resolve(context);
+				}
+			}
 		}
-		//check VALUE1 + VALUE2 + "xxx" + VALUE3 + ....
-		if (resolveExpressionAddition(constants)) {
-			return;
-		}
-		if (resolveExpressionVariable(constants)) {
-			return;
+		if (resolveError != null) {
+			throw resolveError;
 		}
 	}
 
-	private boolean resolveExpressionAddition(HashMap constants) {
-		//quick and dirty check there is an addition sign
-		int index = value.indexOf('+');
-		if (index < 2) {
-			return false;
-		}
-
-		String[] parts = DataCompiler.split(value, '+', true);
-		//all plus signs are within quotes as a part of a text
-		if (DataCompiler.verbose) {
-			System.out.println("expression: " + value);
-		}
-		if (parts.length < 2) {
-			return false;
-		}
-
-
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < parts.length; i++) {
-			String part = parts[i];
-			if (DataCompiler.verbose) {
-				System.out.println("part "  + i + ":" + part);
-			}
-			if (part.startsWith("\"") && part.endsWith("\"")) {
-				part = part.substring(1, part.length() - 1);
-			} else {
-				DataElement de = (DataElement)constants.get(part);
-				if (de != null) {
-					if (!de.checkedForExpression) {
-						de.resolveExpressions(constants);
-					}
-					part = de.value;
-					if (part.startsWith("\"") && part.endsWith("\"")) {
-						part = part.substring(1, part.length() - 1);
+	/*
+	 * Resolves the constants the expression refers to before the expression itself,
+	 * without recursion, so long chains of derived constants don't overflow the stack.
+	 */
+	private void resolve(CompileContext context) {
+		Vector stack = new Vector();
+		stack.add(this);
+		resolving = true;
+		while (!stack.isEmpty()) {
+			DataElement de = (DataElement) stack.lastElement();
+			DataElement dependency = de.getUnresolvedDependency(context);
+			if (dependency != null) {
+				if (dependency.resolving) {
+					RuntimeException e = new RuntimeException("cyclic definition of " + dependency.name + " = " + dependency.value);
+					for (int i = 0; i < stack.size(); i++) {
+						((DataElement) stack.elementAt(i)).setResolved(e);
 					}
-				} else {
-					throw new RuntimeException("element not found: " + part + " while resolving expression: " + value);
+					return;
 				}
+				dependency.resolving = true;
+				stack.add(dependency);
+				continue;
 			}
-			sb.append(part);
+			RuntimeException error = null;
+			try {
+				de.resolveExpressions(context);
+			} catch (RuntimeException e) {
+				error = e;
+			}
+			de.setResolved(error);
+			stack.removeElementAt(stack.size() - 1);
 		}
-		value = sb.toString();
+	}
 
-		return true;
+	private void setResolved(RuntimeException error) {
+		resolveError = error;
+		resolving = false;
+		expression = null;
+		dependencies = null;
+		checkedForExpression = true;
+		expressionResolved = true;
 	}
 
-	private boolean resolveExpresionBinaryAddition(HashMap constants) {
-		if (type == TYPE_BYTE || type == TYPE_SHORT || type == TYPE_INT || type == TYPE_LONG) {
-			//must not contain space
-			if (value.indexOf(' ') >= 0) {
-				return false;
+	/*
+	 * @return a constant the value refers to which is not resolved yet, null if there is none
+	 */
+	private DataElement getUnresolvedDependency(CompileContext context) {
+		Expression e = getExpression(context);
+		if (e == null) {
+			//a single value can be the name of another constant
+			DataElement de = value == null ? null : (DataElement) context.constants.get(value);
+			return de == null || de.checkedForExpression ? null : de;
+		}
+		if (dependencies == null) {
+			dependencies = new Vector();
+			e.getConstantNames(dependencies);
+		}
+		for (int i = 0; i < dependencies.size(); i++) {
+			DataElement de = (DataElement) context.constants.get(dependencies.elementAt(i));
+			if (de != null && !de.checkedForExpression) {
+				return de;
 			}
-			//must contain at least one sign of binary addition '|'
-			if (value.indexOf('|') < 0) {
-				return false;
-			}
-			String[] bits = value.split("\\|");
-			long result = 0;
-			
-			for (int i = 0; i < bits.length; i++) {
-				DataElement de = (DataElement)constants.get(bits[i]);
-				if (de != null) {
-					if (!de.checkedForExpression) {
-						de.resolveExpressions(constants);
-					}
-					long v = Long.decode(de.value);
-					result |= v;
-				}
+		}
+		return null;
+	}
+
+	private boolean isNumericType() {
+		return type == TYPE_BYTE || type == TYPE_SHORT || type == TYPE_INT || type == TYPE_LONG
+				|| type == TYPE_FLOAT || type == TYPE_DOUBLE;
+	}
+
+	/*
+	 * @return the parsed expression, null when the value is a single value or a constant name
+	 */
+	private Expression getExpression(CompileContext context) {
+		if (!parsed) {
+			parsed = true;
+			boolean numeric = isNumericType();
+			if (value != null && (numeric || type == TYPE_STRING || type == TYPE_FILE)
+					&& context.constants.get(value) == null) {
+				//the guessed type is a string until the expression is resolved
+				expression = Expression.parse(value, numeric || guessedType);
 			}
-			value = Long.toString(result);
-			return true;
 		}
-		return false;
+		return expression;
 	}
-	
-	private boolean resolveExpressionVariable(HashMap constants) {
+
+	private void resolveExpressions(CompileContext context) {
+		if (value == null || !(isNumericType() || type == TYPE_STRING || type == TYPE_FILE)) {
+			return;
+		}
+		Expression e = getExpression(context);
+		if (e == null) {
+			resolveExpressionVariable(context);
+			return;
+		}
+		Expression.Value v = e.evaluate(context, value);
+		if (context.verbose) {
+			context.out.println("expression: " + value + " = " + v.text);
+		}
+		value = v.text;
+		if (v.type == Expression.VALUE_LONG) {
+			longValue = v.longValue;
+			hasLongValue = true;
+			doubleValue = v.longValue;
+			hasDoubleValue = true;
+		} else
+		if (v.type == Expression.VALUE_DOUBLE) {
+			doubleValue = v.doubleValue;
+			hasDoubleValue = true;
+		}
+		//a constant defined without a type gets the type of the number
+		if (guessedType && type == TYPE_STRING && v.type != Expression.VALUE_STRING) {
+			type = v.type == Expression.VALUE_LONG ? guessType(value, null) : TYPE_FLOAT;
+		}
+	}
+
+	private boolean resolveExpressionVariable(CompileContext context) {
 		if (type == TYPE_STRING) {
 			if (value.startsWith("\"") && value.endsWith("\"")) {
 				return true;
 			}
-			DataElement de = (DataElement)constants.get(value);
+			DataElement de = (DataElement)context.constants.get(value);
 			if (de != null) {
-				if (!de.checkedForExpression) {
-					de.resolveExpressions(constants);
-				}
+				de.checkExpressions(context);
 				value = de.value;
 			} else {
-				String match = findBestMatch(constants, value);
+				String match = findBestMatch(context.constants, value);
 				if (match == null) {
 					match = "";
 				} else {
@@ -865,11 +810,9 @@ public class DataElement {
 			if (isIntegerNumber(value)) {
 				return true;
 			}
-			DataElement de = (DataElement)constants.get(value);
+			DataElement de = (DataElement)context.constants.get(value);
 			if (de != null) {
-				if (!de.checkedForExpression) {
-					de.resolveExpressions(constants);
-				}
+				de.checkExpressions(context);
 				value = de.value;
 			}
 			//note: an Exception will be thrown when parsing the value to numeric format
@@ -879,11 +822,9 @@ public class DataElement {
 			if (isDecimalNumber(value)) {
 				return true;
 			}
-			DataElement de = (DataElement)constants.get(value);
+			DataElement de = (DataElement)context.constants.get(value);
 			if (de != null) {
-				if (!de.checkedForExpression) {
-					de.resolveExpressions(constants);
-				}
+				de.checkExpressions(context);
 				value = de.value;
 			}
 			//note: an Exception will be thrown when parsing the value to numeric format
@@ -892,66 +833,6 @@ public class DataElement {
 		return false;
 	}
 
-	private boolean resolveExpressionCondition(HashMap constants) {
-		int colonIndex = value.indexOf(':');
-		if (colonIndex < 0) {
-			return false;
-		}
-		int questIndex = value.indexOf('?');
-		if (questIndex > 0 && colonIndex > questIndex) {
-			String[] parts = new String[3];
-			parts[0] = value.substring(0, questIndex).trim();
-			parts[1] = value.substring(questIndex + 1, colonIndex).trim();
-			parts[2] = value.substring(colonIndex + 1).trim();
-			boolean condition = false;
-			DataElement de = (DataElement)constants.get(parts[0]);
-			//we found a constant
-			if (de != null) {
-				if (!de.checkedForExpression) {
-					de.resolveExpressions(constants);
-				}
-				switch (de.type) {
-					case TYPE_BYTE:
-					case TYPE_SHORT:
-					case TYPE_INT: {
-						int val = Integer.decode(de.value);
-						condition = val != 0;
-					} break;
-					case TYPE_LONG: {
-						long val = Long.decode(de.value);
-						condition = val != 0;
-					} break;
-					case TYPE_FLOAT:
-					case TYPE_DOUBLE:
-					{
-						double d = Double.parseDouble(de.value);
-						condition = (d != 0.0d);
-					} break;
-					case TYPE_STRING : {
-						//the fact the string exists means the condition is true
-						condition = (de.value != null && de.value.length() > 0);
-					} break;
-					default : {
-						throw new IllegalArgumentException("expression cannot be evaluated: " + value + " type=" + de.type);
-					}
-				}
-			}
-			value = condition ? parts[1] : parts[2];
-
-			//try to resolve the result
-			de = (DataElement)constants.get(value);
-			if (de != null) {
-				if (!de.checkedForExpression) {
-					de.resolveExpressions(constants);
-				}
-				value = de.value;
-			}
-
-			return true;
-		}
-		return false;
-	}
-	
 	private String findBestMatch(HashMap map, String name) {
 		if (map == null || name == null || name.length() < 1 || name.length() > 60) {
 			return null;
@@ -0,0 +1,489 @@
+/*
+DataEmitter.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the binary data into a reusable ByteBuffer in the chosen byte order
+ * and hands the buffer to the output sink only when it's full.
+ * Allows to reserve space for a value which is not known yet (like the element
+ * counter) and to patch it later. File output is patched in place, otherwise
+ * the data following the first unpatched slot are kept in the buffer. When they
+ * don't fit into MAX_RETAINED bytes, they are moved into a temporary file which
+ * is patched instead and copied to the sink when the last slot is patched.
+ * With the alignment set, the multi-byte values are padded to their own size
+ * (at most the alignment) from the start of the output.
+ */
+public class DataEmitter {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_PENDING = 1024;
+	private static final int MAX_RETAINED = 16 * BUFFER_SIZE;	//data kept in memory for the unpatched slots
+
+	private OutputSink sink;
+	private boolean patchable;		//the output can be patched in place
+	private ByteBuffer buffer;
+	private long flushed;			//number of bytes written to the sink (and the temporary file)
+	private int alignment;			//maximum alignment of the values, 0 to pack them
+
+	//reserved slots waiting for the patch (only for the output that can't be patched in place)
+	private long[] pendingSlots = new long[MAX_PENDING];
+	private int pendingCount;
+
+	//temporary file holding the data after the first unpatched slot, null when they are in the buffer
+	private File spillFile;
+	private RandomAccessFile spill;
+	private long spillStart;		//output position of the first byte in the file
+
+	public DataEmitter(OutputStream os, boolean littleEndian) {
+		this(new ChannelSink(os), littleEndian);
+	}
+
+	public DataEmitter(OutputSink sink, boolean littleEndian) {
+		this.sink = sink;
+		patchable = sink.canPatch();
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		buffer.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+	}
+
+	public ByteOrder order() {
+		return buffer.order();
+	}
+
+	public void setAlignment(int alignment) {
+		this.alignment = alignment;
+	}
+
+	public int getAlignment() {
+		return alignment;
+	}
+
+	/**
+	 * Writes zeros up to the multiple of 'size' bytes (at most the alignment).
+	 * Does nothing when the values are packed.
+	 */
+	public void align(int size) throws IOException {
+		if (alignment == 0) {
+			return;
+		}
+		int boundary = Math.min(size, alignment);
+		int padding = (int) (-getPosition() & (boundary - 1));
+		if (padding > 0) {
+			writeZeros(padding);
+		}
+	}
+
+	/**
+	 * @return number of bytes written so far
+	 */
+	public long getPosition() {
+		return flushed + buffer.position();
+	}
+
+	public void writeByte(int v) throws IOException {
+		ensureCapacity(1);
+		buffer.put((byte) v);
+	}
+
+	public void writeShort(short v) throws IOException {
+		if (alignment != 0) {
+			align(2);
+		}
+		ensureCapacity(2);
+		buffer.putShort(v);
+	}
+
+	public void writeInt(int v) throws IOException {
+		if (alignment != 0) {
+			align(4);
+		}
+		ensureCapacity(4);
+		buffer.putInt(v);
+	}
+
+	public void writeLong(long v) throws IOException {
+		if (alignment != 0) {
+			align(8);
+		}
+		ensureCapacity(8);
+		buffer.putLong(v);
+	}
+
+	public void writeFloat(float v) throws IOException {
+		if (alignment != 0) {
+			align(4);
+		}
+		ensureCapacity(4);
+		buffer.putFloat(v);
+	}
+
+	public void writeDouble(double v) throws IOException {
+		if (alignment != 0) {
+			align(8);
+		}
+		ensureCapacity(8);
+		buffer.putDouble(v);
+	}
+
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, room(1));
+			buffer.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	public void writeZeros(int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, room(1));
+			for (int i = 0; i < n; i++) {
+				buffer.put((byte) 0);
+			}
+			len -= n;
+		}
+	}
+
+	public void putShorts(short[] v, int off, int len) throws IOException {
+		if (alignment != 0 && len > 0) {
+			align(2);
+		}
+		while (len > 0) {
+			int n = Math.min(len, room(2) / 2);
+			buffer.asShortBuffer().put(v, off, n);
+			buffer.position(buffer.position() + n * 2);
+			off += n;
+			len -= n;
+		}
+	}
+
+	public void putInts(int[] v, int off, int len) throws IOException {
+		if (alignment != 0 && len > 0) {
+			align(4);
+		}
+		while (len > 0) {
+			int n = Math.min(len, room(4) / 4);
+			buffer.asIntBuffer().put(v, off, n);
+			buffer.position(buffer.position() + n * 4);
+			off += n;
+			len -= n;
+		}
+	}
+
+	public void putLongs(long[] v, int off, int len) throws IOException {
+		if (alignment != 0 && len > 0) {
+			align(8);
+		}
+		while (len > 0) {
+			int n = Math.min(len, room(8) / 8);
+			buffer.asLongBuffer().put(v, off, n);
+			buffer.position(buffer.position() + n * 8);
+			off += n;
+			len -= n;
+		}
+	}
+
+	public void putFloats(float[] v, int off, int len) throws IOException {
+		if (alignment != 0 && len > 0) {
+			align(4);
+		}
+		while (len > 0) {
+			int n = Math.min(len, room(4) / 4);
+			buffer.asFloatBuffer().put(v, off, n);
+			buffer.position(buffer.position() + n * 4);
+			off += n;
+			len -= n;
+		}
+	}
+
+	public void putDoubles(double[] v, int off, int len) throws IOException {
+		if (alignment != 0 && len > 0) {
+			align(8);
+		}
+		while (len > 0) {
+			int n = Math.min(len, room(8) / 8);
+			buffer.asDoubleBuffer().put(v, off, n);
+			buffer.position(buffer.position() + n * 8);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Copies 'size' bytes from the start of the source file. The data go straight
+	 * to the output sink (without a copy on the heap) unless they have to be
+	 * kept in the buffer because of an unpatched slot.
+	 */
+	public void transferFrom(FileChannel source, long size) throws IOException {
+		long pos = 0;
+		if (pendingCount == 0) {
+			writeBuffer(buffer.position());
+			sink.transferFrom(source, size);
+			flushed += size;
+			return;
+		}
+		while (pos < size) {
+			int n = (int) Math.min(room(1), size - pos);
+			int limit = buffer.limit();
+			buffer.limit(buffer.position() + n);
+			n = source.read(buffer, pos);
+			buffer.limit(limit);
+			if (n <= 0) {
+				throw new EOFException("file truncated at " + pos + " bytes, expected " + size);
+			}
+			pos += n;
+		}
+	}
+
+	/**
+	 * Writes the string the same way as DataOutputStream.writeUTF() does:
+	 * big endian length followed by the modified UTF-8 bytes.
+	 */
+	public void writeUTF(String s) throws IOException {
+		final int len = s.length();
+		int utflen = 0;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				utflen++;
+			} else
+			if (c > 0x07FF) {
+				utflen += 3;
+			} else {
+				utflen += 2;
+			}
+		}
+		if (utflen > 65535) {
+			throw new UTFDataFormatException("encoded string too long: " + utflen + " bytes");
+		}
+		ensureCapacity(2);
+		buffer.put((byte) (utflen >> 8));
+		buffer.put((byte) utflen);
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			ensureCapacity(3);
+			if (c >= 0x0001 && c <= 0x007F) {
+				buffer.put((byte) c);
+			} else
+			if (c > 0x07FF) {
+				buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+				buffer.put((byte) (0x80 | ((c >>  6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			} else {
+				buffer.put((byte) (0xC0 | ((c >>  6) & 0x1F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * @return the buffer with the space for 'size' bytes, the caller puts the bytes at its position
+	 */
+	ByteBuffer getBuffer(int size) throws IOException {
+		ensureCapacity(size);
+		return buffer;
+	}
+
+	/**
+	 * Writes 'size' zero bytes as a placeholder.
+	 * @return the slot position to be passed to patchShort() or patchInt()
+	 */
+	public long reserve(int size) throws IOException {
+		align(size);
+		ensureCapacity(size);
+		long slot = getPosition();
+		if (!patchable) {
+			if (pendingCount == MAX_PENDING) {
+				throw new IllegalStateException("too many unpatched slots");
+			}
+			pendingSlots[pendingCount++] = slot;
+		}
+		for (int i = 0; i < size; i++) {
+			buffer.put((byte) 0);
+		}
+		return slot;
+	}
+
+	public void patchShort(long slot, short v) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(2).order(buffer.order());
+		bb.putShort(v);
+		patch(slot, bb);
+	}
+
+	public void patchInt(long slot, int v) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(4).order(buffer.order());
+		bb.putInt(v);
+		patch(slot, bb);
+	}
+
+	private void patch(long slot, ByteBuffer data) throws IOException {
+		data.flip();
+		if (!patchable) {
+			removePending(slot);
+		}
+		//the slot is still in the buffer
+		if (slot >= flushed) {
+			int index = (int) (slot - flushed);
+			while (data.hasRemaining()) {
+				buffer.put(index++, data.get());
+			}
+		} else
+		if (spill != null) {
+			FileChannel channel = spill.getChannel();
+			long position = slot - spillStart;
+			while (data.hasRemaining()) {
+				position += channel.write(data, position);
+			}
+		} else {
+			sink.patch(slot, data);
+		}
+		if (spill != null && pendingCount == 0) {
+			endSpill();
+		}
+	}
+
+	/*
+	 * Moves the data kept for the unpatched slots from the buffer into the temporary file.
+	 */
+	private void startSpill() throws IOException {
+		spillFile = File.createTempFile("gdc", ".tmp");
+		spillFile.deleteOnExit();
+		spill = new RandomAccessFile(spillFile, "rw");
+		spillStart = flushed;
+		writeBuffer(buffer.position());
+	}
+
+	/*
+	 * Copies the patched data from the temporary file to the sink.
+	 */
+	private void endSpill() throws IOException {
+		FileChannel channel = spill.getChannel();
+		sink.transferFrom(channel, flushed - spillStart);
+		discard();
+	}
+
+	/**
+	 * Removes the temporary file of the unpatched data, used when the compilation fails.
+	 */
+	public void discard() {
+		if (spill == null) {
+			return;
+		}
+		try {
+			spill.close();
+		} catch (IOException e) {
+		}
+		spillFile.delete();
+		spill = null;
+		spillFile = null;
+	}
+
+	private void removePending(long slot) {
+		for (int i = 0; i < pendingCount; i++) {
+			if (pendingSlots[i] == slot) {
+				pendingSlots[i] = pendingSlots[--pendingCount];
+				return;
+			}
+		}
+		throw new IllegalStateException("slot not reserved: " + slot);
+	}
+
+	/*
+	 * Makes sure there is a space for at least 'size' bytes and
+	 * returns the number of bytes that can be written at once.
+	 */
+	private int room(int size) throws IOException {
+		ensureCapacity(size);
+		return buffer.remaining();
+	}
+
+	private void ensureCapacity(int size) throws IOException {
+		if (buffer.remaining() >= size) {
+			return;
+		}
+		//write the data up to the first unpatched slot, the temporary file can be patched
+		long end = getPosition();
+		for (int i = 0; i < pendingCount && spill == null; i++) {
+			if (pendingSlots[i] < end) {
+				end = pendingSlots[i];
+			}
+		}
+		writeBuffer((int) (end - flushed));
+		if (buffer.remaining() < size && spill == null && buffer.position() + size > MAX_RETAINED) {
+			startSpill();
+		}
+		if (buffer.remaining() < size) {
+			ByteBuffer newBuffer = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + size));
+			newBuffer.order(buffer.order());
+			buffer.flip();
+			newBuffer.put(buffer);
+			buffer = newBuffer;
+		}
+	}
+
+	/*
+	 * Writes 'size' bytes from the start of the buffer to the sink.
+	 */
+	private void writeBuffer(int size) throws IOException {
+		if (size <= 0) {
+			return;
+		}
+		int position = buffer.position();
+		buffer.position(0);
+		buffer.limit(size);
+		if (spill != null) {
+			FileChannel channel = spill.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} else {
+			sink.write(buffer);
+		}
+		buffer.limit(position);
+		buffer.compact();
+		flushed += size;
+	}
+
+	public void flush() throws IOException {
+		if (pendingCount == 0) {
+			writeBuffer(buffer.position());
+		}
+	}
+
+	public void close() throws IOException {
+		if (pendingCount > 0) {
+			discard();
+			throw new IllegalStateException("unpatched slots: " + pendingCount);
+		}
+		writeBuffer(buffer.position());
+		sink.close();
+	}
+}
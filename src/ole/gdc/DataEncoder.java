@@ -0,0 +1,416 @@
+/*
+DataEncoder.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes the parsed data nodes into the binary output. Keeps track of the
+ * data blocks, fills in the default values of the struct elements and
+ * back-patches the element counters.
+ */
+public class DataEncoder {
+	private static final int MAX_STRUCT_LEVEL = 256;
+
+	private DataEmitter emitter;
+	private CompileContext context;
+	private String path;
+
+	private DataStruct struct;
+	private DataStruct[] structStack = new DataStruct[MAX_STRUCT_LEVEL];
+	private int[] structElementIndices = new int[MAX_STRUCT_LEVEL];
+	private int structElementIndex;
+	private int level;
+
+	//element counters: reserved output slot and number of blocks counted on each level
+	private long[] counterSlots = new long[MAX_STRUCT_LEVEL];
+	private int[] counterValues = new int[MAX_STRUCT_LEVEL];
+
+	//offset tables '{#@}': the blocks of the level are captured until the number of them is known
+	private DataEmitter[] indexParents = new DataEmitter[MAX_STRUCT_LEVEL];	//emitter the table and the blocks go to
+	private TempSink[] indexData = new TempSink[MAX_STRUCT_LEVEL];	//the blocks of the list, written after the table
+	private long[][] indexOffsets = new long[MAX_STRUCT_LEVEL][];
+
+	public DataEncoder(DataEmitter emitter, CompileContext context, String path) {
+		this.emitter = emitter;
+		this.context = context;
+		this.path = path;
+		Arrays.fill(counterSlots, -1);
+	}
+
+	public void encode(DataNode node) throws Exception {
+		CompileStats stats = context.stats;
+		if (stats == null) {
+			encodeNodes(node);
+			return;
+		}
+		int phase = stats.enter(CompileStats.PHASE_ENCODE);
+		try {
+			encodeNodes(node);
+		} finally {
+			stats.leave(phase);
+		}
+	}
+
+	private void encodeNodes(DataNode node) throws Exception {
+		for (; node != null; node = node.next) {
+			encodeNode(node);
+		}
+	}
+
+	/**
+	 * Encodes the node without the nodes chained to it.
+	 */
+	void encodeNode(DataNode node) throws Exception {
+		switch (node.kind) {
+			case DataNode.NODE_COUNTER: {
+				//the counter ends where the next counter on the same level starts
+				endCounter(level);
+				long position = emitter.getPosition();
+				counterSlots[level] = emitter.reserve(context.useIntegerArraySize ? 4 : 2);
+				if (context.stats != null) {
+					context.stats.addBytes(CompileStats.TYPE_COUNTER, emitter.getPosition() - position);
+				}
+				counterValues[level] = 0;
+			} break;
+			case DataNode.NODE_INDEX: {
+				endCounter(level);
+				startIndex(level);
+				counterValues[level] = 0;
+			} break;
+			case DataNode.NODE_OPEN: {
+				openBlock(node);
+			} break;
+			case DataNode.NODE_CLOSE: {
+				closeBlock(node);
+			} break;
+			case DataNode.NODE_CONSTANT: {
+				node.element.store(emitter, node.value, node.element.type, context, path, true, node.sourceLine);
+			} break;
+			case DataNode.NODE_VALUE: {
+				storeValue(node);
+			} break;
+			case DataNode.NODE_IMPORT: {
+				importRecords(node);
+			} break;
+		}
+	}
+
+	/*
+	 * Stores each record of the imported file as a block of the struct. The values
+	 * go through the same nodes as the lines of a hand-written block, so they are
+	 * counted, checked and completed by the defaults the same way.
+	 */
+	private void importRecords(DataNode node) throws Exception {
+		DataStruct struct = node.struct;
+		context.dependencies.add(node.file.getPath());
+		RecordReader reader = new RecordReader(node.file, DataCompiler.fixEncoding(context.encoding), node.format, struct);
+		//the warnings point at the record
+		LineItem scriptLine = context.li;
+		int scriptLineNumber = context.lineNumber;
+		try {
+			LineItem li = new LineItem(node.sourceLine.line, 0, reader.getFileName());
+			li.imported = true;
+			context.li = li;
+			DataNode open = new DataNode(DataNode.NODE_OPEN, li);
+			open.name = struct.name;
+			open.struct = struct;
+			DataNode close = new DataNode(DataNode.NODE_CLOSE, li);
+			DataNode value = new DataNode(DataNode.NODE_VALUE, li);
+			String[] values = reader.getValues();
+			DataElement[] fields = struct.fields;
+			while (reader.next()) {
+				li.number = reader.getLineNumber();
+				context.lineNumber = li.number;
+				try {
+					openBlock(open);
+					for (int i = 0; i < fields.length; i++) {
+						if (values[i] == null) {
+							continue;
+						}
+						DataElement de = fields[i];
+						value.name = de.name;
+						value.element = de;
+						value.value = DataElement.literal(values[i], de.type, li);
+						storeValue(value);
+					}
+					closeBlock(close);
+				} catch (RuntimeException e) {
+					throw new IllegalArgumentException(e + " in " + li.getSource());
+				}
+			}
+		} finally {
+			context.li = scriptLine;
+			context.lineNumber = scriptLineNumber;
+			reader.close();
+		}
+	}
+
+	private void openBlock(DataNode node) throws Exception {
+		int parentLevel = level;
+		if (counterSlots[level] >= 0 || indexParents[level] != null) {
+			counterValues[level]++;
+		}
+		DataStruct parentStruct = struct;
+		int parentStructureElementIndex = structElementIndex;
+		structElementIndices[level] = structElementIndex + 1; //include this struct
+		level++;
+		struct = node.struct;
+		//block of a struct element in the parent struct
+		if (node.element != null) {
+			//if not all data were saved from the parent structure
+			DataElement structElement = parentStruct.getElement(parentStructureElementIndex);
+			if (structElement == null) {
+				throw new RuntimeException("data in struct " + struct.name + " is undefined on element index " + structElementIndex);
+			}
+			if (structElement != node.element) {
+				DataElement[] fields = parentStruct.fields;
+				while (structElement != node.element) {
+					//element doesn't have a default value
+					if (!parentStruct.hasDefault[parentStructureElementIndex]) {
+						throw new RuntimeException("data element mismatch in struct '" + struct.name + "', element index " + structElementIndex + " name=" + node.name + " expected=" + structElement.name);
+					}
+					storeDefault(parentStruct, parentStructureElementIndex, node);
+					parentStructureElementIndex++;
+					if (parentStructureElementIndex < fields.length) {
+						structElement = fields[parentStructureElementIndex];
+					} else {
+						throw new RuntimeException("unknown element in struct " + struct.name + ", element name=" + node.name);
+					}
+				}
+				structElementIndices[level - 1] = parentStructureElementIndex + 1;
+			}
+		}
+		if (struct != null) {
+			struct.align(emitter, context);
+		}
+		//the block starts after the defaults of the preceding struct elements
+		if (indexParents[parentLevel] != null) {
+			addOffset(parentLevel, emitter.getPosition());
+		}
+		structStack[level] = struct;
+		structElementIndices[level] = 0;
+		structElementIndex = 0;
+	}
+
+	private void closeBlock(DataNode node) throws Exception {
+		//struct exists and not all element were saved yet -> save them
+		if (struct != null && structElementIndex < struct.fields.length) {
+			DataElement[] fields = struct.fields;
+			while (structElementIndex < fields.length) {
+				DataElement structElement = fields[structElementIndex];
+				//element doesn't have a default value
+				if (!struct.hasDefault[structElementIndex]) {
+					throw new RuntimeException("data element doesn't have default value, struct=" + struct.name +  "  element name=" + structElement.name);
+				}
+				storeDefault(struct, structElementIndex, node);
+				structElementIndex++;
+			}
+		}
+		//end of the level ends its counter
+		endCounter(level);
+		if (struct != null) {
+			struct.align(emitter, context);
+		}
+		level--;
+		struct = structStack[level];
+		structElementIndex = structElementIndices[level];
+	}
+
+	private void storeValue(DataNode node) throws Exception {
+		//no structure defined in this data block -> save as it is
+		if (struct == null) {
+			node.element.store(emitter, node.value, node.element.type, context, path, true, node.sourceLine);
+			return;
+		}
+		DataElement structElement = struct.getElement(structElementIndex);
+		if (structElement == null) {
+			throw new RuntimeException("data in struct " + struct.name + " is undefined on element index " + structElementIndex);
+		}
+		DataElement[] fields = struct.fields;
+		while (structElement != node.element) {
+			//element doesn't have a default value
+			if (!struct.hasDefault[structElementIndex]) {
+				throw new RuntimeException("data element mismatch in struct '" + struct.name + "', element index " + structElementIndex + " name=" + node.name + " expected=" + structElement.name);
+			}
+			storeDefault(struct, structElementIndex, node);
+			structElementIndex++;
+			if (structElementIndex < fields.length) {
+				structElement = fields[structElementIndex];
+			} else {
+				throw new RuntimeException("unknown element in struct " + struct.name + ", element name=" + node.name);
+			}
+		}
+		//we have found the matching element -> save the value
+		structElement.store(emitter, node.value, structElement.type, context, path, true, node.sourceLine);
+		structElementIndex++;
+	}
+
+	/*
+	 * Stores the default value of the struct element omitted by the data.
+	 */
+	private void storeDefault(DataStruct struct, int index, DataNode node) throws Exception {
+		byte[] template = struct.getDefaultTemplate(index, context);
+		DataElement structElement = struct.fields[index];
+		if (template == null) {
+			structElement.store(emitter, structElement.getResolvedValue(context), structElement.type, context, path, true, node.sourceLine);
+			return;
+		}
+		emitter.write(template);
+		if (context.stats != null) {
+			context.stats.addBytes(structElement.type, template.length);
+		}
+	}
+
+	/**
+	 * Writes a top-level block encoded by another encoder (see ParallelEncoder),
+	 * the block is counted by the counter of the top level.
+	 */
+	void writeBlock(byte[] data) throws IOException {
+		if (counterSlots[0] >= 0 || indexParents[0] != null) {
+			counterValues[0]++;
+		}
+		if (indexParents[0] != null) {
+			addOffset(0, emitter.getPosition());
+		}
+		emitter.write(data);
+	}
+
+	private void endCounter(int lvl) throws IOException {
+		if (counterSlots[lvl] >= 0) {
+			writeCounter(counterSlots[lvl], counterValues[lvl]);
+			counterSlots[lvl] = -1;
+		}
+		if (indexParents[lvl] != null) {
+			writeIndex(lvl);
+		}
+	}
+
+	/*
+	 * Redirects the output into memory until the end of the list on the level.
+	 */
+	private void startIndex(int lvl) {
+		indexParents[lvl] = emitter;
+		indexData[lvl] = new TempSink();
+		if (indexOffsets[lvl] == null) {
+			indexOffsets[lvl] = new long[64];
+		}
+		emitter = new DataEmitter(indexData[lvl], context.littleEndian);
+		emitter.setAlignment(indexParents[lvl].getAlignment());
+	}
+
+	private void addOffset(int lvl, long offset) {
+		long[] offsets = indexOffsets[lvl];
+		int index = counterValues[lvl] - 1;
+		if (index == offsets.length) {
+			offsets = new long[offsets.length * 2];
+			System.arraycopy(indexOffsets[lvl], 0, offsets, 0, index);
+			indexOffsets[lvl] = offsets;
+		}
+		offsets[index] = offset;
+	}
+
+	/*
+	 * Writes the offset table followed by the captured data of the list.
+	 */
+	private void writeIndex(int lvl) throws IOException {
+		//the inner levels are closed, so the captured output is the current emitter
+		emitter.close();
+		emitter = indexParents[lvl];
+		indexParents[lvl] = null;
+		TempSink data = indexData[lvl];
+		indexData[lvl] = null;
+		try {
+			writeTable(lvl);
+			data.copyTo(emitter);
+		} finally {
+			data.discard();
+		}
+	}
+
+	/*
+	 * Writes the counter, the width of the offsets (2, 4 or 8 bytes) and the offsets of the blocks
+	 * relative to the end of the table. The end of the table is padded to the largest alignment,
+	 * so the captured data keep their alignment.
+	 */
+	private void writeTable(int lvl) throws IOException {
+		int count = counterValues[lvl];
+		long[] offsets = indexOffsets[lvl];
+		long last = count > 0 ? offsets[count - 1] : 0;
+		int width = last > 0xFFFFFFFFL ? 8 : (last > 0xFFFF ? 4 : 2);
+		long start = emitter.getPosition();
+		if (context.useIntegerArraySize) {
+			emitter.writeInt(count);
+		} else {
+			emitter.writeShort((short) count);
+		}
+		emitter.writeByte(width);
+		for (int i = 0; i < count; i++) {
+			switch (width) {
+				case 2: emitter.writeShort((short) offsets[i]); break;
+				case 4: emitter.writeInt((int) offsets[i]); break;
+				default: emitter.writeLong(offsets[i]); break;
+			}
+		}
+		long end = emitter.getPosition();
+		emitter.align(8);
+		if (context.stats != null) {
+			context.stats.addBytes(CompileStats.TYPE_COUNTER, end - start);
+			context.stats.addBytes(CompileStats.TYPE_PADDING, emitter.getPosition() - end);
+		}
+	}
+
+	private void writeCounter(long slot, int count) throws IOException {
+		if (context.useIntegerArraySize) {
+			emitter.patchInt(slot, count);
+		} else {
+			emitter.patchShort(slot, (short) count);
+		}
+	}
+
+	/**
+	 * Releases the temporary files of the unpatched counters when the compilation fails.
+	 */
+	public void discard() {
+		emitter.discard();
+		for (int i = 0; i < MAX_STRUCT_LEVEL; i++) {
+			if (indexParents[i] != null) {
+				indexParents[i].discard();
+			}
+			if (indexData[i] != null) {
+				indexData[i].discard();
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending counters and closes the output.
+	 */
+	public void close() throws IOException {
+		//the inner lists are captured by the outer ones
+		for (int i = MAX_STRUCT_LEVEL - 1; i >= 0; i--) {
+			endCounter(i);
+		}
+		if (context.stringPool != null) {
+			context.stringPool.write(emitter, context.stats);
+		}
+		emitter.close();
+	}
+}
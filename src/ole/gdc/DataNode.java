@@ -0,0 +1,50 @@
+/*
+DataNode.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.File;
+
+/**
+ * Parsed data line. The element names and the value texts are already resolved,
+ * so the encoder doesn't need to look at the source text again.
+ */
+public class DataNode {
+	public static final int NODE_OPEN = 1;		// '{' or '{ StructName' - start of a data block
+	public static final int NODE_CLOSE = 2;		// '}' - end of a data block
+	public static final int NODE_COUNTER = 3;	// '{#}' - element counter
+	public static final int NODE_VALUE = 4;		// 'name = value' - value of a data element
+	public static final int NODE_CONSTANT = 5;	// 'CONSTANT' - constant stored on its own
+	public static final int NODE_INDEX = 6;		// '{#@}' - element counter followed by the offsets of the blocks
+	public static final int NODE_IMPORT = 7;	// '#import csv "file" StructName' - struct blocks read from the file
+
+	int kind;
+	LineItem sourceLine;
+	String name;		//element name or the struct name of the block
+	DataStruct struct;	//NODE_OPEN, NODE_IMPORT: struct the block adheres to, null for anonymous blocks
+	File file;		//NODE_IMPORT: the imported file
+	int format;		//NODE_IMPORT: RecordReader.FORMAT_CSV or FORMAT_JSONL
+	DataElement element;	//NODE_VALUE, NODE_CONSTANT: element that stores the value
+	DataElement value;	//NODE_VALUE, NODE_CONSTANT: resolved value (see DataElement.resolveValue())
+	DataNode next;		//another node produced by the same source line
+
+	DataNode(int kind, LineItem sourceLine) {
+		this.kind = kind;
+		this.sourceLine = sourceLine;
+	}
+}
@@ -0,0 +1,373 @@
+/*
+DataParser.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+
+/**
+ * Parses the script lines. The data element and struct definitions are stored
+ * in the element, constant and struct tables, the data lines are turned into
+ * DataNodes which are then written by the DataEncoder.
+ */
+public class DataParser {
+	private static final int MAX_STRUCT_LEVEL = 256;
+
+	private CompileContext context;
+	private HashMap elements;
+	private HashMap constants;
+	private HashMap structs;
+
+	private DataStruct definition;	//struct being defined
+	private DataStruct[] structStack = new DataStruct[MAX_STRUCT_LEVEL];
+	private int level;
+
+	Object lastDefinition;	//element or struct defined by the last parsed line
+
+	public DataParser(CompileContext context) {
+		this.context = context;
+		this.elements = context.elements;
+		this.constants = context.constants;
+		this.structs = context.structs;
+	}
+
+	/**
+	 * @return parsed data line or null if the line was a definition
+	 */
+	public DataNode parse(LineItem li) {
+		CompileStats stats = context.stats;
+		if (stats == null) {
+			return parseLine(li);
+		}
+		int phase = stats.enter(CompileStats.PHASE_PARSE);
+		try {
+			return parseLine(li);
+		} finally {
+			stats.leave(phase);
+		}
+	}
+
+	/**
+	 * @return true when the next line is outside of the data blocks
+	 */
+	boolean isTopLevel() {
+		return level == 0;
+	}
+
+	private DataNode parseLine(LineItem li) {
+		String line = li.line;
+		lastDefinition = null;
+		if (li.header != null) {
+			return parseHeader(li.header);
+		}
+		if (isImport(line)) {
+			return parseImport(li);
+		}
+		//parse data elements definition at the zero level
+		if (level == 0 && !line.startsWith("{")) {
+			parseDefinition(li);
+			return null;
+		}
+		if (line.startsWith("{#@}")) {
+			return new DataNode(DataNode.NODE_INDEX, li);
+		}
+		if (line.startsWith("{#}")) {
+			return new DataNode(DataNode.NODE_COUNTER, li);
+		}
+		if (line.startsWith("{")) {
+			return parseBlockStart(li);
+		}
+		if (line.startsWith("}")) {
+			if (level == 0) {
+				throw new RuntimeException("end block marker '}' without start of the block");
+			}
+			level--;
+			return new DataNode(DataNode.NODE_CLOSE, li);
+		}
+		return parseValue(li);
+	}
+
+	private void parseDefinition(LineItem li) {
+		String line = li.line;
+		//start of struct
+		//'struct name StructName' inside a struct definition is a struct element
+		if (line.startsWith("struct")&& (line.charAt(6) == ' ' ||  line.charAt(6) == '\t')
+				&& (definition == null || line.indexOf('{') >= 0)) {
+			if (definition == null) {
+				int idx = line.indexOf("{");
+				if (idx < 0) {
+					throw new RuntimeException("syntax error: struct not opened with '<'");
+				}
+				String name = line.substring(7, idx).trim();
+				if (name == null || name.length() < 1) {
+					throw new RuntimeException("syntax error: struc name missing");
+				}
+				definition = new DataStruct(name, li);
+			} else {
+				throw new RuntimeException("struct within struct not supported");
+			}
+		} else
+		//end of struct
+		if (line.equals("}")) {
+			if (definition == null) {
+				throw new RuntimeException("end block marker '>' within data definition");
+			}
+			if (definition.getSize() < 1) {
+				throw new RuntimeException("empy struct definition");
+			}
+			definition.finish();
+			structs.put(definition.name, definition);
+			lastDefinition = definition;
+			definition = null;
+		} else
+		//data element
+		{
+			DataElement de = new DataElement(li, context);
+			//add data element into the last defined (current) struct
+			if (definition != null) {
+				//check the struct name exists
+				if (de.type == DataElement.TYPE_STRUCT) {
+					DataStruct ds = (DataStruct) structs.get(de.value);
+					if (ds == null) {
+						throw new RuntimeException ("unknown struct name=" + de.value);
+					}
+					de.struct = ds;
+				}
+				DataElement old = definition.addElement(de);
+				context.checkElements(de, old);
+			}
+			//add data element into global variables
+			else {
+				//variable cannot be a structure in global definition
+				if (de.type == DataElement.TYPE_STRUCT) {
+					throw new RuntimeException("variable cannot be a structure");
+				}
+				define(de);
+				lastDefinition = de;
+			}
+		}
+	}
+
+	private void define(DataElement de) {
+		if (de.isConstant()) {
+			DataElement old = (DataElement) constants.put(de.name, de);
+			context.checkElements(de, old);
+		} else {
+			DataElement old = (DataElement) elements.put(de.name, de);
+			context.checkElements(de, old);
+		}
+	}
+
+	/**
+	 * @return true if a struct definition is not closed yet
+	 */
+	boolean isDefining() {
+		return definition != null;
+	}
+
+	/*
+	 * Replays the precompiled header. The definitions are stored directly, the
+	 * lines are parsed again only when the header is included inside a struct
+	 * definition or a data block.
+	 */
+	private DataNode parseHeader(PrecompiledHeader header) {
+		LineItem li = context.li;
+		boolean parsed = level == 0 && definition == null;
+		DataNode first = null;
+		DataNode last = null;
+		for (int i = 0; i < header.entries.size(); i++) {
+			PrecompiledHeader.Entry e = (PrecompiledHeader.Entry) header.entries.elementAt(i);
+			if (e.kind != PrecompiledHeader.ENTRY_LINE) {
+				//the constants are defined by the preprocessor unless the compilation is streamed
+				if (context.streaming) {
+					PrecompiledHeader.defineConstant(e, context);
+				}
+				continue;
+			}
+			context.li = e.item;
+			if (!parsed) {
+				DataNode node = parse(e.item);
+				if (node == null) {
+					continue;
+				}
+				if (first == null) {
+					first = node;
+				} else {
+					last.next = node;
+				}
+				last = node;
+				while (last.next != null) {
+					last = last.next;
+				}
+			} else
+			if (e.definition instanceof DataElement) {
+				define((DataElement) e.definition);
+			} else
+			if (e.definition instanceof DataStruct) {
+				DataStruct ds = (DataStruct) e.definition;
+				for (int j = 0; j < ds.getSize(); j++) {
+					DataElement de = (DataElement) ds.elements.elementAt(j);
+					if (de.type == DataElement.TYPE_STRUCT) {
+						de.struct = (DataStruct) structs.get(de.value);
+					}
+				}
+				ds.finish();
+				structs.put(ds.name, ds);
+			}
+		}
+		lastDefinition = null;
+		context.li = li;
+		return first;
+	}
+
+	private DataNode parseBlockStart(LineItem li) {
+		String line = li.line;
+		if (definition != null) {
+			throw new RuntimeException("struct " + definition.name + " not closed");
+		}
+		if (level + 1 >= MAX_STRUCT_LEVEL) {
+			throw new RuntimeException("data blocks nested too deeply");
+		}
+		DataNode node = new DataNode(DataNode.NODE_OPEN, li);
+		DataStruct parentStruct = structStack[level];
+		DataStruct struct = null;
+		//check struct
+		if (line.length() > 1) {
+			String structName = line.substring(1).trim();
+			node.name = structName;
+			//search in anonymous structures
+			if (parentStruct == null) {
+				struct = (DataStruct) structs.get(structName);
+				if (struct == null) {
+					throw new RuntimeException("struct " + structName + " doesn't exist.");
+				}
+			} else
+			//search in named data element in the parent structure
+			{
+				DataElement de = parentStruct.getElement(structName);
+				if (de == null) {
+					throw new RuntimeException("struct name=" + structName + " not found ");
+				}
+				//search in anonymous structures
+				struct = (DataStruct) structs.get(de.value);
+				if (struct == null) {
+					throw new RuntimeException("struct " + structName + " doesn't exist.");
+				}
+				node.element = de;
+			}
+		}
+		level++;
+		structStack[level] = struct;
+		node.struct = struct;
+		return node;
+	}
+
+	static boolean isImport(String line) {
+		return line.startsWith("#import") && line.length() > 7 && (line.charAt(7) == ' ' || line.charAt(7) == '\t');
+	}
+
+	/*
+	 * '#import csv|jsonl "file" StructName': each record of the file is a '{ StructName' block.
+	 * The file is looked up next to the source and in the include directories.
+	 */
+	private DataNode parseImport(LineItem li) {
+		if (definition != null) {
+			throw new RuntimeException("struct " + definition.name + " not closed");
+		}
+		if (structStack[level] != null) {
+			throw new RuntimeException("#import can't be used in the block of struct " + structStack[level].name);
+		}
+		String[] parts = Utils.split(li.line.substring(8).trim(), " \t");
+		if (parts.length != 3 || !Utils.hasQuotes(parts[1]) || parts[1].length() < 2) {
+			throw new RuntimeException("syntax error: expected #import csv|jsonl \"file\" StructName");
+		}
+		DataNode node = new DataNode(DataNode.NODE_IMPORT, li);
+		node.format = RecordReader.getFormat(parts[0]);
+		if (node.format < 0) {
+			throw new RuntimeException("unknown import format: " + parts[0] + ", use csv or jsonl");
+		}
+		node.name = parts[2];
+		node.struct = (DataStruct) structs.get(node.name);
+		if (node.struct == null) {
+			throw new RuntimeException("struct " + node.name + " doesn't exist.");
+		}
+		File parent = new File(li.source).getParentFile();
+		node.file = Utils.findFile(parent == null ? "." : parent.getPath(), Utils.removeQuotes(parts[1]), context.includeDirs);
+		return node;
+	}
+
+	private DataNode parseValue(LineItem li) {
+		String line = li.line;
+		DataNode node = null;
+		StringTokenizer st = new StringTokenizer(line, "=:");
+		int tokenSize = st.countTokens();
+		if (tokenSize < 1) {
+			throw new IllegalArgumentException("can't convert: " + line );
+		}
+		String name = st.nextToken().trim();
+		String value;
+		if (tokenSize < 2) {
+			// check whether we try to write a constant
+			DataElement de = (DataElement) constants.get(name);
+			if (de == null || de.value == null) {
+				throw new IllegalArgumentException("can't convert: " + line );
+			}
+			node = new DataNode(DataNode.NODE_CONSTANT, li);
+			node.name = name;
+			node.element = de;
+			node.value = de.getResolvedValue(context);
+			value = de.value;
+		} else {
+			value = st.nextToken();
+		}
+		//append rest of the tokens
+		if (tokenSize > 2) {
+			int idx = line.indexOf(value);
+			value = line.substring(idx);
+		}
+		DataStruct struct = structStack[level];
+		//no structure defined in this data block -> save as it is
+		if (struct == null) {
+			if (node == null) {
+				DataElement de = (DataElement) elements.get(name);
+				if (de == null) {
+					throw new IllegalArgumentException("unknown data element: " + name );
+				}
+				node = new DataNode(DataNode.NODE_VALUE, li);
+				node.name = name;
+				node.element = de;
+				node.value = de.resolveValue(value, de.type, context);
+			}
+			return node;
+		}
+		DataNode fieldNode = new DataNode(DataNode.NODE_VALUE, li);
+		fieldNode.name = name;
+		fieldNode.element = struct.getElement(name);
+		//an unknown element is reported by the encoder when it doesn't find it in the struct
+		if (fieldNode.element != null) {
+			fieldNode.value = fieldNode.element.resolveValue(value, fieldNode.element.type, context);
+		}
+		if (node == null) {
+			return fieldNode;
+		}
+		node.next = fieldNode;
+		return node;
+	}
+}
@@ -17,17 +17,33 @@ General Public License for more details.
 */
 package ole.gdc;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Vector;
 
+/**
+ * Struct definition. When the definition is closed, finish() creates the layout
+ * used by the encoder: the elements in an array, the elements having a default
+ * value and the size of the struct.
+ */
 public class DataStruct {
 	
-	//global pool of anonymous struct types
-	static HashMap structs;
-	
 	String name;
 	LineItem sourceLine;
 	Vector elements;
+	private HashMap indices = new HashMap();	//element name -> index
+
+	//layout, created by finish()
+	DataElement[] fields;
+	boolean[] hasDefault;	//the element is constant, it's stored when the data omit it
+	private boolean constant;	//all elements have a default value
+	int size = -1;		//size of the packed struct in bytes, -1 if it contains variable size elements
+
+	//encoded default values of the elements for big and little endian, created on the first use
+	private byte[][][] defaultTemplates = new byte[2][][];
+	private static final byte[] NO_TEMPLATE = new byte[0];
 	
 	
 	public DataStruct (String name, LineItem sourceLine){
@@ -36,28 +52,217 @@ public class DataStruct {
 		elements = new Vector();
 	}
 	
+	/**
+	 * @return the existing element with the same name (the new one is not added) or null
+	 */
 	public DataElement addElement(DataElement e) {
-		DataElement old = getElement(e.name);
-		if (old != null) {
-			return old;
+		if (fields != null) {
+			throw new IllegalStateException("struct " + name + " is already defined");
+		}
+		Integer index = (Integer) indices.get(e.name);
+		if (index != null) {
+			return (DataElement) elements.elementAt(index.intValue());
 		}
+		indices.put(e.name, new Integer(elements.size()));
 		elements.addElement(e);
 		return null;
 	}
+
+	/**
+	 * Creates the layout, the elements can't be added anymore.
+	 */
+	void finish() {
+		fields = new DataElement[elements.size()];
+		elements.copyInto(fields);
+		hasDefault = new boolean[fields.length];
+		constant = true;
+		size = 0;
+		for (int i = 0; i < fields.length; i++) {
+			hasDefault[i] = fields[i].isConstant();
+			constant &= hasDefault[i];
+			int elementSize = getSize(fields[i]);
+			size = size < 0 || elementSize < 0 ? -1 : size + elementSize;
+		}
+	}
+
+	/**
+	 * @return size of the stored element in bytes, -1 if the size depends on the value
+	 */
+	static int getSize(DataElement de) {
+		switch (de.type) {
+			case DataElement.TYPE_BYTE: return 1;
+			case DataElement.TYPE_SHORT: return 2;
+			case DataElement.TYPE_INT: return 4;
+			case DataElement.TYPE_LONG: return 8;
+			case DataElement.TYPE_FLOAT: return 4;
+			case DataElement.TYPE_DOUBLE: return 8;
+			case DataElement.TYPE_STRING: return de.arrayLen > 0 ? de.arrayLen : -1;
+			case DataElement.TYPE_STRUCT: return de.struct == null ? -1 : de.struct.size;
+		}
+		return -1;
+	}
+
+	private static boolean isPooled(DataElement de, CompileContext context) {
+		return de.type == DataElement.TYPE_STRING && de.arrayLen == 0 && context.useStringPool;
+	}
+
+	/**
+	 * @return size of the element in bytes including the padding of the aligned
+	 * structs and the pooled strings, -1 if the size depends on the value
+	 */
+	static int getSize(DataElement de, CompileContext context) {
+		if (de.type == DataElement.TYPE_STRUCT && de.struct != null) {
+			return de.struct.getSize(context);
+		}
+		if (isPooled(de, context)) {
+			return 4;
+		}
+		return getSize(de);
+	}
+
+	/**
+	 * @return size of the struct in bytes including the padding, -1 if it contains variable size elements
+	 */
+	int getSize(CompileContext context) {
+		if (context.alignment == 0 && !context.useStringPool) {
+			return size;
+		}
+		int offset = 0;
+		for (int i = 0; i < fields.length; i++) {
+			int elementSize = getSize(fields[i], context);
+			if (elementSize < 0) {
+				return -1;
+			}
+			offset = align(offset, getAlignment(fields[i], context)) + elementSize;
+		}
+		return align(offset, getAlignment(context));
+	}
+
+	/**
+	 * @return alignment of the element in bytes, 1 when the values are packed
+	 */
+	static int getAlignment(DataElement de, CompileContext context) {
+		if (context.alignment == 0) {
+			return 1;
+		}
+		int alignment;
+		switch (de.type) {
+			case DataElement.TYPE_SHORT: alignment = 2; break;
+			case DataElement.TYPE_INT: alignment = 4; break;
+			case DataElement.TYPE_LONG: alignment = 8; break;
+			case DataElement.TYPE_FLOAT: alignment = 4; break;
+			case DataElement.TYPE_DOUBLE: alignment = 8; break;
+			case DataElement.TYPE_FILE: alignment = context.useLongFileSize ? 8 : 4; break;
+			case DataElement.TYPE_BYTE_ARRAY:
+			case DataElement.TYPE_SHORT_ARRAY:
+			case DataElement.TYPE_INT_ARRAY:
+			case DataElement.TYPE_LONG_ARRAY:
+			case DataElement.TYPE_FLOAT_ARRAY:
+			case DataElement.TYPE_DOUBLE_ARRAY: alignment = context.useIntegerArraySize ? 4 : 2; break;
+			case DataElement.TYPE_STRUCT: return de.struct == null ? 1 : de.struct.getAlignment(context);
+			case DataElement.TYPE_STRING: alignment = isPooled(de, context) ? 4 : 1; break;
+			default: alignment = 1; break;
+		}
+		return Math.min(alignment, context.alignment);
+	}
+
+	/**
+	 * @return alignment of the struct: the largest alignment of its elements
+	 */
+	int getAlignment(CompileContext context) {
+		int alignment = 1;
+		for (int i = 0; i < fields.length; i++) {
+			alignment = Math.max(alignment, getAlignment(fields[i], context));
+		}
+		return alignment;
+	}
+
+	static int align(int offset, int alignment) {
+		return (offset + alignment - 1) & -alignment;
+	}
+
+	/**
+	 * Pads the output to the alignment of the struct, used at the start and the end of each record.
+	 */
+	void align(DataEmitter emitter, CompileContext context) throws IOException {
+		if (context.alignment == 0) {
+			return;
+		}
+		long position = emitter.getPosition();
+		emitter.align(getAlignment(context));
+		if (context.stats != null) {
+			context.stats.addBytes(CompileStats.TYPE_PADDING, emitter.getPosition() - position);
+		}
+	}
 	
+	/**
+	 * @return the encoded default value of the element or null when it must be stored
+	 * each time (embedded files, values causing warnings, aligned output, string pool)
+	 */
+	synchronized byte[] getDefaultTemplate(int index, CompileContext context) {
+		//the padding depends on the position in the output, the strings are added to the pool
+		if (context.alignment != 0 || context.useStringPool) {
+			return null;
+		}
+		int order = context.littleEndian ? 1 : 0;
+		if (defaultTemplates[order] == null) {
+			defaultTemplates[order] = new byte[fields.length][];
+		}
+		byte[] template = defaultTemplates[order][index];
+		if (template == null) {
+			template = encodeDefault(fields[index], context);
+			defaultTemplates[order][index] = template;
+		}
+		return template == NO_TEMPLATE ? null : template;
+	}
+
+	private static byte[] encodeDefault(DataElement de, CompileContext context) {
+		//the files are not kept in memory
+		if (de.type == DataElement.TYPE_FILE) {
+			return NO_TEMPLATE;
+		}
+		DataElement value = de.getResolvedValue(context);
+		CompileContext encodeContext = new CompileContext(context);
+		encodeContext.elements = context.elements;
+		encodeContext.constants = context.constants;
+		encodeContext.structs = context.structs;
+		encodeContext.lineNumber = context.lineNumber;
+		encodeContext.li = context.li;
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		encodeContext.out = new PrintStream(log, true);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try {
+			DataEmitter emitter = new DataEmitter(bos, context.littleEndian);
+			de.store(emitter, value, de.type, encodeContext, ".", true, context.li);
+			emitter.close();
+		} catch (Exception e) {
+			return NO_TEMPLATE;
+		}
+		//the warnings must be printed for each record, nested structs can embed files
+		if (log.size() > 0 || !encodeContext.dependencies.getFiles().isEmpty()) {
+			return NO_TEMPLATE;
+		}
+		return bos.toByteArray();
+	}
+
 	public DataElement getElement(String name) {
-		final int max = elements.size();
-		for (int i = 0; i < max; i++) {
-			DataElement e = (DataElement) elements.elementAt(i);
-			if (e.name.equals(name)) {
-				return e;
-			}
+		Integer index = (Integer) indices.get(name);
+		if (index == null) {
+			return null;
 		}
-		return null;
+		return (DataElement) elements.elementAt(index.intValue());
 	}
 	
+	/**
+	 * @return index of the element in the struct, -1 if it doesn't exist
+	 */
+	public int getIndex(String name) {
+		Integer index = (Integer) indices.get(name);
+		return index == null ? -1 : index.intValue();
+	}
+
 	public DataElement getElement(int index) {
-		if (index < 0 || index > elements.size()) {
+		if (index < 0 || index >= elements.size()) {
 			return null;
 		}
 		return (DataElement) elements.elementAt(index);
@@ -67,6 +272,9 @@ public class DataStruct {
 	}
 	
 	public boolean isConstant() {
+		if (fields != null) {
+			return constant;
+		}
 		final int max = elements.size();
 		for (int i = 0; i < max; i++) {
 			//one of the data elements is not constant ! return false
@@ -0,0 +1,177 @@
+/*
+Dependencies.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Vector;
+
+/**
+ * Files read during the compilation: the input script, the included files
+ * and the embedded files. Written as a make (or ninja) dependency file.
+ */
+public class Dependencies {
+	private Vector files = new Vector();
+	private HashSet names = new HashSet();
+
+	public synchronized void add(String fileName) {
+		int index;
+		while ((index = fileName.indexOf("/./")) >= 0) {
+			fileName = fileName.substring(0, index).concat(fileName.substring(index + 2));
+		}
+		if (fileName.startsWith("./")) {
+			fileName = fileName.substring(2);
+		}
+		if (names.add(fileName)) {
+			files.add(fileName);
+		}
+	}
+
+	public synchronized Vector getFiles() {
+		return new Vector(files);
+	}
+
+	/**
+	 * Writes the rule 'target: dependencies'.
+	 * @param phonyTargets add an empty rule for each dependency, so make doesn't fail when the file is deleted
+	 */
+	public void write(String depFileName, String target, boolean phonyTargets) throws IOException {
+		Vector v = getFiles();
+		StringBuilder sb = new StringBuilder();
+		sb.append(escape(target)).append(':');
+		for (int i = 0; i < v.size(); i++) {
+			sb.append(" \\\n  ").append(escape((String) v.elementAt(i)));
+		}
+		sb.append('\n');
+		if (phonyTargets) {
+			for (int i = 0; i < v.size(); i++) {
+				sb.append('\n').append(escape((String) v.elementAt(i))).append(":\n");
+			}
+		}
+		writeFile(new File(depFileName), sb.toString());
+	}
+
+	private static String escape(String fileName) {
+		StringBuilder sb = new StringBuilder(fileName.length());
+		for (int i = 0; i < fileName.length(); i++) {
+			char c = fileName.charAt(i);
+			if (c == ' ' || c == '\t' || c == '#' || c == '\\') {
+				sb.append('\\');
+			} else
+			if (c == '$') {
+				sb.append('$');
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Rewrites the file only when its contents differ, so its modification time
+	 * changes only when the contents change.
+	 * @return true if the file was written
+	 */
+	public static boolean writeIfChanged(File f, String contents) throws IOException {
+		byte[] data = contents.getBytes("UTF8");
+		if (f.length() == data.length && f.isFile()) {
+			InputStream is = new BufferedInputStream(new FileInputStream(f));
+			try {
+				if (hasContents(is, data)) {
+					return false;
+				}
+			} finally {
+				is.close();
+			}
+		}
+		writeFile(f, contents);
+		return true;
+	}
+
+	private static boolean hasContents(InputStream is, byte[] data) throws IOException {
+		for (int i = 0; i < data.length; i++) {
+			if (is.read() != (data[i] & 0xFF)) {
+				return false;
+			}
+		}
+		return is.read() < 0;
+	}
+
+	private static void writeFile(File f, String contents) throws IOException {
+		Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF8");
+		try {
+			w.write(contents);
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * @return true if both files have the same contents
+	 */
+	public static boolean isSameFile(File f1, File f2) throws IOException {
+		if (!f1.isFile() || !f2.isFile() || f1.length() != f2.length()) {
+			return false;
+		}
+		InputStream is1 = new BufferedInputStream(new FileInputStream(f1), 64 * 1024);
+		try {
+			InputStream is2 = new BufferedInputStream(new FileInputStream(f2), 64 * 1024);
+			try {
+				byte[] b1 = new byte[64 * 1024];
+				byte[] b2 = new byte[64 * 1024];
+				while (true) {
+					int n = readBlock(is1, b1);
+					if (n != readBlock(is2, b2)) {
+						return false;
+					}
+					if (n <= 0) {
+						return true;
+					}
+					for (int i = 0; i < n; i++) {
+						if (b1[i] != b2[i]) {
+							return false;
+						}
+					}
+				}
+			} finally {
+				is2.close();
+			}
+		} finally {
+			is1.close();
+		}
+	}
+
+	private static int readBlock(InputStream is, byte[] b) throws IOException {
+		int total = 0;
+		while (total < b.length) {
+			int n = is.read(b, total, b.length - total);
+			if (n < 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+}
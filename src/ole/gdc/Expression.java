@@ -0,0 +1,546 @@
+/*
+Expression.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.util.Vector;
+
+/**
+ * Expression in the value of a constant, parsed once into a tree and evaluated
+ * by DataElement.resolveExpressions(). The operators from the lowest priority:
+ * <pre>
+ * c ? a : b   the condition is false when c is not a defined constant
+ * |
+ * &amp;
+ * &lt;&lt; &gt;&gt;
+ * + -         '+' joins the text when one of the operands is a string
+ * *
+ * - (unary) and ( )
+ * </pre>
+ * The operands are numbers, "strings" and the names of the constants. The
+ * integers are computed as long, the operations with a decimal number as double.
+ * The text values (strings, file names) only use '?:' and '+' with a space on
+ * both sides, the other characters are a part of the names, and an undefined
+ * name in a branch of '?:' is the text of the value, e.g. 'DEBUG ? debug.bin : release.bin'.
+ */
+class Expression {
+	static final int EXP_LITERAL = 1;
+	static final int EXP_CONSTANT = 2;
+	static final int EXP_NEGATE = 3;
+	static final int EXP_BINARY = 4;
+	static final int EXP_CONDITION = 5;
+
+	static final int VALUE_LONG = 1;
+	static final int VALUE_DOUBLE = 2;
+	static final int VALUE_STRING = 3;
+
+	private static final int TOKEN_NUMBER = 1;
+	private static final int TOKEN_STRING = 2;
+	private static final int TOKEN_NAME = 3;
+	private static final int TOKEN_OPERATOR = 4;
+
+	int kind;
+	String text;		//constant name or the operator
+	Value value;		//EXP_LITERAL: the value
+	Expression condition;	//EXP_CONDITION
+	Expression left;	//EXP_BINARY, EXP_CONDITION: true value, EXP_NEGATE: the operand
+	Expression right;	//EXP_BINARY, EXP_CONDITION: false value
+	boolean namesAsText;	//EXP_CONDITION: an undefined name in the branches is the text of the value
+
+	/**
+	 * Typed result of the evaluation.
+	 */
+	static class Value {
+		int type;
+		long longValue;
+		double doubleValue;
+		String text;	//the number as written in the source or the string without the quotes
+
+		Value(int type, String text) {
+			this.type = type;
+			this.text = text;
+		}
+
+		static Value of(long l) {
+			Value v = new Value(VALUE_LONG, Long.toString(l));
+			v.longValue = l;
+			return v;
+		}
+
+		static Value of(double d) {
+			Value v = new Value(VALUE_DOUBLE, Double.toString(d));
+			v.doubleValue = d;
+			return v;
+		}
+
+		boolean isNumber() {
+			return type != VALUE_STRING;
+		}
+
+		double getDouble() {
+			return type == VALUE_LONG ? longValue : doubleValue;
+		}
+
+		boolean isTrue() {
+			switch (type) {
+				case VALUE_LONG: return longValue != 0;
+				case VALUE_DOUBLE: return doubleValue != 0.0d;
+			}
+			return text.length() > 0;
+		}
+	}
+
+	private Expression(int kind) {
+		this.kind = kind;
+	}
+
+	/**
+	 * @param numeric the value is a number, otherwise only '?:' and '+' make it an expression
+	 * @return the parsed expression or null when the text is a single value (number, string or
+	 * constant name) or it can't be parsed, such values are handled as before
+	 */
+	static Expression parse(String text, boolean numeric) {
+		if (!hasOperator(text, numeric)) {
+			return null;
+		}
+		Vector tokens = numeric ? tokenize(text) : tokenizeText(text);
+		if (tokens == null) {
+			return null;
+		}
+		Parser parser = new Parser(tokens, numeric);
+		Expression e = parser.parseCondition();
+		if (e == null || parser.index != tokens.size()) {
+			return null;
+		}
+		return e;
+	}
+
+	/*
+	 * Quick test for the operators outside of the quotes. The sign of a number is not an operator.
+	 */
+	private static boolean hasOperator(String text, boolean numeric) {
+		boolean quoted = false;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+			} else
+			if (quoted) {
+				if (c == '\\') {
+					i++;
+				}
+			} else
+			if (c == '?' && i > 0) {
+				return true;
+			} else
+			if (c == '+' && (numeric ? i > 0 : isSpacedPlus(text, i))) {
+				return true;
+			} else
+			if (numeric && (c == '|' || c == '&' || c == '*' || c == '<' || c == '>' || c == '(')) {
+				return true;
+			} else
+			if (numeric && c == '-' && i > 0 && !isExponent(text, i)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * @return true if the sign at 'index' is the exponent sign of a decimal number (1.5e-3)
+	 */
+	private static boolean isExponent(String text, int index) {
+		int end = index - 1;
+		char c = text.charAt(end);
+		if (c != 'e' && c != 'E') {
+			return false;
+		}
+		int start = end;
+		while (start > 0 && (Character.isDigit(text.charAt(start - 1)) || text.charAt(start - 1) == '.')) {
+			start--;
+		}
+		//no digits or a part of a name or a hex number
+		if (start == end || (start > 0 && Character.isJavaIdentifierPart(text.charAt(start - 1)))) {
+			return false;
+		}
+		return !text.startsWith("0x", start) && !text.startsWith("0X", start);
+	}
+
+	/*
+	 * @return true if the '+' at 'index' has a space on both sides, otherwise it's a part of the text value
+	 */
+	private static boolean isSpacedPlus(String text, int index) {
+		return index > 0 && index < text.length() - 1 && isSpace(text.charAt(index - 1)) && isSpace(text.charAt(index + 1));
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t';
+	}
+
+	/*
+	 * Splits the text value: the operators are '?', ':' and the spaced '+', anything
+	 * else up to a space is a single number or name.
+	 * @return tokens (Object[] {Integer kind, String text}) or null if a string is not terminated
+	 */
+	private static Vector tokenizeText(String text) {
+		Vector tokens = new Vector();
+		int length = text.length();
+		int i = 0;
+		while (i < length) {
+			char c = text.charAt(i);
+			int start = i;
+			int kind;
+			if (isSpace(c)) {
+				i++;
+				continue;
+			}
+			if (c == '"') {
+				i++;
+				while (i < length && text.charAt(i) != '"') {
+					if (text.charAt(i) == '\\') {
+						i++;
+					}
+					i++;
+				}
+				if (i >= length) {
+					return null;
+				}
+				tokens.add(new Object[] {new Integer(TOKEN_STRING), text.substring(start + 1, i)});
+				i++;
+				continue;
+			}
+			if (c == '?' || c == ':' || (c == '+' && isSpacedPlus(text, i))) {
+				i++;
+				kind = TOKEN_OPERATOR;
+			} else {
+				while (i < length && !isSpace(text.charAt(i)) && "\"?:".indexOf(text.charAt(i)) < 0) {
+					i++;
+				}
+				kind = Character.isDigit(c) || c == '.' || c == '#' || c == '-' ? TOKEN_NUMBER : TOKEN_NAME;
+			}
+			tokens.add(new Object[] {new Integer(kind), text.substring(start, i)});
+		}
+		return tokens;
+	}
+
+	/*
+	 * @return tokens (Object[] {Integer kind, String text}) or null if the text contains other characters
+	 */
+	private static Vector tokenize(String text) {
+		Vector tokens = new Vector();
+		int length = text.length();
+		int i = 0;
+		while (i < length) {
+			char c = text.charAt(i);
+			int start = i;
+			int kind;
+			if (c == ' ' || c == '\t') {
+				i++;
+				continue;
+			}
+			if (c == '"') {
+				i++;
+				while (i < length && text.charAt(i) != '"') {
+					if (text.charAt(i) == '\\') {
+						i++;
+					}
+					i++;
+				}
+				if (i >= length) {
+					return null;
+				}
+				tokens.add(new Object[] {new Integer(TOKEN_STRING), text.substring(start + 1, i)});
+				i++;
+				continue;
+			}
+			if (text.startsWith("<<", i) || text.startsWith(">>", i)) {
+				i += 2;
+				kind = TOKEN_OPERATOR;
+			} else
+			if ("?:|&+-*()".indexOf(c) >= 0) {
+				i++;
+				kind = TOKEN_OPERATOR;
+			} else
+			if (Character.isDigit(c) || c == '.' || c == '#') {
+				i++;
+				while (i < length) {
+					c = text.charAt(i);
+					if (Character.isLetterOrDigit(c) || c == '.' || ((c == '+' || c == '-') && isExponent(text, i))) {
+						i++;
+					} else {
+						break;
+					}
+				}
+				kind = TOKEN_NUMBER;
+			} else
+			if (Character.isJavaIdentifierStart(c)) {
+				i++;
+				while (i < length && (Character.isJavaIdentifierPart(text.charAt(i)) || text.charAt(i) == '.')) {
+					i++;
+				}
+				kind = TOKEN_NAME;
+			} else {
+				return null;
+			}
+			tokens.add(new Object[] {new Integer(kind), text.substring(start, i)});
+		}
+		return tokens;
+	}
+
+	/*
+	 * Recursive descent parser, returns null on a syntax error.
+	 */
+	private static class Parser {
+		private Vector tokens;
+		private boolean numeric;
+		int index;
+
+		Parser(Vector tokens, boolean numeric) {
+			this.tokens = tokens;
+			this.numeric = numeric;
+		}
+
+		private boolean accept(String operator) {
+			if (index < tokens.size()) {
+				Object[] token = (Object[]) tokens.elementAt(index);
+				if (((Integer) token[0]).intValue() == TOKEN_OPERATOR && token[1].equals(operator)) {
+					index++;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		Expression parseCondition() {
+			Expression e = parseBinary(0);
+			if (e == null || !accept("?")) {
+				return e;
+			}
+			Expression c = new Expression(EXP_CONDITION);
+			c.condition = e;
+			c.namesAsText = !numeric;
+			c.left = parseCondition();
+			if (c.left == null || !accept(":")) {
+				return null;
+			}
+			c.right = parseCondition();
+			return c.right == null ? null : c;
+		}
+
+		private static final String[][] LEVELS = {{"|"}, {"&"}, {"<<", ">>"}, {"+", "-"}, {"*"}};
+
+		private Expression parseBinary(int level) {
+			if (level == LEVELS.length) {
+				return parseUnary();
+			}
+			Expression e = parseBinary(level + 1);
+			while (e != null) {
+				String operator = null;
+				for (int i = 0; i < LEVELS[level].length && operator == null; i++) {
+					if (accept(LEVELS[level][i])) {
+						operator = LEVELS[level][i];
+					}
+				}
+				if (operator == null) {
+					break;
+				}
+				Expression b = new Expression(EXP_BINARY);
+				b.text = operator;
+				b.left = e;
+				b.right = parseBinary(level + 1);
+				if (b.right == null) {
+					return null;
+				}
+				e = b;
+			}
+			return e;
+		}
+
+		private Expression parseUnary() {
+			if (accept("-")) {
+				Expression e = new Expression(EXP_NEGATE);
+				e.left = parseUnary();
+				return e.left == null ? null : e;
+			}
+			if (accept("+")) {
+				return parseUnary();
+			}
+			if (accept("(")) {
+				Expression e = parseCondition();
+				return accept(")") ? e : null;
+			}
+			if (index >= tokens.size()) {
+				return null;
+			}
+			Object[] token = (Object[]) tokens.elementAt(index++);
+			String text = (String) token[1];
+			switch (((Integer) token[0]).intValue()) {
+				case TOKEN_NAME: {
+					Expression e = new Expression(EXP_CONSTANT);
+					e.text = text;
+					return e;
+				}
+				case TOKEN_STRING: {
+					Expression e = new Expression(EXP_LITERAL);
+					e.value = new Value(VALUE_STRING, text);
+					return e;
+				}
+				case TOKEN_NUMBER: {
+					Expression e = new Expression(EXP_LITERAL);
+					e.value = parseNumber(text);
+					return e.value == null ? null : e;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Adds the names of the constants used by the expression.
+	 */
+	void getConstantNames(Vector names) {
+		if (kind == EXP_CONSTANT) {
+			names.add(text);
+		}
+		if (condition != null) {
+			condition.getConstantNames(names);
+		}
+		if (left != null) {
+			left.getConstantNames(names);
+		}
+		if (right != null) {
+			right.getConstantNames(names);
+		}
+	}
+
+	private static Value parseNumber(String text) {
+		Value v;
+		try {
+			v = new Value(VALUE_LONG, text);
+			v.longValue = Long.decode(text);
+			return v;
+		} catch (NumberFormatException e) {
+		}
+		try {
+			v = new Value(VALUE_DOUBLE, text);
+			v.doubleValue = Double.parseDouble(text);
+			return v;
+		} catch (NumberFormatException e) {
+		}
+		return null;
+	}
+
+	/**
+	 * @param source the whole expression for the error messages
+	 */
+	Value evaluate(CompileContext context, String source) {
+		switch (kind) {
+			case EXP_LITERAL:
+				return value;
+			case EXP_CONSTANT: {
+				DataElement de = (DataElement) context.constants.get(text);
+				if (de == null) {
+					throw new RuntimeException("Element not found: " + text + " while resolving expression: " + source);
+				}
+				return getValue(de, context);
+			}
+			case EXP_NEGATE: {
+				Value v = left.evaluate(context, source);
+				if (v.type == VALUE_LONG) {
+					return Value.of(-v.longValue);
+				}
+				if (v.type == VALUE_DOUBLE) {
+					return Value.of(-v.doubleValue);
+				}
+				throw new IllegalArgumentException("expression cannot be evaluated: " + source + ", '-' of a string");
+			}
+			case EXP_CONDITION: {
+				//undefined constant is a false condition
+				boolean isTrue = false;
+				if (condition.kind != EXP_CONSTANT || context.constants.get(condition.text) != null) {
+					isTrue = condition.evaluate(context, source).isTrue();
+				}
+				Expression branch = isTrue ? left : right;
+				if (namesAsText && branch.kind == EXP_CONSTANT && context.constants.get(branch.text) == null) {
+					return new Value(VALUE_STRING, branch.text);
+				}
+				return branch.evaluate(context, source);
+			}
+		}
+		return evaluateBinary(left.evaluate(context, source), right.evaluate(context, source), source);
+	}
+
+	private Value evaluateBinary(Value a, Value b, String source) {
+		if (text.equals("+") && (!a.isNumber() || !b.isNumber())) {
+			return new Value(VALUE_STRING, a.text.concat(b.text));
+		}
+		if (!a.isNumber() || !b.isNumber()) {
+			throw new IllegalArgumentException("expression cannot be evaluated: " + source + ", '" + text + "' of a string");
+		}
+		if (a.type == VALUE_LONG && b.type == VALUE_LONG) {
+			long x = a.longValue;
+			long y = b.longValue;
+			switch (text.charAt(0)) {
+				case '+': return Value.of(x + y);
+				case '-': return Value.of(x - y);
+				case '*': return Value.of(x * y);
+				case '|': return Value.of(x | y);
+				case '&': return Value.of(x & y);
+				case '<': return Value.of(x << y);
+				case '>': return Value.of(x >> y);
+			}
+		} else {
+			double x = a.getDouble();
+			double y = b.getDouble();
+			switch (text.charAt(0)) {
+				case '+': return Value.of(x + y);
+				case '-': return Value.of(x - y);
+				case '*': return Value.of(x * y);
+			}
+		}
+		throw new IllegalArgumentException("expression cannot be evaluated: " + source + ", '" + text + "' needs integers");
+	}
+
+	/*
+	 * @return the resolved value of the constant
+	 */
+	private static Value getValue(DataElement de, CompileContext context) {
+		de.checkExpressions(context);
+		String text = de.value;
+		if (text == null) {
+			throw new RuntimeException("element " + de.name + " has no value");
+		}
+		switch (de.type) {
+			case DataElement.TYPE_BYTE:
+			case DataElement.TYPE_SHORT:
+			case DataElement.TYPE_INT:
+			case DataElement.TYPE_LONG:
+			case DataElement.TYPE_FLOAT:
+			case DataElement.TYPE_DOUBLE: {
+				Value v = parseNumber(text);
+				if (v != null) {
+					return v;
+				}
+			} break;
+		}
+		if (text.length() > 1 && text.startsWith("\"") && text.endsWith("\"")) {
+			text = text.substring(1, text.length() - 1);
+		}
+		return new Value(VALUE_STRING, text);
+	}
+}
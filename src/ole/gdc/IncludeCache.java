@@ -0,0 +1,103 @@
+/*
+IncludeCache.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Keeps the lines of the included files between compilations. A file is read
+ * again when its modification time or size changes. Shared by the compilations
+ * running in the daemon, so the access is synchronized.
+ */
+public class IncludeCache {
+	private static final long MAX_FILE_SIZE = 4 * 1024 * 1024;	//bigger files are not cached
+	private static final int MAX_FILES = 1024;
+
+	private final LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > MAX_FILES;
+		}
+	};
+
+	private static class Entry {
+		long lastModified;
+		long length;
+		String[] lines;
+	}
+
+	/**
+	 * @param encoding file encoding, null for the system default encoding
+	 * @return lines of the file or null if the file is too big to be cached
+	 */
+	public String[] getLines(File f, String encoding) throws IOException {
+		String key = f.getCanonicalPath() + "|" + encoding;
+		//take the stamp before reading, a file modified meanwhile is read again next time
+		long lastModified = f.lastModified();
+		long length = f.length();
+		synchronized (entries) {
+			Entry e = (Entry) entries.get(key);
+			if (e != null && e.lastModified == lastModified && e.length == length) {
+				return e.lines;
+			}
+		}
+		if (length > MAX_FILE_SIZE) {
+			return null;
+		}
+		Entry e = new Entry();
+		e.lastModified = lastModified;
+		e.length = length;
+		e.lines = readLines(f, encoding);
+		synchronized (entries) {
+			entries.put(key, e);
+		}
+		return e.lines;
+	}
+
+	static String[] readLines(File f, String encoding) throws IOException {
+		Reader rd;
+		if (encoding == null) {
+			//use system default encoding
+			rd = new FileReader(f);
+		} else {
+			rd = new InputStreamReader(new FileInputStream(f), encoding);
+		}
+		LineNumberReader reader = new LineNumberReader(rd);
+		try {
+			Vector v = new Vector();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				v.add(line);
+			}
+			String[] result = new String[v.size()];
+			v.toArray(result);
+			return result;
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+IncludePrefetcher.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the included files ahead of the preprocessor (-prefetch). When a file is
+ * read, its #include directives are looked up and the included files are read by
+ * other threads, also the ones in the disabled #ifdef sections. The preprocessor
+ * still processes the lines in order, only the reading and the decoding of the
+ * files is done ahead, so the result is the same. A file that fails to be read
+ * here is opened by the preprocessor again, which reports the error.
+ */
+public class IncludePrefetcher {
+	private CompileContext context;
+	private String encoding;
+	private String commentDef;
+	private Vector includeDirs;
+	private ThreadPoolExecutor pool;
+	private HashMap files = new HashMap();	//canonical path -> Future of the lines
+
+	public IncludePrefetcher(CompileContext context, String encoding, int threads) {
+		this.context = context;
+		this.encoding = encoding;
+		this.commentDef = context.commentDef;
+		this.includeDirs = new Vector(context.includeDirs);
+		pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "gdc include prefetch");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		//the idle threads end also when the preprocessing fails and shutdown() is not called
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Starts reading the file unless it's already read.
+	 */
+	public void prefetch(final File file) throws IOException {
+		String key = file.getCanonicalPath();
+		synchronized (files) {
+			if (files.containsKey(key) || pool.isShutdown()) {
+				return;
+			}
+			files.put(key, pool.submit(new Callable() {
+				public Object call() throws IOException {
+					return read(file);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * @return lines of the file, null when the file was not prefetched or it can't be read
+	 */
+	public String[] getLines(File f) throws IOException {
+		Future future;
+		synchronized (files) {
+			future = (Future) files.get(f.getCanonicalPath());
+		}
+		if (future == null) {
+			return null;
+		}
+		try {
+			return (String[]) future.get();
+		} catch (ExecutionException e) {
+			return null;
+		} catch (InterruptedException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stops reading the files that were not needed.
+	 */
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/*
+	 * Runs on the pool thread.
+	 */
+	private String[] read(File f) throws IOException {
+		String[] lines = null;
+		if (context.includeCache != null) {
+			lines = context.includeCache.getLines(f, encoding);
+		}
+		if (lines == null) {
+			lines = IncludeCache.readLines(f, encoding);
+		}
+		//the includes are looked up as in Preprocessor.open()
+		String basePath = f.getParentFile().getCanonicalPath();
+		for (int i = 0; i < lines.length; i++) {
+			//the same test as in the preprocessor
+			String line = Utils.removeComment(lines[i], commentDef);
+			if (line.startsWith("#include") && line.length() > 8 && (line.charAt(8) == ' ' || line.charAt(8) == '\t')) {
+				try {
+					String includeName = Utils.getIncludeName(line.substring(8));
+					if (includeName != null) {
+						prefetch(Utils.findFile(basePath, includeName, includeDirs));
+					}
+				} catch (RuntimeException e) {
+					//the preprocessor reports the missing file if the include is enabled
+				}
+			}
+		}
+		return lines;
+	}
+}
@@ -23,6 +23,8 @@ public class LineItem {
 	String line;
 	int number;   //row number
 	String source; //TODO - optimise: store index to a Vector of sources instead of the string itself
+	PrecompiledHeader header; //set on the line which replaces the included file by its precompiled header
+	boolean imported; //the item is a record of a file imported by #import, the source is that file
 	
 	protected LineItem(String l, int n, String s) {
 		line = l;
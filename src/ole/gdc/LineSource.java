@@ -0,0 +1,33 @@
+/*
+LineSource.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.IOException;
+
+/**
+ * One stage of the compile pipeline. Each stage pulls the lines
+ * from the previous stage on demand, so only a few lines are held in memory.
+ */
+public interface LineSource {
+
+	/**
+	 * @return next line or null when there are no more lines
+	 */
+	public LineItem nextLine() throws IOException;
+}
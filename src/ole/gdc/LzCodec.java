@@ -0,0 +1,205 @@
+/*
+LzCodec.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.util.Arrays;
+
+/**
+ * Fast LZ compression in the LZ4 block format, so the blocks can be decoded by
+ * any LZ4 decoder (LZ4_decompress_safe() on the device) as well as by decompress().
+ * Each sequence is a token (literal length in the high nibble, match length - 4
+ * in the low nibble), the length extensions, the literals and the 16 bit little
+ * endian offset of the match. The last sequence contains only literals.
+ * The compressor keeps its hash table, so each thread needs its own instance.
+ */
+public class LzCodec {
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 65535;
+	private static final int LAST_LITERALS = 5;	//the block ends with at least 5 literals
+	private static final int MF_LIMIT = 12;		//no match starts in the last 12 bytes
+	private static final int HASH_LOG = 12;
+
+	private int[] table = new int[1 << HASH_LOG];	//hash of 4 bytes -> last position
+
+	/**
+	 * @return the size of the buffer that is big enough for any compressed data of 'length' bytes
+	 */
+	public static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compresses the data into 'dst' which must have at least maxCompressedLength() bytes.
+	 * @return size of the compressed data
+	 */
+	public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+		final int end = srcOff + srcLen;
+		final int matchLimit = end - LAST_LITERALS;
+		final int mfLimit = end - MF_LIMIT;
+		int anchor = srcOff;
+		int ip = srcOff;
+		int op = dstOff;
+		Arrays.fill(table, -1);
+		while (ip < mfLimit) {
+			int sequence = readInt(src, ip);
+			int h = hash(sequence);
+			int ref = table[h];
+			table[h] = ip;
+			if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+				//skip faster through the data that don't compress
+				ip += 1 + ((ip - anchor) >>> 6);
+				continue;
+			}
+			//extend the match backwards over the pending literals
+			while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+				ip--;
+				ref--;
+			}
+			int length = MIN_MATCH;
+			while (ip + length < matchLimit && src[ref + length] == src[ip + length]) {
+				length++;
+			}
+			op = writeSequence(src, anchor, ip - anchor, ip - ref, length, dst, op);
+			ip += length;
+			anchor = ip;
+		}
+		//the rest are literals
+		int literals = end - anchor;
+		int token = op++;
+		if (literals >= 15) {
+			dst[token] = (byte) 0xF0;
+			op = writeLength(literals - 15, dst, op);
+		} else {
+			dst[token] = (byte) (literals << 4);
+		}
+		System.arraycopy(src, anchor, dst, op, literals);
+		op += literals;
+		return op - dstOff;
+	}
+
+	private static int writeSequence(byte[] src, int literalStart, int literals, int offset, int matchLength, byte[] dst, int op) {
+		int token = op++;
+		int tokenValue;
+		if (literals >= 15) {
+			tokenValue = 0xF0;
+			op = writeLength(literals - 15, dst, op);
+		} else {
+			tokenValue = literals << 4;
+		}
+		System.arraycopy(src, literalStart, dst, op, literals);
+		op += literals;
+		dst[op++] = (byte) offset;
+		dst[op++] = (byte) (offset >>> 8);
+		matchLength -= MIN_MATCH;
+		if (matchLength >= 15) {
+			tokenValue |= 0x0F;
+			op = writeLength(matchLength - 15, dst, op);
+		} else {
+			tokenValue |= matchLength;
+		}
+		dst[token] = (byte) tokenValue;
+		return op;
+	}
+
+	private static int writeLength(int length, byte[] dst, int op) {
+		while (length >= 255) {
+			dst[op++] = (byte) 255;
+			length -= 255;
+		}
+		dst[op++] = (byte) length;
+		return op;
+	}
+
+	/**
+	 * Decompresses one block. The compressed data are checked, so a corrupted
+	 * block throws IllegalArgumentException instead of reading or writing out of the bounds.
+	 * @return size of the decompressed data
+	 */
+	public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+		final int end = srcOff + srcLen;
+		final int dstEnd = dstOff + dstLen;
+		int ip = srcOff;
+		int op = dstOff;
+		while (true) {
+			if (ip >= end) {
+				throw new IllegalArgumentException("corrupted block at " + (ip - srcOff));
+			}
+			int token = src[ip++] & 0xFF;
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					if (ip >= end) {
+						throw new IllegalArgumentException("corrupted block at " + (ip - srcOff));
+					}
+					b = src[ip++] & 0xFF;
+					literals += b;
+				} while (b == 255);
+			}
+			if (literals > end - ip || literals > dstEnd - op) {
+				throw new IllegalArgumentException("corrupted block at " + (ip - srcOff));
+			}
+			System.arraycopy(src, ip, dst, op, literals);
+			ip += literals;
+			op += literals;
+			//the last sequence has no match
+			if (ip == end) {
+				return op - dstOff;
+			}
+			if (end - ip < 2) {
+				throw new IllegalArgumentException("corrupted block at " + (ip - srcOff));
+			}
+			int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+			ip += 2;
+			int length = token & 0x0F;
+			if (length == 15) {
+				int b;
+				do {
+					if (ip >= end) {
+						throw new IllegalArgumentException("corrupted block at " + (ip - srcOff));
+					}
+					b = src[ip++] & 0xFF;
+					length += b;
+				} while (b == 255);
+			}
+			length += MIN_MATCH;
+			int ref = op - offset;
+			if (offset == 0 || ref < dstOff || length > dstEnd - op) {
+				throw new IllegalArgumentException("corrupted block at " + (ip - srcOff));
+			}
+			if (offset >= length) {
+				System.arraycopy(dst, ref, dst, op, length);
+				op += length;
+			} else {
+				//overlapping match repeats the last 'offset' bytes
+				for (int i = 0; i < length; i++) {
+					dst[op++] = dst[ref++];
+				}
+			}
+		}
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | (b[i + 3] << 24);
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+}
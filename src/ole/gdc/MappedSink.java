@@ -0,0 +1,118 @@
+/*
+MappedSink.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the output file through a memory mapping (-sink=mapped), the data are
+ * copied into the page cache without the write calls. The file is mapped in
+ * windows which double in size up to MAX_WINDOW, the file is truncated to the
+ * size of the data when it's closed.
+ */
+public class MappedSink implements OutputSink {
+	private static final int MIN_WINDOW = 1024 * 1024;
+	private static final int MAX_WINDOW = 256 * 1024 * 1024;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer window;
+	private long windowStart;	//file position of the window
+	private long size;		//bytes written
+
+	public MappedSink(File f) throws IOException {
+		file = new RandomAccessFile(f, "rw");
+		channel = file.getChannel();
+		file.setLength(0);
+	}
+
+	/*
+	 * Maps the next window when the current one is full.
+	 * @return bytes that can be written into the window
+	 */
+	private int room() throws IOException {
+		if (window == null || !window.hasRemaining()) {
+			int windowSize = window == null ? MIN_WINDOW : (int) Math.min(window.capacity() * 2L, MAX_WINDOW);
+			windowStart = size;
+			window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, windowSize);
+		}
+		return window.remaining();
+	}
+
+	public void write(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			int n = Math.min(room(), data.remaining());
+			int limit = data.limit();
+			data.limit(data.position() + n);
+			window.put(data);
+			data.limit(limit);
+			size += n;
+		}
+	}
+
+	public void transferFrom(FileChannel source, long fileSize) throws IOException {
+		long pos = 0;
+		while (pos < fileSize) {
+			int n = (int) Math.min(room(), fileSize - pos);
+			int limit = window.limit();
+			window.limit(window.position() + n);
+			n = source.read(window, pos);
+			window.limit(limit);
+			if (n <= 0) {
+				throw new EOFException("file truncated at " + pos + " bytes, expected " + fileSize);
+			}
+			pos += n;
+			size += n;
+		}
+	}
+
+	public boolean canPatch() {
+		return true;
+	}
+
+	public void patch(long position, ByteBuffer data) throws IOException {
+		//the data in the current window are changed in the mapping
+		if (window != null && position >= windowStart) {
+			int index = (int) (position - windowStart);
+			while (data.hasRemaining()) {
+				window.put(index++, data.get());
+			}
+			return;
+		}
+		while (data.hasRemaining()) {
+			position += channel.write(data, position);
+		}
+	}
+
+	public void close() throws IOException {
+		window = null;
+		try {
+			//the mapping extends the file to the end of the window
+			channel.truncate(size);
+		} finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+OutputSink.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Destination of the data written by the DataEmitter (-sink option).
+ */
+public interface OutputSink {
+
+	/**
+	 * Writes all remaining bytes of the buffer.
+	 */
+	public void write(ByteBuffer data) throws IOException;
+
+	/**
+	 * Copies 'size' bytes from the start of the source file.
+	 */
+	public void transferFrom(FileChannel source, long size) throws IOException;
+
+	/**
+	 * @return true if the data already written can be changed by patch()
+	 */
+	public boolean canPatch();
+
+	/**
+	 * Overwrites the data already written at the position.
+	 */
+	public void patch(long position, ByteBuffer data) throws IOException;
+
+	public void close() throws IOException;
+}
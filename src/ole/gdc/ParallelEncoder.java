@@ -0,0 +1,270 @@
+/*
+ParallelEncoder.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Encodes the top-level data blocks on more threads (-bj=N). Each block is
+ * encoded into its own buffer by its own encoder and the main encoder writes the
+ * buffers in the source order, so it also counts them by the top-level counter.
+ * The warnings (also the ones of the parser) and the dependencies of each block are
+ * kept with its data, so the log and the dependency file are the same as when the
+ * blocks are encoded in order.
+ * The definitions between the blocks change the shared constants and structs,
+ * so the blocks encoded so far must be written first (see drain()).
+ */
+public class ParallelEncoder {
+	private DataEncoder encoder;
+	private CompileContext context;
+	private CompileContext options;	//copied by the contexts of the blocks
+	private String path;
+	private ExecutorService pool;
+	private int maxPending;
+
+	//Future of a block, a top-level DataNode or a byte[] log of the parser, in the source order
+	private Vector pending = new Vector();
+	private Vector block;	//nodes and logs of the block being read, null outside of the blocks
+	private int depth;
+
+	//encoded block
+	private static class Result {
+		byte[] data;
+		byte[] log;
+		Vector dependencies;
+		CompileStats stats;
+		Exception error;
+		LineItem errorLine;
+	}
+
+	public ParallelEncoder(DataEncoder encoder, CompileContext context, String path, int threads) {
+		this.encoder = encoder;
+		this.context = context;
+		this.path = path;
+		options = new CompileContext(context);
+		//enough blocks in flight to keep the threads busy, but not the whole data in memory
+		maxPending = threads * 4;
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "gdc block encoder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Adds the nodes of one line. The finished blocks are sent to the threads.
+	 * @param log output of the parser for the line, written before the nodes are encoded, can be null
+	 */
+	public void add(DataNode node, byte[] log) throws Exception {
+		CompileStats stats = context.stats;
+		int phase = stats == null ? -1 : stats.enter(CompileStats.PHASE_ENCODE);
+		try {
+			if (log != null) {
+				if (block == null && (node == null || node.kind != DataNode.NODE_OPEN)) {
+					pending.add(log);
+				} else {
+					if (block == null) {
+						block = new Vector();
+					}
+					block.add(log);
+				}
+			}
+			for (; node != null; node = node.next) {
+				if (block == null) {
+					//top-level counters are written by the main encoder
+					if (node.kind != DataNode.NODE_OPEN) {
+						pending.add(node);
+						continue;
+					}
+					block = new Vector();
+				}
+				block.add(node);
+				if (node.kind == DataNode.NODE_OPEN) {
+					depth++;
+				} else
+				if (node.kind == DataNode.NODE_CLOSE && --depth == 0) {
+					submit(block);
+					block = null;
+				}
+			}
+			write(false);
+		} finally {
+			if (stats != null) {
+				stats.leave(phase);
+			}
+		}
+	}
+
+	/**
+	 * Waits for all blocks and writes them. An unfinished block is encoded as well,
+	 * so its warnings are written when the compilation fails.
+	 */
+	public void drain() throws Exception {
+		CompileStats stats = context.stats;
+		int phase = stats == null ? -1 : stats.enter(CompileStats.PHASE_ENCODE);
+		try {
+			if (block != null) {
+				submit(block);
+				block = null;
+				depth = 0;
+			}
+			write(true);
+		} finally {
+			if (stats != null) {
+				stats.leave(phase);
+			}
+		}
+	}
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	private void submit(final Vector nodes) {
+		pending.add(pool.submit(new Callable() {
+			public Object call() {
+				return encodeBlock(nodes);
+			}
+		}));
+	}
+
+	/*
+	 * Writes the blocks from the start of the queue, waits for them when 'all' is set
+	 * or too many blocks are pending.
+	 */
+	private void write(boolean all) throws Exception {
+		LineItem li = context.li;
+		int lineNumber = context.lineNumber;
+		while (!pending.isEmpty()) {
+			Object o = pending.firstElement();
+			if (o instanceof byte[]) {
+				writeLog((byte[]) o);
+			} else
+			if (o instanceof DataNode) {
+				DataNode node = (DataNode) o;
+				context.li = node.sourceLine;
+				context.lineNumber = node.sourceLine.number;
+				encoder.encodeNode(node);
+			} else {
+				Future future = (Future) o;
+				if (!all && !future.isDone() && pending.size() <= maxPending) {
+					break;
+				}
+				writeResult(getResult(future));
+			}
+			pending.removeElementAt(0);
+		}
+		//the line being parsed
+		context.li = li;
+		context.lineNumber = lineNumber;
+	}
+
+	private static Result getResult(Future future) throws Exception {
+		try {
+			return (Result) future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw (Exception) cause;
+		}
+	}
+
+	private void writeLog(byte[] log) {
+		if (log.length > 0) {
+			context.out.write(log, 0, log.length);
+			context.out.flush();
+		}
+	}
+
+	private void writeResult(Result r) throws Exception {
+		writeLog(r.log);
+		if (r.error != null) {
+			//reported as the failure of the line
+			context.li = r.errorLine;
+			context.lineNumber = r.errorLine == null ? 0 : r.errorLine.number;
+			throw r.error;
+		}
+		for (int i = 0; i < r.dependencies.size(); i++) {
+			context.dependencies.add((String) r.dependencies.elementAt(i));
+		}
+		if (r.stats != null) {
+			context.stats.add(r.stats);
+		}
+		encoder.writeBlock(r.data);
+	}
+
+	/*
+	 * Runs on the pool thread. The block has its own output, log, dependencies and statistics.
+	 */
+	private Result encodeBlock(Vector nodes) {
+		Result r = new Result();
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		CompileContext blockContext = new CompileContext(options);
+		blockContext.elements = context.elements;
+		blockContext.constants = context.constants;
+		blockContext.structs = context.structs;
+		blockContext.out = new PrintStream(log, true);
+		if (context.stats != null) {
+			blockContext.stats = new CompileStats();
+			blockContext.stats.start();
+			blockContext.stats.enter(CompileStats.PHASE_ENCODE);
+		}
+		try {
+			DataEncoder blockEncoder = new DataEncoder(new DataEmitter(data, context.littleEndian), blockContext, path);
+			for (int i = 0; i < nodes.size(); i++) {
+				Object o = nodes.elementAt(i);
+				if (o instanceof byte[]) {
+					byte[] b = (byte[]) o;
+					blockContext.out.write(b, 0, b.length);
+					continue;
+				}
+				DataNode node = (DataNode) o;
+				blockContext.li = node.sourceLine;
+				blockContext.lineNumber = node.sourceLine.number;
+				blockEncoder.encodeNode(node);
+			}
+			blockEncoder.close();
+			r.data = data.toByteArray();
+		} catch (Exception e) {
+			r.error = e;
+			r.errorLine = blockContext.li;
+		}
+		if (blockContext.stats != null) {
+			blockContext.stats.finish();
+			r.stats = blockContext.stats;
+		}
+		blockContext.out.flush();
+		r.log = log.toByteArray();
+		r.dependencies = blockContext.dependencies.getFiles();
+		return r;
+	}
+}
@@ -0,0 +1,420 @@
+/*
+PrecompiledHeader.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Preprocessed and parsed included file. The #define and #undef directives and
+ * the parsed data element and struct definitions are stored in the -pch
+ * directory and replayed by the later compilations instead of reading the file.
+ * The file name is a hash of the header contents and path and the active
+ * preprocessor symbols. Headers with data blocks are not precompiled.
+ */
+public class PrecompiledHeader {
+	private static final String MAGIC = "GDCPCH1";
+
+	static final int ENTRY_DEFINE = 1;	//#define: text, item
+	static final int ENTRY_UNDEF = 2;	//#undef: text
+	static final int ENTRY_LINE = 3;	//script line: item, definition
+
+	private static final int DEFINITION_NONE = 0;
+	private static final int DEFINITION_ELEMENT = 1;
+	private static final int DEFINITION_STRUCT = 2;
+
+	static class Entry {
+		int kind;
+		String text;
+		LineItem item;
+		Object definition;	//DataElement or DataStruct defined by the line, null for struct fields
+
+		Entry(int kind, String text, LineItem item) {
+			this.kind = kind;
+			this.text = text;
+			this.item = item;
+		}
+	}
+
+	private String key;
+	Vector entries = new Vector();
+	private Vector includes = new Vector();	//nested includes: {path, fileName, file, hash}
+	private boolean failed;
+
+	PrecompiledHeader(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * @return name of the precompiled header for the header contents and the active preprocessor symbols
+	 */
+	static String getKey(String hash, String source, HashMap symbols, String encoding, String commentDef) {
+		Object[] names = symbols.keySet().toArray();
+		Arrays.sort(names);
+		StringBuilder sb = new StringBuilder();
+		sb.append(MAGIC).append('\n').append(hash).append('\n').append(source).append('\n');
+		sb.append(encoding).append('\n').append(commentDef).append('\n');
+		for (int i = 0; i < names.length; i++) {
+			sb.append(names[i]).append('\n');
+		}
+		try {
+			return hash(sb.toString().getBytes("UTF8"));
+		} catch (IOException e) {
+			throw new RuntimeException(e.toString());
+		}
+	}
+
+	static String hash(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (int i = 0; i < digest.length; i++) {
+				sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(digest[i] & 0xF, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e.toString());
+		}
+	}
+
+	static byte[] readFile(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream((int) f.length());
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = is.read(buffer)) > 0) {
+				bos.write(buffer, 0, n);
+			}
+			return bos.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	// recording
+
+	void addDefine(String def, LineItem item) {
+		entries.add(new Entry(ENTRY_DEFINE, def, item));
+	}
+
+	void addUndef(String name) {
+		entries.add(new Entry(ENTRY_UNDEF, name, null));
+	}
+
+	void addLine(LineItem item) {
+		entries.add(new Entry(ENTRY_LINE, null, item));
+	}
+
+	void addInclude(String path, String fileName, String file, String hash) {
+		includes.add(new String[] {path, fileName, file, hash});
+	}
+
+	/**
+	 * The header can't be precompiled, for example a nested include was not found.
+	 */
+	void fail() {
+		failed = true;
+	}
+
+	/**
+	 * Parses the recorded lines into the data element and struct definitions.
+	 * @return false if the header can't be precompiled
+	 */
+	boolean compile(CompileContext options) {
+		if (failed) {
+			return false;
+		}
+		CompileContext context = new CompileContext(options);
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		context.out = new PrintStream(log, true);
+		DataParser parser = new DataParser(context);
+		final Vector recorded = entries;
+		final Vector parsed = new Vector();
+		//hands out the recorded lines, the directives are copied in the same order
+		LineSource source = new LineSource() {
+			int index;
+
+			public LineItem nextLine() {
+				while (index < recorded.size()) {
+					Entry e = (Entry) recorded.elementAt(index++);
+					if (e.kind == ENTRY_LINE) {
+						return e.item;
+					}
+					parsed.add(e);
+				}
+				return null;
+			}
+		};
+		try {
+			CommentFilter filter = new CommentFilter(source, context.commentDef);
+			LineItem li;
+			while ((li = filter.nextLine()) != null) {
+				context.li = li;
+				//the type of '= NAME value' can depend on the constants defined outside the header
+				if (li.line.startsWith("=")) {
+					DataElement de = new DataElement(li, null);
+					if (de.type == DataElement.TYPE_STRING && !de.value.startsWith("\"")) {
+						return false;
+					}
+				}
+				//data blocks are not precompiled
+				if (parser.parse(li) != null) {
+					return false;
+				}
+				Entry e = new Entry(ENTRY_LINE, null, li);
+				e.definition = parser.lastDefinition;
+				parsed.add(e);
+			}
+			if (parser.isDefining()) {
+				return false;
+			}
+		} catch (Exception e) {
+			return false;
+		}
+		//warnings are printed when the header is compiled normally
+		if (log.size() > 0) {
+			return false;
+		}
+		entries = parsed;
+		return true;
+	}
+
+	// replay
+
+	/**
+	 * Defines the preprocessor symbols of the #define directives.
+	 */
+	void defineSymbols(HashMap symbols) {
+		for (int i = 0; i < entries.size(); i++) {
+			Entry e = (Entry) entries.elementAt(i);
+			if (e.kind == ENTRY_DEFINE) {
+				String[] bits = Utils.split(e.text, "= \t");
+				symbols.put(bits[0], e.item);
+			} else
+			if (e.kind == ENTRY_UNDEF) {
+				symbols.remove(e.text);
+			}
+		}
+	}
+
+	/**
+	 * Stores the #define directives as constants.
+	 */
+	void defineConstants(CompileContext context) {
+		for (int i = 0; i < entries.size(); i++) {
+			defineConstant((Entry) entries.elementAt(i), context);
+		}
+	}
+
+	static void defineConstant(Entry e, CompileContext context) {
+		if (e.kind == ENTRY_DEFINE) {
+			context.addConstant(e.text, e.item);
+		} else
+		if (e.kind == ENTRY_UNDEF) {
+			context.constants.remove(e.text);
+		}
+	}
+
+	void addDependencies(Dependencies dependencies) {
+		for (int i = 0; i < includes.size(); i++) {
+			dependencies.add(((String[]) includes.elementAt(i))[2]);
+		}
+	}
+
+	// storage
+
+	void write(File dir) throws IOException {
+		dir.mkdirs();
+		//write to a temporary file first, other compilations can read the header meanwhile
+		File tmp = File.createTempFile(key, ".tmp", dir);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+		try {
+			out.writeUTF(MAGIC);
+			out.writeInt(includes.size());
+			for (int i = 0; i < includes.size(); i++) {
+				String[] include = (String[]) includes.elementAt(i);
+				for (int j = 0; j < include.length; j++) {
+					writeString(out, include[j]);
+				}
+			}
+			out.writeInt(entries.size());
+			for (int i = 0; i < entries.size(); i++) {
+				Entry e = (Entry) entries.elementAt(i);
+				out.writeByte(e.kind);
+				writeString(out, e.text);
+				writeLine(out, e.item);
+				if (e.definition instanceof DataElement) {
+					out.writeByte(DEFINITION_ELEMENT);
+					writeElement(out, (DataElement) e.definition);
+				} else
+				if (e.definition instanceof DataStruct) {
+					DataStruct ds = (DataStruct) e.definition;
+					out.writeByte(DEFINITION_STRUCT);
+					writeString(out, ds.name);
+					writeLine(out, ds.sourceLine);
+					out.writeInt(ds.getSize());
+					for (int j = 0; j < ds.getSize(); j++) {
+						writeElement(out, (DataElement) ds.elements.elementAt(j));
+					}
+				} else {
+					out.writeByte(DEFINITION_NONE);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		File f = new File(dir, key + ".pch");
+		if (!tmp.renameTo(f)) {
+			f.delete();
+			if (!tmp.renameTo(f)) {
+				tmp.delete();
+				throw new IOException("can't write " + f);
+			}
+		}
+	}
+
+	/**
+	 * @return the precompiled header or null when it doesn't exist or one of
+	 * the nested includes has changed
+	 */
+	static PrecompiledHeader load(File dir, String key, Vector includeDirs) {
+		File f = new File(dir, key + ".pch");
+		if (!f.isFile()) {
+			return null;
+		}
+		PrecompiledHeader header = new PrecompiledHeader(key);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024));
+			try {
+				if (!MAGIC.equals(in.readUTF())) {
+					return null;
+				}
+				int size = in.readInt();
+				for (int i = 0; i < size; i++) {
+					String[] include = new String[4];
+					for (int j = 0; j < include.length; j++) {
+						include[j] = readString(in);
+					}
+					File file = Utils.findFile(include[0], include[1], includeDirs);
+					if (!file.getPath().equals(include[2]) || !hash(readFile(file)).equals(include[3])) {
+						return null;
+					}
+					header.includes.add(include);
+				}
+				size = in.readInt();
+				for (int i = 0; i < size; i++) {
+					Entry e = new Entry(in.readByte(), readString(in), readLine(in));
+					int definition = in.readByte();
+					if (definition == DEFINITION_ELEMENT) {
+						e.definition = readElement(in);
+					} else
+					if (definition == DEFINITION_STRUCT) {
+						DataStruct ds = new DataStruct(readString(in), readLine(in));
+						int elements = in.readInt();
+						for (int j = 0; j < elements; j++) {
+							ds.addElement(readElement(in));
+						}
+						e.definition = ds;
+					}
+					header.entries.add(e);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			//corrupted or the nested include is missing -> compile the header again
+			return null;
+		}
+		return header;
+	}
+
+	private static void writeElement(DataOutputStream out, DataElement de) throws IOException {
+		writeString(out, de.name);
+		out.writeInt(de.type);
+		out.writeInt(de.arrayLen);
+		writeString(out, de.value);
+		out.writeBoolean(de.checkedForExpression);
+		writeLine(out, de.sourceLine);
+	}
+
+	private static DataElement readElement(DataInputStream in) throws IOException {
+		String name = readString(in);
+		int type = in.readInt();
+		int arrayLen = in.readInt();
+		String value = readString(in);
+		boolean checked = in.readBoolean();
+		DataElement de = new DataElement(name, value, type, readLine(in));
+		de.arrayLen = arrayLen;
+		de.checkedForExpression = checked;
+		return de;
+	}
+
+	private static void writeLine(DataOutputStream out, LineItem li) throws IOException {
+		out.writeBoolean(li != null);
+		if (li != null) {
+			writeString(out, li.line);
+			out.writeInt(li.number);
+			writeString(out, li.source);
+		}
+	}
+
+	private static LineItem readLine(DataInputStream in) throws IOException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		return new LineItem(readString(in), in.readInt(), readString(in));
+	}
+
+	//the lines can be longer than the 64k limit of writeUTF
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] data = s.getBytes("UTF8");
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return new String(data, "UTF8");
+	}
+}
@@ -0,0 +1,339 @@
+/*
+Preprocessor.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Streaming preprocessor. Handles #ifdef, #ifndef, #else, #endif, #define, #undef,
+ * #error and #include directives and hands out the enabled lines one by one.
+ * The #import lines are data lines, they are handed out too.
+ * Only the readers of the currently open (included) files are kept in memory.
+ */
+public class Preprocessor implements LineSource {
+	private static final int MAX_STACK = 64;
+	private static final int MAX_INCLUDE_DEPTH = 64;
+
+	private CompileContext context;
+	private HashMap constants;
+	private HashMap symbols;	//preprocessor symbols defined by -D, #define and removed by #undef
+	private Vector includeDirs;
+	private String encoding;
+	private String commentDef;
+
+	private Vector frames = new Vector();
+	private Frame frame;
+	private Vector recordings = new Vector();	//precompiled headers being recorded
+	private IncludePrefetcher prefetcher;	//reads the included files ahead (-prefetch), can be null
+
+	//state of a single source file
+	private static class Frame {
+		LineNumberReader reader;
+		String[] lines;	//cached lines of the file, used instead of the reader
+		int lineIndex;
+		String source;
+		String basePath;
+		int lineNumber = 1; //lines are numbered from 1
+		boolean lineEnabled = true;
+		final boolean[] lineEnabledStack = new boolean[MAX_STACK];
+		int lineEnabledStackIndex = -1;
+		PrecompiledHeader header;	//precompiled header recorded from this file
+	}
+
+	public Preprocessor(CompileContext context, String path, String inFileName, String encoding) throws IOException {
+		this(context, encoding);
+		open(path, inFileName);
+	}
+
+	public Preprocessor(CompileContext context, Reader rd, String basePath, String encoding, String source) {
+		this(context, encoding);
+		push(rd, basePath, source);
+	}
+
+	private Preprocessor(CompileContext context, String encoding) {
+		this.context = context;
+		this.constants = context.constants;
+		this.encoding = encoding;
+		this.includeDirs = context.includeDirs;
+		this.commentDef = context.commentDef;
+		symbols = new HashMap(constants);
+		//the precompiled headers are read by the preprocessor
+		if (context.prefetchThreads > 0 && context.pchDir == null) {
+			prefetcher = new IncludePrefetcher(context, encoding, context.prefetchThreads);
+		}
+	}
+
+	/**
+	 * @return the precompiled header of the included file or null if the file was opened
+	 */
+	private PrecompiledHeader open(String path, String fileName) throws IOException {
+		File f = Utils.findFile(path, fileName, includeDirs);
+		String basePath = f.getParentFile().getCanonicalPath();
+		context.dependencies.add(f.getPath());
+		if (context.stats != null && frame != null) {
+			context.stats.includes++;
+		}
+		if (context.pchDir != null && frame != null) {
+			return openHeader(path, fileName, f, basePath);
+		}
+		if (prefetcher != null) {
+			prefetcher.prefetch(f);
+			String[] lines = prefetcher.getLines(f);
+			if (lines != null) {
+				push(null, basePath, f.getCanonicalPath());
+				frame.lines = lines;
+				return null;
+			}
+		}
+		//included files can be shared by more compilations
+		if (context.includeCache != null && frame != null) {
+			String[] lines = context.includeCache.getLines(f, encoding);
+			if (lines != null) {
+				push(null, basePath, f.getCanonicalPath());
+				frame.lines = lines;
+				return null;
+			}
+		}
+		Reader rd;
+		if (encoding == null) {
+			//use system default encoding
+			rd = new FileReader(f);
+		} else {
+			rd = new InputStreamReader(new FileInputStream(f), encoding);
+		}
+		push(rd, basePath, f.getCanonicalPath());
+		return null;
+	}
+
+	/*
+	 * Loads the precompiled header of the included file. When it doesn't exist
+	 * the file is opened and recorded, the header is written when the file ends.
+	 */
+	private PrecompiledHeader openHeader(String path, String fileName, File f, String basePath) throws IOException {
+		byte[] contents = PrecompiledHeader.readFile(f);
+		String source = f.getCanonicalPath();
+		String hash = PrecompiledHeader.hash(contents);
+		for (int i = 0; i < recordings.size(); i++) {
+			((PrecompiledHeader) recordings.elementAt(i)).addInclude(path, fileName, f.getPath(), hash);
+		}
+		String key = PrecompiledHeader.getKey(hash, source, symbols, encoding, commentDef);
+		//the outer header being recorded needs the lines of this one
+		if (recordings.isEmpty()) {
+			PrecompiledHeader header = PrecompiledHeader.load(new File(context.pchDir), key, includeDirs);
+			if (header != null) {
+				header.addDependencies(context.dependencies);
+				header.defineSymbols(symbols);
+				if (!context.streaming) {
+					header.defineConstants(context);
+				}
+				return header;
+			}
+		}
+		Reader rd;
+		if (encoding == null) {
+			//use system default encoding
+			rd = new InputStreamReader(new ByteArrayInputStream(contents));
+		} else {
+			rd = new InputStreamReader(new ByteArrayInputStream(contents), encoding);
+		}
+		push(rd, basePath, source);
+		frame.header = new PrecompiledHeader(key);
+		recordings.add(frame.header);
+		return null;
+	}
+
+	private void push(Reader rd, String basePath, String source) {
+		if (frames.size() >= MAX_INCLUDE_DEPTH) {
+			throw new RuntimeException("includes nested too deeply: " + source);
+		}
+		frame = new Frame();
+		if (rd != null) {
+			frame.reader = new LineNumberReader(rd);
+		}
+		frame.basePath = basePath;
+		frame.source = source;
+		frames.add(frame);
+	}
+
+	private void pop() throws IOException {
+		if (frame.reader != null) {
+			frame.reader.close();
+		}
+		frames.removeElementAt(frames.size() - 1);
+		int index = frame.lineEnabledStackIndex;
+		String source = frame.source;
+		PrecompiledHeader header = frame.header;
+		frame = frames.isEmpty() ? null : (Frame) frames.lastElement();
+		if (frame == null && prefetcher != null) {
+			prefetcher.shutdown();
+		}
+		if (index >= 0) {
+			throw new RuntimeException("missing #endif " + (index + 1) + "x in source: " + source);
+		}
+		if (header != null) {
+			recordings.remove(header);
+			if (header.compile(context)) {
+				try {
+					header.write(new File(context.pchDir));
+				} catch (IOException e) {
+					context.out.println("Warning: precompiled header of " + source + " not written: " + e);
+				}
+			}
+		}
+	}
+
+	public LineItem nextLine() throws IOException {
+		CompileStats stats = context.stats;
+		if (stats == null) {
+			return readLine();
+		}
+		int phase = stats.enter(CompileStats.PHASE_PREPROCESS);
+		try {
+			return readLine();
+		} finally {
+			stats.leave(phase);
+		}
+	}
+
+	private LineItem readLine() throws IOException {
+		while (frame != null) {
+			String line;
+			if (frame.lines != null) {
+				line = frame.lineIndex < frame.lines.length ? frame.lines[frame.lineIndex++] : null;
+			} else {
+				line = frame.reader.readLine();
+			}
+			if (line == null) {
+				pop();
+				continue;
+			}
+			int lineNumber = frame.lineNumber++;
+			if (context.stats != null) {
+				context.stats.lines++;
+			}
+			if (line.length() < 1) {
+				continue;
+			}
+			String source = frame.source;
+			try {
+				LineItem item = processLine(line, lineNumber);
+				if (item != null) {
+					return item;
+				}
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException(e +  " in source: " + source + " (" + lineNumber + ")");
+			}
+		}
+		return null;
+	}
+
+	private LineItem processLine(String line, int lineNumber) {
+		line = Utils.removeComment(line, commentDef);
+		if (line.startsWith("#ifdef") && (line.charAt(6) == ' ' || line.charAt(6) == '\t')) {
+			String exp = line.substring(7).trim();
+			frame.lineEnabled = symbols.containsKey(exp);
+			frame.lineEnabledStack[++frame.lineEnabledStackIndex] = frame.lineEnabled;
+		} else
+		if (line.startsWith("#ifndef")&& (line.charAt(7) == ' ' || line.charAt(7) == '\t')) {
+			String exp = line.substring(8).trim();
+			frame.lineEnabled = !symbols.containsKey(exp);
+			frame.lineEnabledStack[++frame.lineEnabledStackIndex] = frame.lineEnabled;
+		} else
+		if (line.equals("#else")) {
+			if (frame.lineEnabledStackIndex < 0) {
+				throw new RuntimeException("unexpected #else definition");
+			}
+			frame.lineEnabled = !frame.lineEnabledStack[frame.lineEnabledStackIndex];
+			frame.lineEnabledStack[frame.lineEnabledStackIndex] = frame.lineEnabled;
+		} else
+		if (line.equals("#endif")) {
+			if (frame.lineEnabledStackIndex < 0) {
+				throw new RuntimeException("unexpected #endif definition");
+			}
+			frame.lineEnabledStackIndex--;
+			if (frame.lineEnabledStackIndex < 0) {
+				frame.lineEnabled = true;
+			} else {
+				frame.lineEnabled = frame.lineEnabledStack[frame.lineEnabledStackIndex];
+			}
+		}
+
+		if (!frame.lineEnabled) {
+			return null;
+		}
+		if (!line.startsWith("#") || DataParser.isImport(line)) {
+			LineItem item = new LineItem(line, lineNumber, frame.source);
+			for (int i = 0; i < recordings.size(); i++) {
+				((PrecompiledHeader) recordings.elementAt(i)).addLine(item);
+			}
+			return item;
+		} else
+		if (line.startsWith("#define") && (line.charAt(7) == ' ' || line.charAt(7) == '\t')) {
+			LineItem item = new LineItem(line, lineNumber, frame.source);
+			String def = line.substring(7).trim();
+			context.addConstant(def, item);
+			String[] bits = Utils.split(def, "= \t");
+			symbols.put(bits[0], item);
+			for (int i = 0; i < recordings.size(); i++) {
+				((PrecompiledHeader) recordings.elementAt(i)).addDefine(def, item);
+			}
+		} else
+		if (line.startsWith("#error") && (line.charAt(6) == ' ' || line.charAt(6) == '\t')) {
+			throw new RuntimeException("Error: " + line.substring(6).trim());
+		} else
+		if (line.startsWith("#include") && (line.charAt(8) == ' ' || line.charAt(8) == '\t')) {
+			String includeName = Utils.getIncludeName(line.substring(8));
+			//include is valid
+			if (includeName != null) {
+				try {
+					PrecompiledHeader header = open(frame.basePath == null ? "" : frame.basePath, includeName);
+					if (header != null) {
+						LineItem item = new LineItem(line, lineNumber, frame.source);
+						item.header = header;
+						return item;
+					}
+				} catch (Exception e) {
+					context.out.println(e +  " in source: " + frame.source + " (" + lineNumber + ")" );
+					//the message would not be printed when the header is loaded
+					for (int i = 0; i < recordings.size(); i++) {
+						((PrecompiledHeader) recordings.elementAt(i)).fail();
+					}
+				}
+			}
+		} else
+		if (line.startsWith("#undef") && (line.charAt(6) == ' ' || line.charAt(6) == '\t')) {
+			String exp = line.substring(7).trim();
+			constants.remove(exp);
+			symbols.remove(exp);
+			for (int i = 0; i < recordings.size(); i++) {
+				((PrecompiledHeader) recordings.elementAt(i)).addUndef(exp);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,417 @@
+/*
+RecordReader.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Vector;
+
+/**
+ * Streams the records of a CSV or JSON Lines file imported by '#import' and maps
+ * their values onto the elements of a struct. A CSV file starts with the header
+ * naming the struct elements of the columns, the values are separated by commas and
+ * can be quoted (RFC 4180). Each line of a JSON Lines file is an object whose keys
+ * are the struct elements; the values are strings, numbers, true/false (1/0),
+ * null or arrays of numbers (the array elements).
+ * An unquoted empty CSV value, a JSON null or a missing key means the value
+ * is omitted, so the default value of the element is stored.
+ */
+public class RecordReader {
+	public static final int FORMAT_CSV = 0;
+	public static final int FORMAT_JSONL = 1;
+	static final String[] FORMATS = {"csv", "jsonl"};
+
+	private BufferedReader reader;
+	private int format;
+	private DataStruct struct;
+	private String fileName;
+
+	private String[] values;	//values of the current record by the struct element index, null when omitted
+	private int[] columns;		//CSV: struct element index of each column
+	private int lineNumber = 1;	//line of the next character
+	private int recordLine;		//line where the current record starts
+
+	private StringBuilder sb = new StringBuilder();
+	private int c;		//CSV: the last character read
+	private char[] buffer = new char[64 * 1024];
+	private int bufferPos;
+	private int bufferLength;
+	private String line;	//JSONL: the line being parsed
+	private int pos;
+
+	public RecordReader(File f, String encoding, int format, DataStruct struct) throws IOException {
+		Reader rd = encoding == null ? new InputStreamReader(new FileInputStream(f))
+				: new InputStreamReader(new FileInputStream(f), encoding);
+		reader = new BufferedReader(rd);
+		this.format = format;
+		this.struct = struct;
+		fileName = f.getPath();
+		values = new String[struct.fields.length];
+		if (format == FORMAT_CSV) {
+			readHeader();
+		}
+	}
+
+	/**
+	 * @return the format of the '#import' format name, -1 if it's not known
+	 */
+	public static int getFormat(String name) {
+		for (int i = 0; i < FORMATS.length; i++) {
+			if (FORMATS[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the values of the current record by the struct element index, null when the value is omitted
+	 */
+	public String[] getValues() {
+		return values;
+	}
+
+	/**
+	 * @return the line where the current record starts
+	 */
+	public int getLineNumber() {
+		return recordLine;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Reads the next record, the empty lines are skipped.
+	 * @return false at the end of the file
+	 */
+	public boolean next() throws IOException {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = null;
+		}
+		if (format == FORMAT_CSV) {
+			return nextCsv();
+		}
+		return nextJson();
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private IllegalArgumentException error(String msg) {
+		return new IllegalArgumentException(msg + " in " + fileName + ":" + recordLine);
+	}
+
+	private int getIndex(String name) {
+		int index = struct.getIndex(name);
+		if (index < 0) {
+			throw error("unknown element in struct " + struct.name + ", element name=" + name);
+		}
+		if (struct.fields[index].type == DataElement.TYPE_STRUCT) {
+			throw error("struct element " + name + " can't be imported");
+		}
+		return index;
+	}
+
+	//CSV
+
+	private int read() throws IOException {
+		if (bufferPos == bufferLength) {
+			bufferLength = reader.read(buffer, 0, buffer.length);
+			bufferPos = 0;
+			if (bufferLength <= 0) {
+				bufferLength = 0;
+				c = -1;
+				return c;
+			}
+		}
+		c = buffer[bufferPos++];
+		if (c == '\n') {
+			lineNumber++;
+		}
+		return c;
+	}
+
+	private void readHeader() throws IOException {
+		recordLine = lineNumber;
+		Vector names = new Vector();
+		if (!readRow(names)) {
+			throw error("missing CSV header");
+		}
+		columns = new int[names.size()];
+		for (int i = 0; i < columns.length; i++) {
+			String name = ((String) names.elementAt(i)).trim();
+			columns[i] = getIndex(name);
+			for (int j = 0; j < i; j++) {
+				if (columns[j] == columns[i]) {
+					throw error("duplicate column " + name);
+				}
+			}
+		}
+	}
+
+	private boolean nextCsv() throws IOException {
+		//skip the end of the previous record and the empty lines
+		while (c == '\r' || c == '\n') {
+			read();
+		}
+		if (c < 0) {
+			return false;
+		}
+		recordLine = lineNumber;
+		int column = 0;
+		while (true) {
+			boolean quoted = c == '"';
+			String value = readValue();
+			if (column >= columns.length) {
+				throw error("the record has more values than the header (" + columns.length + ")");
+			}
+			//an unquoted empty value is omitted
+			if (quoted || value.length() > 0) {
+				values[columns[column]] = value;
+			}
+			column++;
+			if (c != ',') {
+				return true;
+			}
+			read();
+		}
+	}
+
+	/*
+	 * Reads the names of the header into the vector.
+	 */
+	private boolean readRow(Vector row) throws IOException {
+		read();
+		while (c == '\r' || c == '\n') {
+			read();
+		}
+		if (c < 0) {
+			return false;
+		}
+		while (true) {
+			row.add(readValue());
+			if (c != ',') {
+				return true;
+			}
+			read();
+		}
+	}
+
+	/*
+	 * Reads the value starting at the current character, stops at the separator,
+	 * the end of the line or the end of the file.
+	 */
+	private String readValue() throws IOException {
+		sb.setLength(0);
+		if (c == '"') {
+			int start = lineNumber;
+			while (true) {
+				read();
+				if (c < 0) {
+					throw new IllegalArgumentException("unterminated quoted value in " + fileName + ":" + start);
+				}
+				if (c == '"') {
+					//a doubled quote is the quote character
+					if (read() != '"') {
+						break;
+					}
+				}
+				sb.append((char) c);
+			}
+			while (c == ' ' || c == '\t') {
+				read();
+			}
+			if (c == '\r') {
+				read();
+			}
+			if (c >= 0 && c != ',' && c != '\n') {
+				throw error("unexpected character '" + (char) c + "' after the quoted value");
+			}
+			return sb.toString();
+		}
+		while (c >= 0 && c != ',' && c != '\n') {
+			if (c != '\r') {
+				sb.append((char) c);
+			}
+			read();
+		}
+		return sb.toString().trim();
+	}
+
+	//JSON Lines
+
+	private boolean nextJson() throws IOException {
+		do {
+			line = reader.readLine();
+			recordLine = lineNumber++;
+			if (line == null) {
+				return false;
+			}
+			line = line.trim();
+		} while (line.length() == 0);
+		pos = 0;
+		expect('{');
+		skipSpaces();
+		if (peek() == '}') {
+			pos++;
+		} else {
+			while (true) {
+				skipSpaces();
+				if (peek() != '"') {
+					throw error("expected a key at " + (pos + 1));
+				}
+				String key = readString();
+				expect(':');
+				int index = getIndex(key);
+				values[index] = readJsonValue();
+				skipSpaces();
+				if (peek() == ',') {
+					pos++;
+					continue;
+				}
+				expect('}');
+				break;
+			}
+		}
+		skipSpaces();
+		if (pos < line.length()) {
+			throw error("unexpected text after the object at " + (pos + 1));
+		}
+		return true;
+	}
+
+	private char peek() {
+		return pos < line.length() ? line.charAt(pos) : 0;
+	}
+
+	private void skipSpaces() {
+		while (pos < line.length() && line.charAt(pos) <= ' ') {
+			pos++;
+		}
+	}
+
+	private void expect(char ch) {
+		skipSpaces();
+		if (peek() != ch) {
+			throw error("expected '" + ch + "' at " + (pos + 1));
+		}
+		pos++;
+	}
+
+	/*
+	 * @return the value as the text of the script, null for null
+	 */
+	private String readJsonValue() {
+		skipSpaces();
+		char ch = peek();
+		if (ch == '"') {
+			return readString();
+		}
+		if (ch == '[') {
+			//array elements separated by spaces
+			pos++;
+			skipSpaces();
+			if (peek() == ']') {
+				pos++;
+				return "";
+			}
+			StringBuilder array = new StringBuilder();
+			while (true) {
+				String v = readJsonValue();
+				if (array.length() > 0) {
+					array.append(' ');
+				}
+				array.append(v);
+				skipSpaces();
+				if (peek() == ',') {
+					pos++;
+					continue;
+				}
+				expect(']');
+				return array.toString();
+			}
+		}
+		int start = pos;
+		while (pos < line.length() && ",}] \t".indexOf(line.charAt(pos)) < 0) {
+			pos++;
+		}
+		String v = line.substring(start, pos);
+		if (v.length() == 0) {
+			throw error("expected a value at " + (pos + 1));
+		}
+		if (v.equals("null")) {
+			return null;
+		}
+		if (v.equals("true")) {
+			return "1";
+		}
+		if (v.equals("false")) {
+			return "0";
+		}
+		return v;
+	}
+
+	private String readString() {
+		pos++;
+		sb.setLength(0);
+		while (true) {
+			if (pos >= line.length()) {
+				throw error("unterminated string");
+			}
+			char ch = line.charAt(pos++);
+			if (ch == '"') {
+				return sb.toString();
+			}
+			if (ch != '\\') {
+				sb.append(ch);
+				continue;
+			}
+			if (pos >= line.length()) {
+				throw error("unterminated string");
+			}
+			ch = line.charAt(pos++);
+			switch (ch) {
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'u': {
+					if (pos + 4 > line.length()) {
+						throw error("bad escape at " + pos);
+					}
+					try {
+						sb.append((char) Integer.parseInt(line.substring(pos, pos + 4), 16));
+					} catch (NumberFormatException e) {
+						throw error("bad escape at " + pos);
+					}
+					pos += 4;
+				} break;
+				default: sb.append(ch); break;
+			}
+		}
+	}
+}
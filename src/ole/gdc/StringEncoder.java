@@ -0,0 +1,276 @@
+/*
+StringEncoder.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes the escapes of a string value and encodes the characters straight into
+ * the output buffer (-strenc). The strings are written with the big endian 16 bit
+ * length of the encoded bytes; with SMALLEST the length is preceded by the tag of
+ * the encoding which is the smallest for the string: TAG_UTF8, TAG_LATIN1 or TAG_UTF16
+ * (in the byte order of the data). UTF8 is the modified UTF-8 of DataOutputStream.writeUTF(),
+ * the fixed size strings (string[N]) are in the standard UTF-8, also with SMALLEST.
+ * The characters Latin-1 can't represent are written as '?'.
+ * The character buffer is reused, each thread has its own encoder.
+ */
+public class StringEncoder {
+	public static final int UTF8 = 0;
+	public static final int LATIN1 = 1;
+	public static final int UTF16LE = 2;
+	public static final int UTF16BE = 3;
+	public static final int SMALLEST = 4;
+	static final String[] NAMES = {"utf8", "latin1", "utf16le", "utf16be", "smallest"};
+
+	public static final int TAG_UTF8 = 0;
+	public static final int TAG_LATIN1 = 1;
+	public static final int TAG_UTF16 = 2;
+
+	private static final int MAX_LENGTH = 65535;
+	private static final ThreadLocal encoders = new ThreadLocal();
+
+	private char[] chars = new char[256];
+	private int length;
+	private byte[] bytes = new byte[4];	//encoded character
+	//the encoding chosen by prepare()
+	private int chosen;
+	private int tag;
+	private int size;
+
+	public static StringEncoder get() {
+		StringEncoder encoder = (StringEncoder) encoders.get();
+		if (encoder == null) {
+			encoder = new StringEncoder();
+			encoders.set(encoder);
+		}
+		return encoder;
+	}
+
+	/**
+	 * @return the encoding of the -strenc option name, -1 if it's not known
+	 */
+	public static int getEncoding(String name) {
+		for (int i = 0; i < NAMES.length; i++) {
+			if (NAMES[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Decodes the escapes of s[start, end) into the character buffer.
+	 */
+	public void decode(String s, int start, int end) {
+		ensureCapacity(end - start);
+		length = UnicodeEscapes.unescape(s, start, end, chars);
+	}
+
+	/**
+	 * Copies the string without escapes into the character buffer.
+	 */
+	public void load(String s) {
+		ensureCapacity(s.length());
+		s.getChars(0, s.length(), chars, 0);
+		length = s.length();
+	}
+
+	private void ensureCapacity(int size) {
+		if (chars.length < size) {
+			chars = new char[Math.max(size, chars.length * 2)];
+		}
+	}
+
+	/**
+	 * Writes the decoded string with its length (and the tag with SMALLEST).
+	 */
+	public void write(DataEmitter emitter, int encoding) throws IOException {
+		int size = prepare(encoding, emitter.order() == ByteOrder.LITTLE_ENDIAN);
+		putPrepared(emitter.getBuffer(size));
+	}
+
+	/**
+	 * @return the decoded string with its length (and the tag with SMALLEST) as write() writes it
+	 */
+	public byte[] toByteArray(int encoding, boolean littleEndian) throws IOException {
+		byte[] data = new byte[prepare(encoding, littleEndian)];
+		putPrepared(ByteBuffer.wrap(data));
+		return data;
+	}
+
+	/*
+	 * Chooses the encoding of the string.
+	 * @return the number of bytes including the length and the tag
+	 */
+	private int prepare(int encoding, boolean littleEndian) throws IOException {
+		tag = -1;
+		if (encoding == SMALLEST) {
+			tag = getSmallest();
+			encoding = tag == TAG_UTF8 ? UTF8 : tag == TAG_LATIN1 ? LATIN1 : littleEndian ? UTF16LE : UTF16BE;
+		}
+		chosen = encoding;
+		size = getSize(encoding, true);
+		if (size > MAX_LENGTH) {
+			throw new UTFDataFormatException("encoded string too long: " + size + " bytes");
+		}
+		return size + (tag >= 0 ? 3 : 2);
+	}
+
+	private void putPrepared(ByteBuffer buffer) {
+		if (tag >= 0) {
+			buffer.put((byte) tag);
+		}
+		buffer.put((byte) (size >> 8));
+		buffer.put((byte) size);
+		put(buffer, chosen, true, size);
+	}
+
+	/**
+	 * Writes the decoded string to the fixed size field, the rest of the field is filled by zeros.
+	 * The string is cut when it doesn't fit.
+	 */
+	public void writeFixed(DataEmitter emitter, int maxLen, int encoding) throws IOException {
+		if (encoding == SMALLEST) {
+			encoding = UTF8;
+		}
+		int size = Math.min(getSize(encoding, false), maxLen);
+		put(emitter.getBuffer(size), encoding, false, size);
+		emitter.writeZeros(maxLen - size);
+	}
+
+	/**
+	 * @return size of the decoded string in the fixed size field without the zero padding
+	 */
+	public int getFixedSize(int encoding) {
+		return getSize(encoding == SMALLEST ? UTF8 : encoding, false);
+	}
+
+	/*
+	 * @return the tag of the smallest encoding, UTF-8 when it's the same size as UTF-16
+	 */
+	private int getSmallest() {
+		boolean latin1 = true;
+		for (int i = 0; i < length && latin1; i++) {
+			latin1 = chars[i] <= 0xFF;
+		}
+		if (latin1) {
+			return TAG_LATIN1;
+		}
+		return getSize(UTF8, true) <= length * 2 ? TAG_UTF8 : TAG_UTF16;
+	}
+
+	/*
+	 * @param modified the modified UTF-8 of writeUTF() instead of the standard one
+	 */
+	private int getSize(int encoding, boolean modified) {
+		switch (encoding) {
+			case LATIN1:
+				return length;
+			case UTF16LE:
+			case UTF16BE:
+				return length * 2;
+		}
+		int size = 0;
+		for (int i = 0; i < length; i++) {
+			size += encodeUtf8(i, modified);
+			//the surrogate pair is one character
+			if (!modified && isSurrogatePair(i)) {
+				i++;
+			}
+		}
+		return size;
+	}
+
+	private boolean isSurrogatePair(int i) {
+		return Character.isHighSurrogate(chars[i]) && i + 1 < length && Character.isLowSurrogate(chars[i + 1]);
+	}
+
+	/*
+	 * Puts 'size' bytes of the encoded string, the last character can be cut.
+	 */
+	private void put(ByteBuffer buffer, int encoding, boolean modified, int size) {
+		int written = 0;
+		for (int i = 0; i < length && written < size; i++) {
+			char c = chars[i];
+			int n;
+			switch (encoding) {
+				case LATIN1: {
+					bytes[0] = (byte) (c <= 0xFF ? c : '?');
+					n = 1;
+				} break;
+				case UTF16LE: {
+					bytes[0] = (byte) c;
+					bytes[1] = (byte) (c >> 8);
+					n = 2;
+				} break;
+				case UTF16BE: {
+					bytes[0] = (byte) (c >> 8);
+					bytes[1] = (byte) c;
+					n = 2;
+				} break;
+				default: {
+					n = encodeUtf8(i, modified);
+					if (!modified && isSurrogatePair(i)) {
+						i++;
+					}
+				}
+			}
+			n = Math.min(n, size - written);
+			buffer.put(bytes, 0, n);
+			written += n;
+		}
+	}
+
+	/*
+	 * Encodes the character (or the surrogate pair starting at 'i') into 'bytes'.
+	 * @return number of bytes
+	 */
+	private int encodeUtf8(int i, boolean modified) {
+		char c = chars[i];
+		if (c < 0x80 && (c != 0 || !modified)) {
+			bytes[0] = (byte) c;
+			return 1;
+		}
+		if (c < 0x800) {
+			bytes[0] = (byte) (0xC0 | (c >> 6));
+			bytes[1] = (byte) (0x80 | (c & 0x3F));
+			return 2;
+		}
+		if (!modified && c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+			if (!isSurrogatePair(i)) {
+				//as String.getBytes() does
+				bytes[0] = '?';
+				return 1;
+			}
+			int cp = Character.toCodePoint(c, chars[i + 1]);
+			bytes[0] = (byte) (0xF0 | (cp >> 18));
+			bytes[1] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+			bytes[2] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+			bytes[3] = (byte) (0x80 | (cp & 0x3F));
+			return 4;
+		}
+		bytes[0] = (byte) (0xE0 | (c >> 12));
+		bytes[1] = (byte) (0x80 | ((c >> 6) & 0x3F));
+		bytes[2] = (byte) (0x80 | (c & 0x3F));
+		return 3;
+	}
+}
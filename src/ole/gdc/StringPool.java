@@ -0,0 +1,76 @@
+/*
+StringPool.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Strings of the compilation stored only once (-strpool). The data contain
+ * the 32 bit offset of the string in the pool instead of the string itself.
+ * The pool is written after the data: the strings in the format of the -strenc
+ * option (see StringEncoder) followed by the 32 bit position of the pool in the output.
+ */
+public class StringPool {
+	private HashMap offsets = new HashMap();	//string -> Integer offset in the pool
+	private ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private int encoding;
+	private boolean littleEndian;
+
+	public StringPool(int encoding, boolean littleEndian) {
+		this.encoding = encoding;
+		this.littleEndian = littleEndian;
+	}
+
+	/**
+	 * @return offset of the string in the pool, the string is added when it's not there yet
+	 */
+	public synchronized int add(String s) throws IOException {
+		Integer offset = (Integer) offsets.get(s);
+		if (offset == null) {
+			offset = new Integer(pool.size());
+			StringEncoder encoder = StringEncoder.get();
+			encoder.load(s);
+			pool.write(encoder.toByteArray(encoding, littleEndian));
+			offsets.put(s, offset);
+		}
+		return offset.intValue();
+	}
+
+	public synchronized int getCount() {
+		return offsets.size();
+	}
+
+	/**
+	 * Writes the pool and its position at the end of the output.
+	 */
+	public synchronized void write(DataEmitter emitter, CompileStats stats) throws IOException {
+		long position = emitter.getPosition();
+		if (position > 0xFFFFFFFFL) {
+			throw new IOException("string pool at position " + position + " doesn't fit into 32 bits");
+		}
+		byte[] data = pool.toByteArray();
+		emitter.write(data);
+		emitter.writeInt((int) position);
+		if (stats != null) {
+			stats.addBytes(CompileStats.TYPE_POOL, emitter.getPosition() - position);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+TempSink.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Captures the output which is written somewhere else later, like the data of
+ * the '{#@}' list which follow its offset table. The data are kept in memory
+ * up to MAX_MEMORY bytes, the rest goes to a temporary file. The captured data
+ * can be patched and they are kept after close() until copyTo() or discard().
+ */
+public class TempSink implements OutputSink {
+	private static final int MAX_MEMORY = 1024 * 1024;
+
+	private byte[] data = new byte[256];
+	private long size;
+
+	//temporary file holding all the data, null while they are in memory
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	public long getSize() {
+		return size;
+	}
+
+	/*
+	 * Makes room for 'length' more bytes in memory.
+	 * @return false if the data don't fit into the memory and they were moved into the file
+	 */
+	private boolean reserve(long length) throws IOException {
+		if (channel != null) {
+			return false;
+		}
+		long needed = size + length;
+		if (needed > MAX_MEMORY) {
+			file = File.createTempFile("gdc", ".tmp");
+			file.deleteOnExit();
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			ByteBuffer b = ByteBuffer.wrap(data, 0, (int) size);
+			while (b.hasRemaining()) {
+				channel.write(b);
+			}
+			data = null;
+			return false;
+		}
+		if (needed > data.length) {
+			byte[] bigger = new byte[(int) Math.min(Math.max(needed, data.length * 2L), MAX_MEMORY)];
+			System.arraycopy(data, 0, bigger, 0, (int) size);
+			data = bigger;
+		}
+		return true;
+	}
+
+	public void write(ByteBuffer src) throws IOException {
+		int length = src.remaining();
+		if (reserve(length)) {
+			src.get(data, (int) size, length);
+		} else {
+			while (src.hasRemaining()) {
+				channel.write(src);
+			}
+		}
+		size += length;
+	}
+
+	public void transferFrom(FileChannel source, long fileSize) throws IOException {
+		long pos = 0;
+		if (reserve(fileSize)) {
+			ByteBuffer b = ByteBuffer.wrap(data, (int) size, (int) fileSize);
+			while (b.hasRemaining()) {
+				int n = source.read(b, pos);
+				if (n <= 0) {
+					throw new EOFException("file truncated at " + pos + " bytes, expected " + fileSize);
+				}
+				pos += n;
+			}
+		} else {
+			while (pos < fileSize) {
+				long n = source.transferTo(pos, fileSize - pos, channel);
+				if (n <= 0) {
+					throw new EOFException("file truncated at " + pos + " bytes, expected " + fileSize);
+				}
+				pos += n;
+			}
+		}
+		size += fileSize;
+	}
+
+	public boolean canPatch() {
+		return true;
+	}
+
+	public void patch(long position, ByteBuffer src) throws IOException {
+		if (channel == null) {
+			src.get(data, (int) position, src.remaining());
+		} else {
+			while (src.hasRemaining()) {
+				position += channel.write(src, position);
+			}
+		}
+	}
+
+	/**
+	 * Does nothing, the captured data are kept for copyTo().
+	 */
+	public void close() throws IOException {
+	}
+
+	/**
+	 * Writes the captured data into the emitter, the temporary file is copied without a copy on the heap.
+	 */
+	public void copyTo(DataEmitter emitter) throws IOException {
+		if (channel == null) {
+			emitter.write(data, 0, (int) size);
+		} else {
+			emitter.transferFrom(channel, size);
+		}
+	}
+
+	/**
+	 * Releases the captured data and deletes the temporary file.
+	 */
+	public void discard() {
+		data = null;
+		if (raf == null) {
+			return;
+		}
+		try {
+			raf.close();
+		} catch (IOException e) {
+			//the file is deleted anyway
+		}
+		file.delete();
+		raf = null;
+		channel = null;
+		file = null;
+	}
+}
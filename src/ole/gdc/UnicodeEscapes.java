@@ -18,32 +18,60 @@ General Public License for more details.
 
 package ole.gdc;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 public class UnicodeEscapes {
 
-	private static final Pattern unicodePattern = Pattern.compile("\\\\u+\\p{XDigit}{4}");
-
 	/**
 	 * Converts Unicode escapes to the corresponding single Unicode characters.
 	 * @param stringWithEscapes
 	 * @return Converted string
 	 */
 	public static String unescape(String stringWithEscapes) {
-		StringBuilder result = new StringBuilder(stringWithEscapes);
-		while( true ) {
-			Matcher matcher = unicodePattern.matcher(result);
-			if( !matcher.find() ) {
-				break;
+		if (stringWithEscapes.indexOf('\\') < 0) {
+			return stringWithEscapes;
+		}
+		char[] result = new char[stringWithEscapes.length()];
+		int length = unescape(stringWithEscapes, 0, stringWithEscapes.length(), result);
+		return new String(result, 0, length);
+	}
+
+	/**
+	 * Converts the escapes (a backslash, one or more 'u' and 4 hex digits) of s[start, end)
+	 * in a single pass. An escape is replaced as soon as its last digit is written, so
+	 * a converted character can be a part of another escape (an escaped backslash
+	 * followed by "u0041" is converted to 'A').
+	 * @param result receives the characters, it's never longer than the input
+	 * @return number of characters in 'result'
+	 */
+	static int unescape(String s, int start, int end, char[] result) {
+		int n = 0;
+		for (int i = start; i < end; i++) {
+			result[n++] = s.charAt(i);
+			//the last character can end an escape, also the converted one
+			while (n >= 6 && isHexDigits(result, n - 4, n) && result[n - 5] == 'u') {
+				int u = n - 5;
+				while (u > 0 && result[u - 1] == 'u') {
+					u--;
+				}
+				if (u == 0 || result[u - 1] != '\\') {
+					break;
+				}
+				char c = (char) ((Character.digit(result[n - 4], 16) << 12) | (Character.digit(result[n - 3], 16) << 8)
+						| (Character.digit(result[n - 2], 16) << 4) | Character.digit(result[n - 1], 16));
+				n = u - 1;
+				result[n++] = c;
+			}
+		}
+		return n;
+	}
+
+	private static boolean isHexDigits(char[] chars, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = chars[i];
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+				return false;
 			}
-			int start = matcher.start();
-			int end = matcher.end();
-			String hex = result.substring(end-4, end);
-			char c = (char) Integer.parseInt(hex, 16);
-			result.replace(start, end, Character.toString(c));
 		}
-		return result.toString();
+		return true;
 	}
 
 	public static void testMe() {
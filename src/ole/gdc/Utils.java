@@ -20,10 +20,9 @@ package ole.gdc;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.LineNumberReader;
+import java.io.PrintStream;
 import java.io.Reader;
 import java.util.HashMap;
 import java.util.StringTokenizer;
@@ -60,33 +59,41 @@ public class Utils {
 	public static Vector getLineList(
 			String path, String inFileName, String encoding, 
 			Vector result, HashMap constants, Vector includeDirs, LineItem lineItem, String commentDef
+	) {
+		return getLineList(createContext(constants, includeDirs, commentDef), path, inFileName, encoding, result, lineItem);
+	}
+
+	public static Vector getLineList(
+			CompileContext context, String path, String inFileName, String encoding, 
+			Vector result, LineItem lineItem
 	) {
 		try {
-			if (result == null) {
-				result = new Vector();
-			}
-			File f = findFile(path, inFileName, includeDirs);
-			String basePath = f.getParentFile().getCanonicalPath();
-			
-			if (encoding == null) {
-				//use system default encoding
-				FileReader fr = new FileReader(f);
-				return getLineList(fr, result, basePath, null, f.getCanonicalPath(), constants, commentDef, includeDirs);
-			} else {
-				InputStreamReader isr = new InputStreamReader(new FileInputStream(f), encoding);
-				return getLineList(isr, result, basePath, encoding , f.getCanonicalPath(), constants, commentDef, includeDirs);
-			}
+			Preprocessor pp = new Preprocessor(context, path, inFileName, encoding);
+			return VectorLineSource.drain(pp, result);
 		} catch (Exception e) {
 			if (lineItem == null) {
-				System.out.println(e);
+				context.out.println(e.getMessage() == null ? e.toString() : e.getMessage());
 			} else {
-				System.out.println(e +  " in source: " + lineItem.source + " (" + lineItem.number + ")" );
+				context.out.println(e +  " in source: " + lineItem.source + " (" + lineItem.number + ")" );
 			}
 		}
 		return null;
 	}
+
+	/*
+	 * Context for the preprocessing outside of the compilation.
+	 */
+	private static CompileContext createContext(HashMap constants, Vector includeDirs, String commentDef) {
+		CompileContext context = new CompileContext();
+		context.constants = constants;
+		context.includeDirs = includeDirs;
+		if (commentDef != null) {
+			context.commentDef = commentDef;
+		}
+		return context;
+	}
 	
-	private static File findFile(String path, String fileName, Vector includeDirs) {
+	static File findFile(String path, String fileName, Vector includeDirs) {
 		File f = new File (path + "/" + fileName);
 		if (f.exists() && !f.isDirectory()) {
 			return f;
@@ -110,119 +117,42 @@ public class Utils {
 	}
 	
 	public static Vector getLineList(byte[] data) {
+		return getLineList(createContext(new HashMap(), new Vector(), null), data);
+	}
+
+	public static Vector getLineList(CompileContext context, byte[] data) {
 		try {
 			Vector result = new Vector();
 			InputStreamReader isr = new InputStreamReader(new ByteArrayInputStream(data));
-			return getLineList(isr, result, null, null, "byte[] data", new HashMap(), null, new Vector());
+			return getLineList(context, isr, result, null, null, "byte[] data");
 		} catch (Exception e) {
-			System.out.println(e);
+			context.out.println(e);
 		}
 		return null;
 	}
 	
-	private static boolean isConstantDefined(String name, HashMap constants) {
-		DataElement de = (DataElement) constants.get(name);
-		return (de != null);
-	}
-	
 	public static Vector getLineList(
 			Reader rd, Vector result, String basePath, String encoding, String source, 
 			HashMap constants, String commentDef, Vector includeDirs
 	) 
 	{
-		final int MAX_STACK = 64;
-		int lineNumber = 1; //lines are numbered from 1
-		DataCompiler.setConstants(constants);
-		try {
-			LineNumberReader reader = new LineNumberReader(rd);
-			String line = ".";
-			if (commentDef == null) {
-				commentDef = DataCompiler.commentDef;
-			}
-			boolean lineEnabled = true; 
-			final boolean[] lineEnabledStack = new boolean[MAX_STACK];
-			int lineEnabledStackIndex = -1;
-			
-			while (line != null) {
-				line = reader.readLine();
-				if (line != null && line.length() > 0) {
-					line = removeComment(line, commentDef);
-					if (line.startsWith("#ifdef") && (line.charAt(6) == ' ' || line.charAt(6) == '\t')) {
-						String exp = line.substring(7).trim();
-						lineEnabled = isConstantDefined(exp, constants);
-						lineEnabledStack[++lineEnabledStackIndex] = lineEnabled;
-					} else
-					if (line.startsWith("#ifndef")&& (line.charAt(7) == ' ' || line.charAt(7) == '\t')) {
-						String exp = line.substring(8).trim();
-						lineEnabled = !isConstantDefined(exp, constants);
-						lineEnabledStack[++lineEnabledStackIndex] = lineEnabled;
-					} else
-					if (line.equals("#else")) {
-						if (lineEnabledStackIndex < 0) {
-							throw new RuntimeException("unexpected #else definition");
-						}
-						lineEnabled = !lineEnabledStack[lineEnabledStackIndex];
-						lineEnabledStack[lineEnabledStackIndex] = lineEnabled;
-					} else
-					if (line.equals("#endif")) {
-						if (lineEnabledStackIndex < 0) {
-							throw new RuntimeException("unexpected #endif definition");
-						}
-						lineEnabledStackIndex--;
-						if (lineEnabledStackIndex < 0) {
-							lineEnabled = true;
-						} else {
-							lineEnabled = lineEnabledStack[lineEnabledStackIndex];
-						}
-					}
-							
-					if (lineEnabled) {
-						if (!line.startsWith("#")) {
-							result.add(new LineItem(line, lineNumber, source));
-						} else 
-						if (line.startsWith("#define") && (line.charAt(7) == ' ' || line.charAt(7) == '\t')) {
-							LineItem item = new LineItem(line, lineNumber, source);
-							DataCompiler.addConstant(line.substring(7).trim(), item);
-						} else
-						if (line.startsWith("#error") && (line.charAt(6) == ' ' || line.charAt(6) == '\t')) {
-							throw new RuntimeException("Error: " + line.substring(6).trim());
-						} else
-						if (line.startsWith("#include") && (line.charAt(8) == ' ' || line.charAt(8) == '\t')) {
-							LineItem item = new LineItem(line, lineNumber, source);
-							String includeName = getIncludeName(line.substring(8));
-
-							//include is valid
-							if (includeName != null) {
-								if (basePath == null) {
-									getLineList("", includeName, encoding, result, constants, includeDirs, item, commentDef);
-								} else {
-									getLineList(basePath, includeName, encoding, result, constants, includeDirs, item, commentDef);
-								}
-							}
-						} else
-						if (line.startsWith("#undef") && (line.charAt(6) == ' ' || line.charAt(6) == '\t')) {
-							String exp = line.substring(7).trim();
-							constants.remove(exp);
-						} 
-					}
-				}
-				lineNumber++;
-			}
-			reader.close();
-			if (lineEnabledStackIndex >= 0) {
-				throw new RuntimeException("missing #endif " + (lineEnabledStackIndex + 1) + "x");
-			}
+		return getLineList(createContext(constants, includeDirs, commentDef), rd, result, basePath, encoding, source);
+	}
 
+	public static Vector getLineList(
+			CompileContext context, Reader rd, Vector result, String basePath, String encoding, String source
+	) 
+	{
+		try {
+			Preprocessor pp = new Preprocessor(context, rd, basePath, encoding, source);
+			return VectorLineSource.drain(pp, result);
 		} catch (Exception e) {
-			e.printStackTrace();
-			System.out.println(e +  " in source: " + source + " (" + lineNumber + ")" );
-			result = null;
+			context.out.println(e.getMessage() == null ? e.toString() : e.getMessage());
 		}
-		
-		return result;
+		return null;
 	}
 	
-	private static String getIncludeName(String line) {
+	static String getIncludeName(String line) {
 		line = line.trim();
 		char c = line.charAt(0);
 		if (c == '<' || c == '"') {
@@ -232,7 +162,7 @@ public class Utils {
 	}
 	
 
-	private static final String removeComment(String line, String commentDef) {
+	static final String removeComment(String line, String commentDef) {
 		if (line == null) {
 			return null;
 		}
@@ -247,86 +177,17 @@ public class Utils {
 		if (v == null) {
 			return null;
 		}
-		Vector result = new Vector();
-		int size = v.size();
-		for (int i = 0; i < size; i++) {
-			LineItem li = (LineItem)v.get(i);
-			String line  = li.line;
-			if (isWhiteSpace(line) || line.startsWith(commentDef)) {
-				continue;
-			}
-			line = removeComment(line, commentDef);
-			boolean multilineString = false;
-			if (line.endsWith("\\")) {
-				//check whether the '=' is present, and if so then handle string quotes
-				int indexEqualSign = line.indexOf('=');
-				int indexQuote = line.indexOf('"');
-				if (indexEqualSign > 0 && indexQuote > 0 && indexEqualSign < indexQuote) {
-					String line2 = line.substring(indexEqualSign + 1, line.length() - 1).trim();
-					// the string has both front and back quotes
-					if (hasQuotes(line2)) {
-						line2 = removeQuotes(line2);
-						//reassemble the original line without quotes but keep the backslash
-						String line3 = line.substring(0, indexEqualSign + 1);
-						line = line3.concat(line2).concat("\\");
-						multilineString = true;
-					}
-				}
-			}
-			while (line.endsWith("\\")) {
-				line = line.substring(0, line.length() - 1);
-				line = line.trim();
-				i++;
-				LineItem li2 = (LineItem)v.get(i);
-				String line2 =  li2.line;
-				if (isWhiteSpace(line2) || line.startsWith(commentDef)) {
-					throw new IllegalArgumentException(" syntax error at line:" + li2.number);
-				}
-				int index2 = line2.indexOf(commentDef);
-				if (index2 > 0) {
-					line2 = line2.substring(0, index2);
-				} 
-				line2 = line2.trim();
-				boolean hasBackslah = line.endsWith("\\");
-				if (hasBackslah) {
-					line2 = line2.substring(0, line.length() - 1);
-					line2 = line2.trim();
-					boolean quotesExist = hasQuotes(line2);
-					if (quotesExist) {
-						line2 = removeQuotes(line2);
-						line = line.concat(line2).concat("\\");
-					} else {
-						line = line.concat(" ").concat(line2).concat("\\");
-					}
-				} else {
-					boolean quotesExist = hasQuotes(line2);
-					if (quotesExist) {
-						line2 = removeQuotes(line2);
-						line = line.concat(line2);
-					} else  {
-						line = line.concat(" ").concat(line2);
-					}
-				}
-			}
-			
-			if (multilineString) {
-				// wrap the text string in quotes
-				int indexEqualSign = line.indexOf('=');
-				String line2 = line.substring(0, indexEqualSign + 1).concat("\"");
-				String line3 = line.substring(indexEqualSign + 1).concat("\"");
-
-				line = line2.concat(line3);
-			}
-			
-			result.add(new LineItem(line, li.number, li.source));
+		try {
+			return VectorLineSource.drain(new CommentFilter(new VectorLineSource(v), commentDef), null);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e.toString());
 		}
-		return result;
 	}
 	
-	private static boolean hasQuotes(String s) {
+	static boolean hasQuotes(String s) {
 		return s.startsWith("\"") && s.endsWith("\"");
 	}
-	private static String removeQuotes(String s) {
+	static String removeQuotes(String s) {
 		if (s.startsWith("\"") && s.endsWith("\"")) {
 			return s.substring(1, s.length() - 1 );
 		}
@@ -343,11 +204,15 @@ public class Utils {
 		
 	
 	public static void printInfo(String info, String[] args) {
-		System.out.print(info.concat(" ") );
+		printInfo(System.out, info, args);
+	}
+
+	public static void printInfo(PrintStream out, String info, String[] args) {
+		out.print(info.concat(" ") );
 		for (int i = 0; i < args.length; i++) {
-			System.out.print(args[i].concat(" "));
+			out.print(args[i].concat(" "));
 		}
-		System.out.println();
+		out.println();
 	}
 	
 	public static String[] split(String line, String delimiters) {
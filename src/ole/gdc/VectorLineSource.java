@@ -0,0 +1,56 @@
+/*
+VectorLineSource.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.IOException;
+import java.util.Vector;
+
+/**
+ * Hands out the lines of an already loaded line list.
+ */
+public class VectorLineSource implements LineSource {
+	private Vector lines;
+	private int index;
+
+	public VectorLineSource(Vector lines) {
+		this.lines = lines;
+	}
+
+	public LineItem nextLine() {
+		if (index >= lines.size()) {
+			return null;
+		}
+		return (LineItem) lines.elementAt(index++);
+	}
+
+	/**
+	 * Reads all lines of the source into a Vector.
+	 */
+	public static Vector drain(LineSource source, Vector result) throws IOException {
+		if (result == null) {
+			result = new Vector();
+		}
+		LineItem li = source.nextLine();
+		while (li != null) {
+			result.add(li);
+			li = source.nextLine();
+		}
+		return result;
+	}
+}
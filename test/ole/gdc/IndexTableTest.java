@@ -0,0 +1,111 @@
+/*
+IndexTableTest.java
+Copyright (C) 2007-2011 Marek Olejnik
+
+This file is part of the Generic Data Compiler
+
+Generic Data Compiler is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2, or (at your option)
+any later version.
+
+Generic Data Compiler is distributed in the hope that it will be useful, but
+WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+General Public License for more details.
+
+*/
+
+package ole.gdc;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Checks the offset table of '{#@}' for each width of the offsets. The list
+ * starts with an embedded file, so the second block is behind the file:
+ * 2 bytes for a small file, 4 bytes for 70000 bytes and 8 bytes for a file of
+ * more than 4 GB. The big file is sparse, but the output and the temporary
+ * file of the list have 4 GB each, the test needs about 9 GB of disk space.
+ * Parameters:
+ * -small : skip the test of the 8 byte offsets
+ */
+public class IndexTableTest {
+	private File dir;
+
+	public static void main(String[] args) throws Exception {
+		boolean small = args.length > 0 && args[0].equals("-small");
+		IndexTableTest test = new IndexTableTest();
+		test.dir = new File(System.getProperty("java.io.tmpdir"), "gdc-test-" + System.currentTimeMillis());
+		test.dir.mkdirs();
+		try {
+			test.check(100, 2);
+			test.check(70000, 4);
+			if (!small) {
+				test.check(0x100000004L, 8);
+			}
+		} finally {
+			File[] files = test.dir.listFiles();
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+			test.dir.delete();
+		}
+		System.out.println("IndexTableTest: ok");
+	}
+
+	/*
+	 * Compiles the list of the embedded file and an int, checks the table and the data of the second block.
+	 */
+	private void check(long fileSize, int width) throws IOException {
+		File data = new File(dir, "data.bin");
+		RandomAccessFile raf = new RandomAccessFile(data, "rw");
+		raf.setLength(fileSize);
+		raf.close();
+
+		File script = new File(dir, "index.d");
+		FileWriter w = new FileWriter(script);
+		w.write("file f\nint v\n{\n\t{#@}\n\t{\n\t\tf = data.bin\n\t}\n\t{\n\t\tv = 0x1234\n\t}\n}\n");
+		w.close();
+
+		File out = new File(dir, "index.bin");
+		String[] args = {"-i=" + script.getPath(), "-o=" + out.getPath(), "-lfs"};
+		if (DataCompiler.compile(args, dir, new CompileContext()) != 0) {
+			throw new RuntimeException("compilation failed, file size=" + fileSize);
+		}
+		raf = new RandomAccessFile(out, "r");
+		try {
+			expect("count", 2, raf.readShort());
+			expect("width", width, raf.readByte());
+			long[] offsets = new long[2];
+			for (int i = 0; i < offsets.length; i++) {
+				switch (width) {
+					case 2: offsets[i] = raf.readShort() & 0xFFFF; break;
+					case 4: offsets[i] = raf.readInt() & 0xFFFFFFFFL; break;
+					default: offsets[i] = raf.readLong(); break;
+				}
+			}
+			//the table is not padded without -align
+			long end = raf.getFilePointer();
+			expect("first offset", 0, offsets[0]);
+			expect("second offset", 8 + fileSize, offsets[1]);
+			raf.seek(end + offsets[0]);
+			expect("file size", fileSize, raf.readLong());
+			raf.seek(end + offsets[1]);
+			expect("value", 0x1234, raf.readInt());
+			expect("output size", end + offsets[1] + 4, raf.length());
+		} finally {
+			raf.close();
+			out.delete();
+			data.delete();
+		}
+	}
+
+	private static void expect(String what, long expected, long value) {
+		if (expected != value) {
+			throw new RuntimeException(what + ": expected " + expected + ", got " + value);
+		}
+	}
+}